@@ -3,7 +3,6 @@ package com.automattic.loop.photopicker;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.database.Cursor;
-import android.media.MediaMetadataRetriever;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Handler;
@@ -22,6 +21,7 @@ import com.automattic.loop.databinding.PhotoPickerThumbnailBinding;
 import com.automattic.loop.photopicker.utils.AniUtils;
 import com.automattic.loop.photopicker.utils.AniUtils.Duration;
 import com.bumptech.glide.Glide;
+import com.daasuu.mp4compose.utils.MediaProbe;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -439,26 +439,15 @@ public class PhotoPickerAdapter extends RecyclerView.Adapter<PhotoPickerAdapter.
     }
 
     private long getVideoDuration(Uri videoUri) {
-        MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
-        long durationUs = 0;
         try {
-            mediaMetadataRetriever.setDataSource(mContext, videoUri);
-            durationUs = Long.parseLong(
-                mediaMetadataRetriever.extractMetadata(
-                    MediaMetadataRetriever.METADATA_KEY_DURATION));
-        } catch (NumberFormatException e) {
-            durationUs = -1;
-        } catch (Exception ex) {
-            // catch every other exception... we don't want to crash for this for god's sake
-        } finally {
-            try {
-                mediaMetadataRetriever.release();
-            } catch (Exception e) {
-                Log.e(TAG, "Failed to release mediaMetadataRetriever." + e.getMessage());
-            }
+            // probed once per video, scrolling back to an item hits the cache
+            long durationUs = MediaProbe.probe(mContext, videoUri).getDurationUs();
+            return durationUs < 0 ? -1 : durationUs / 1000;
+        } catch (Exception e) {
+            // catch every exception... we don't want to crash for this for god's sake
+            Log.e(TAG, "Failed to read the video duration." + e.getMessage());
+            return 0;
         }
-
-        return durationUs;
     }
 
     /*
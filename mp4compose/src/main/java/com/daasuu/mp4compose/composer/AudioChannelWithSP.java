@@ -85,18 +85,7 @@ public class AudioChannelWithSP extends BaseAudioChannel {
 
     @Override
     public boolean feedEncoder(long timeoutUs) {
-        if (stream == null || !isPendingFeeding || (!isEOF && stream.samplesAvailable() == 0)) {
-            // no data available
-
-            updatePendingDecoderStatus();
-
-            return false;
-        } else if (!isEOF
-                   && timeScale < 1f
-                   && stream.samplesAvailable() > 0
-                   && (stream.samplesAvailable() * outputChannelCount) < BUFFER_CAPACITY
-        ) {
-            // few data remaining in stream wait for next stream data
+        if (!hasPendingData()) {
             updatePendingDecoderStatus();
 
             return false;
@@ -109,6 +98,29 @@ public class AudioChannelWithSP extends BaseAudioChannel {
             return false;
         }
 
+        return feedEncoderInputBuffer(encoderInBuffIndex);
+    }
+
+    /**
+     * Whether the stream has enough data (or the end of stream) to queue into the encoder.
+     */
+    public boolean hasPendingData() {
+        if (stream == null || !isPendingFeeding || (!isEOF && stream.samplesAvailable() == 0)) {
+            // no data available
+            return false;
+        }
+        // with slow motion, when few data remains in the stream wait for the next stream data
+        return isEOF
+               || timeScale >= 1f
+               || (stream.samplesAvailable() * outputChannelCount) >= BUFFER_CAPACITY;
+    }
+
+    /**
+     * Fills and queues the given encoder input buffer, which must have been obtained either through
+     * {@link MediaCodec#dequeueInputBuffer} or a {@link MediaCodec.Callback}. Only call this when
+     * {@link #hasPendingData} is true.
+     */
+    public boolean feedEncoderInputBuffer(int encoderInBuffIndex) {
         boolean status = false;
         if (timeScale < 1f) {
             status = slowTimeBufferProcess(encoderInBuffIndex);
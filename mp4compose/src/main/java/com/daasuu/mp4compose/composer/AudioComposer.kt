@@ -14,7 +14,7 @@ internal class AudioComposer(
     private val trackIndex: Int,
     private val muxRender: MuxRender,
     private val useFallBacks: Boolean = false
-) : IAudioComposer {
+) : IAudioComposer, IAsyncComposer {
     private val sampleType = MuxRender.SampleType.AUDIO
     private val bufferInfo = MediaCodec.BufferInfo()
     private var bufferSize: Int
@@ -73,6 +73,9 @@ internal class AudioComposer(
         return true
     }
 
+    // passthrough, there is no codec to wait for
+    override fun stepPipelineAsync(): Boolean = stepPipeline()
+
     override fun setup() {
         // do nothing
     }
@@ -0,0 +1,114 @@
+package com.daasuu.mp4compose.composer
+
+import android.media.MediaCodec
+import android.media.MediaFormat
+import android.os.Handler
+import android.os.HandlerThread
+
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * Collects the [MediaCodec.Callback] notifications of every codec taking part in a composition and hands
+ * them over, in arrival order, to the thread driving the pipeline.
+ *
+ * Callbacks are received on a private [HandlerThread], so they never depend on the Looper of whichever thread
+ * started the composition. The pipeline thread then blocks in [dispatch] until a codec actually reports a buffer,
+ * instead of sleeping for a fixed amount of time and polling every codec again.
+ */
+internal class CodecEventLoop {
+    /**
+     * Receives the codec events, always on the thread calling [dispatch].
+     */
+    interface Client {
+        fun onInputBufferAvailable(codec: MediaCodec, index: Int)
+
+        fun onOutputBufferAvailable(codec: MediaCodec, index: Int, info: MediaCodec.BufferInfo)
+
+        fun onOutputFormatChanged(codec: MediaCodec, format: MediaFormat)
+    }
+
+    private enum class EventType {
+        INPUT_BUFFER, OUTPUT_BUFFER, OUTPUT_FORMAT, ERROR
+    }
+
+    private class Event(
+        val type: EventType,
+        val client: Client,
+        val codec: MediaCodec,
+        val index: Int = -1,
+        val info: MediaCodec.BufferInfo? = null,
+        val format: MediaFormat? = null,
+        val error: MediaCodec.CodecException? = null
+    )
+
+    private val handlerThread = HandlerThread(TAG)
+    private val handler: Handler
+    private val events = LinkedBlockingQueue<Event>()
+
+    init {
+        handlerThread.start()
+        handler = Handler(handlerThread.looper)
+    }
+
+    /**
+     * Switches [codec] to asynchronous mode, routing its events to [client]. Must be called before
+     * [MediaCodec.configure].
+     */
+    fun register(codec: MediaCodec, client: Client) {
+        codec.setCallback(object : MediaCodec.Callback() {
+            override fun onInputBufferAvailable(codec: MediaCodec, index: Int) {
+                events.add(Event(EventType.INPUT_BUFFER, client, codec, index = index))
+            }
+
+            override fun onOutputBufferAvailable(codec: MediaCodec, index: Int, info: MediaCodec.BufferInfo) {
+                // the framework may recycle the BufferInfo instance once we return, keep our own copy
+                val infoCopy = MediaCodec.BufferInfo()
+                infoCopy.set(info.offset, info.size, info.presentationTimeUs, info.flags)
+                events.add(Event(EventType.OUTPUT_BUFFER, client, codec, index = index, info = infoCopy))
+            }
+
+            override fun onOutputFormatChanged(codec: MediaCodec, format: MediaFormat) {
+                events.add(Event(EventType.OUTPUT_FORMAT, client, codec, format = format))
+            }
+
+            override fun onError(codec: MediaCodec, e: MediaCodec.CodecException) {
+                events.add(Event(EventType.ERROR, client, codec, error = e))
+            }
+        }, handler)
+    }
+
+    /**
+     * Delivers every pending event to its [Client], waiting up to [timeoutMs] for the first one to arrive.
+     *
+     * @return false if no event arrived within [timeoutMs].
+     */
+    fun dispatch(timeoutMs: Long): Boolean {
+        var event = events.poll(timeoutMs, TimeUnit.MILLISECONDS) ?: return false
+        while (true) {
+            deliver(event)
+            event = events.poll() ?: return true
+        }
+    }
+
+    private fun deliver(event: Event) {
+        when (event.type) {
+            EventType.INPUT_BUFFER -> event.client.onInputBufferAvailable(event.codec, event.index)
+            EventType.OUTPUT_BUFFER -> event.client.onOutputBufferAvailable(event.codec, event.index, event.info!!)
+            EventType.OUTPUT_FORMAT -> event.client.onOutputFormatChanged(event.codec, event.format!!)
+            EventType.ERROR -> throw event.error!!
+        }
+    }
+
+    /**
+     * Stops the callback thread. Call this only once every registered codec has been released.
+     */
+    fun release() {
+        handlerThread.quitSafely()
+        events.clear()
+    }
+
+    companion object {
+        private val TAG = "CodecEventLoop"
+    }
+}
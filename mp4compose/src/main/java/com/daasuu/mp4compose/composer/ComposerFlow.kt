@@ -0,0 +1,59 @@
+package com.daasuu.mp4compose.composer
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.flow
+
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Starts the composer when collected and emits its progress (see [Listener.onProgress]). The flow completes once
+ * the output is written, and throws the composer failure, or a [CancellationException] if the composer got
+ * canceled by someone else.
+ *
+ * Canceling the collecting coroutine cancels the composer (see [ComposerInterface.cancel]), which releases its
+ * codecs and deletes the partial output.
+ *
+ * The flow sets the composer [Listener], and can be collected only once: composers can't be started twice.
+ */
+fun ComposerInterface.progressFlow(): Flow<Double> = flow {
+    val composer = this@progressFlow
+    val events = Channel<Double>(Channel.UNLIMITED)
+    val finished = AtomicBoolean(false)
+    composer.listener(object : Listener {
+        override fun onProgress(progress: Double) {
+            events.offer(progress)
+        }
+
+        override fun onCompleted() {
+            finished.set(true)
+            events.close()
+        }
+
+        override fun onCanceled() {
+            finished.set(true)
+            events.close(CancellationException("Composer canceled"))
+        }
+
+        override fun onFailed(exception: Exception) {
+            finished.set(true)
+            events.close(exception)
+        }
+
+        override fun onStart() {
+            // progress follows
+        }
+    })
+    composer.start()
+    try {
+        for (progress in events) {
+            emit(progress)
+        }
+    } finally {
+        // the collector went away before the composer was done
+        if (!finished.get()) {
+            composer.cancel()
+        }
+    }
+}
@@ -8,19 +8,52 @@ import android.util.Size
 import com.daasuu.mp4compose.FillMode
 import com.daasuu.mp4compose.VideoFormatMimeType
 import com.daasuu.mp4compose.composer.ComposerUseCase.CompressVideo
+import com.daasuu.mp4compose.composer.ComposerUseCase.RemuxVideo
 import com.daasuu.mp4compose.composer.ComposerUseCase.SaveVideoAsFile
 import com.daasuu.mp4compose.composer.ComposerUseCase.SaveVideoFromBgAsFile
 import com.daasuu.mp4compose.filter.GlFilter
+import com.daasuu.mp4compose.mp4.Mp4Faststart
 
+/**
+ * Each use case can ask for a faststart output (`moov` in front of `mdat`, see [Mp4Faststart]), so the video can be
+ * played while it's still being downloaded. Composing use cases take the output codec, see
+ * [Mp4Composer.videoFormatMimeType].
+ */
 sealed class ComposerUseCase {
     data class SaveVideoAsFile(
         val srcUri: Uri,
         val destPath: String,
         val context: Context,
-        val headers: Map<String, String>?
+        val headers: Map<String, String>?,
+        val faststart: Boolean = false,
+        val videoFormatMimeType: VideoFormatMimeType = VideoFormatMimeType.AVC
     ) : ComposerUseCase()
 
-    data class SaveVideoFromBgAsFile(val bkgBmp: Bitmap, val destPath: String) : ComposerUseCase()
+    /**
+     * Copies the compressed tracks of [srcUri] into a new mp4 file without decoding them: no overlays, filters or
+     * resizing can be applied, only audio can be dropped (see [Mp4Remuxer]). Trimming with [trimStartMs] and
+     * [trimEndMs] (-1 for the end) only re-encodes the GOPs the trim cuts through.
+     */
+    data class RemuxVideo(
+        val srcUri: Uri,
+        val destPath: String,
+        val context: Context,
+        val headers: Map<String, String>?,
+        val faststart: Boolean = false,
+        val trimStartMs: Long = 0,
+        val trimEndMs: Long = -1
+    ) : ComposerUseCase()
+
+    /**
+     * Makes a video of [durationMs] out of the still [bkgBmp], with whatever filter is set drawn on top of it.
+     */
+    data class SaveVideoFromBgAsFile @JvmOverloads constructor(
+        val bkgBmp: Bitmap,
+        val destPath: String,
+        val durationMs: Long = Mp4Composer.DEFAULT_STATIC_BKG_DURATION_MS,
+        val faststart: Boolean = false,
+        val videoFormatMimeType: VideoFormatMimeType = VideoFormatMimeType.AVC
+    ) : ComposerUseCase()
 
     data class CompressVideo @JvmOverloads constructor (
         val srcPath: String,
@@ -30,7 +63,8 @@ sealed class ComposerUseCase {
         val iFrameInterval: Int = 1,
         val audioBitRate: Int = 128000,
         val aacProfile: Int = CodecProfileLevel.AACObjectELD,
-        val forceAudioEncoding: Boolean = false
+        val forceAudioEncoding: Boolean = false,
+        val faststart: Boolean = false
     ) : ComposerUseCase()
 }
 
@@ -41,6 +75,12 @@ interface ComposerInterface {
     fun mute(mute: Boolean): ComposerInterface
     fun listener(listener: Listener): ComposerInterface
     fun start(): ComposerInterface
+
+    /**
+     * Stops a started composition as soon as possible, from any thread: codecs and EGL are released, the partial
+     * output is deleted and the listener gets [Listener.onCanceled] instead of a completion or failure.
+     */
+    fun cancel()
 }
 
 object ComposerProvider {
@@ -50,9 +90,21 @@ object ComposerProvider {
                 Mp4Composer(useCase.srcUri, useCase.destPath)
                         .with(useCase.context)
                         .addedHeaders(useCase.headers)
+                        .faststart(useCase.faststart)
+                        .videoFormatMimeType(useCase.videoFormatMimeType)
+            }
+            is RemuxVideo -> {
+                Mp4Remuxer(useCase.srcUri, useCase.destPath)
+                        .with(useCase.context)
+                        .addedHeaders(useCase.headers)
+                        .faststart(useCase.faststart)
+                        .trim(useCase.trimStartMs, useCase.trimEndMs)
             }
             is SaveVideoFromBgAsFile -> {
                 Mp4Composer(useCase.bkgBmp, useCase.destPath)
+                        .staticBackgroundDuration(useCase.durationMs)
+                        .faststart(useCase.faststart)
+                        .videoFormatMimeType(useCase.videoFormatMimeType)
             }
             is CompressVideo -> {
                 Mp4ComposerBasic(useCase.srcPath, useCase.destPath)
@@ -62,6 +114,7 @@ object ComposerProvider {
                         .audioBitRate(useCase.audioBitRate)
                         .aacProfile(useCase.aacProfile)
                         .forceAudioEncoding(useCase.forceAudioEncoding)
+                        .faststart(useCase.faststart)
             }
         }
     }
@@ -4,6 +4,9 @@ import android.graphics.SurfaceTexture
 import android.opengl.EGL14
 import android.opengl.GLES20
 import android.opengl.Matrix
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.SystemClock
 import android.util.Log
 import android.util.Size
 import android.view.Surface
@@ -61,6 +64,9 @@ internal class DecoderSurface
         private set
     private val frameSyncObject = Object() // guards frameAvailable
     private var frameAvailable: Boolean = false
+    // delivers onFrameAvailable(), so that a busy main thread doesn't hold decoded frames back
+    private var frameAvailableThread: HandlerThread? = null
+    val frameWaitStats = FrameWaitStats()
 
     private var texName: Int = 0
 
@@ -70,6 +76,9 @@ internal class DecoderSurface
     private var previewShader: GlPreviewFilter? = null
     private var normalShader: GlFilter? = null
     private var framebufferObject: GlFramebufferObject? = null
+    // the decoder texture is drawn right onto the EGL surface, see drawImageSinglePass()
+    private var singlePass = false
+    private var keepCompositedFrame = false
 
     private val MVPMatrix = FloatArray(16)
     private val ProjMatrix = FloatArray(16)
@@ -102,14 +111,9 @@ internal class DecoderSurface
         // if (VERBOSE) Log.d(TAG, "textureID=" + filter.getTextureId());
         // surfaceTexture = new SurfaceTexture(filter.getTextureId());
 
-        // This doesn't work if DecoderSurface is created on the thread that CTS started for
-        // these test cases.
-        //
-        // The CTS-created thread has a Looper, and the SurfaceTexture constructor will
-        // create a Handler that uses it.  The "frame available" message is delivered
-        // there, but since we're not a Looper-based thread we'll never see it.  For
-        // this to do anything useful, DecoderSurface must be created on a thread without
-        // a Looper, so that SurfaceTexture uses the main application Looper instead.
+        // The "frame available" callbacks are delivered on a HandlerThread of our own, rather than on the Looper
+        // of the creating thread (which may never look at its messages) or the main one (which may be busy
+        // drawing the UI, holding every frame back).
         //
         // Java language note: passing "this" out of a constructor is generally unwise,
         // but we should be able to get away with it here.
@@ -126,7 +130,8 @@ internal class DecoderSurface
 
         // SurfaceTextureを生成
         previewTexture = GlSurfaceTexture(texName)
-        previewTexture!!.setOnFrameAvailableListener(this)
+        frameAvailableThread = HandlerThread(TAG).apply { start() }
+        previewTexture!!.setOnFrameAvailableListener(this, Handler(frameAvailableThread!!.looper))
         // SupressWarnings explanation:
         // Many resources, such as TypedArrays, VelocityTrackers, etc., should be recycled (with a recycle() call) after
         // use. This lint check looks for missing recycle() calls.
@@ -168,6 +173,9 @@ internal class DecoderSurface
         }
         surface!!.release()
         previewTexture!!.release()
+        frameAvailableThread?.quitSafely()
+        frameAvailableThread = null
+        Log.d(TAG, "Decoded frame waits: $frameWaitStats")
         // this causes a bunch of warnings that appear harmless but might confuse someone:
         //  W BufferQueue: [unnamed-3997-2] cancelBuffer: BufferQueue has been abandoned!
         // surfaceTexture.release();
@@ -186,24 +194,26 @@ internal class DecoderSurface
      * data is available.
      */
     fun awaitNewImage() {
-        val TIMEOUT_MS = 10000
+        val startNs = System.nanoTime()
+        val deadlineMs = SystemClock.uptimeMillis() + FRAME_WAIT_TIMEOUT_MS
         synchronized(frameSyncObject) {
             while (!frameAvailable) {
+                // Wait for onFrameAvailable() to signal us.  Use a timeout to avoid
+                // stalling the test if it doesn't arrive.
+                val remainingMs = deadlineMs - SystemClock.uptimeMillis()
+                if (remainingMs <= 0) {
+                    throw RuntimeException("Surface frame wait timed out, $frameWaitStats before")
+                }
                 try {
-                    // Wait for onFrameAvailable() to signal us.  Use a timeout to avoid
-                    // stalling the test if it doesn't arrive.
-                    frameSyncObject.wait(TIMEOUT_MS.toLong())
-                    if (!frameAvailable) {
-                        // TODO: if "spurious wakeup", continue while loop
-                        throw RuntimeException("Surface frame wait timed out")
-                    }
+                    frameSyncObject.wait(remainingMs)
                 } catch (ie: InterruptedException) {
-                    // shouldn't happen
+                    // i.e. a staged pipeline being stopped
                     throw RuntimeException(ie)
                 }
             }
             frameAvailable = false
         }
+        frameWaitStats.record(System.nanoTime() - startNs)
         // Latch the data.
         //  EglUtil.checkGlError("before updateTexImage");
         previewTexture!!.updateTexImage()
@@ -211,9 +221,16 @@ internal class DecoderSurface
     }
 
     /**
-     * Draws the data from SurfaceTexture onto the current EGL surface.
+     * Draws the data from SurfaceTexture onto the current EGL surface. Filters that only draw over their input (see
+     * [GlFilter.drawsOverInput]) are drawn in the same pass, others go through two framebuffers first.
      */
     fun drawImage(presentationTime: Long) {
+        updateMVPMatrix()
+        if (singlePass) {
+            drawImageSinglePass(presentationTime)
+            return
+        }
+
         framebufferObject!!.enable()
         GLES20.glViewport(0, 0, framebufferObject!!.width, framebufferObject!!.height)
 
@@ -230,6 +247,68 @@ internal class DecoderSurface
 
         GLES20.glClear(GL_COLOR_BUFFER_BIT)
 
+        previewShader!!.draw(texName, MVPMatrix, STMatrix, 1f)
+
+        if (filter != null) {
+            // 一度shaderに描画したものを、fboを利用して、drawする。drawには必要なさげだけど。
+            framebufferObject!!.enable()
+            GLES20.glClear(GL_COLOR_BUFFER_BIT)
+            filter!!.draw(filterFramebufferObject!!.texName, framebufferObject!!, presentationTime)
+        }
+
+        GLES20.glBindFramebuffer(GL_FRAMEBUFFER, 0)
+        GLES20.glViewport(0, 0, framebufferObject!!.width, framebufferObject!!.height)
+
+        GLES20.glClear(GL_COLOR_BUFFER_BIT or GL_DEPTH_BUFFER_BIT)
+        normalShader!!.draw(framebufferObject!!.texName, null, presentationTime)
+    }
+
+    /**
+     * Draws the decoder texture, scaled and rotated for the fill mode, with the filter additions on top of it (see
+     * [GlFilter.drawsOverInput]) straight onto the current EGL surface. When the composited frame has to be kept,
+     * it's drawn into its framebuffer instead, and then copied.
+     */
+    private fun drawImageSinglePass(presentationTime: Long) {
+        val width = outputResolution!!.width
+        val height = outputResolution!!.height
+        val composited = if (keepCompositedFrame) compositedFrame() else null
+        if (composited != null) {
+            composited.enable()
+        } else {
+            GLES20.glBindFramebuffer(GL_FRAMEBUFFER, 0)
+        }
+        GLES20.glViewport(0, 0, width, height)
+        val clearColor = filter?.clearColor ?: DEFAULT_CLEAR_COLOR
+        GLES20.glClearColor(clearColor[0], clearColor[1], clearColor[2], clearColor[3])
+        GLES20.glClear(GL_COLOR_BUFFER_BIT or GL_DEPTH_BUFFER_BIT)
+
+        previewShader!!.draw(texName, MVPMatrix, STMatrix, 1f)
+        filter?.drawOverInput(presentationTime)
+
+        if (composited != null) {
+            GLES20.glBindFramebuffer(GL_FRAMEBUFFER, 0)
+            GLES20.glViewport(0, 0, width, height)
+            GLES20.glClear(GL_COLOR_BUFFER_BIT or GL_DEPTH_BUFFER_BIT)
+            normalShader!!.draw(composited.texName, null, presentationTime)
+        }
+    }
+
+    /**
+     * The framebuffer holding the composited frame, set up on first use when drawing in a single pass.
+     */
+    private fun compositedFrame(): GlFramebufferObject {
+        val frame = framebufferObject!!
+        if (frame.width == 0) {
+            frame.setup(outputResolution!!.width, outputResolution!!.height)
+        }
+        return frame
+    }
+
+    /**
+     * Sets [MVPMatrix] to the scale and rotation of the decoded frame for the fill mode, applied when drawing the
+     * decoder texture.
+     */
+    private fun updateMVPMatrix() {
         Matrix.multiplyMM(MVPMatrix, 0, VMatrix, 0, MMatrix, 0)
         Matrix.multiplyMM(MVPMatrix, 0, ProjMatrix, 0, MVPMatrix, 0)
 
@@ -307,20 +386,24 @@ internal class DecoderSurface
                 //                    Log.d(TAG, "scale[0] = " + scale[0] + " scale[1] = " + scale[1]);
             }
         }
+    }
 
-        previewShader!!.draw(texName, MVPMatrix, STMatrix, 1f)
-
-        if (filter != null) {
-            // 一度shaderに描画したものを、fboを利用して、drawする。drawには必要なさげだけど。
-            framebufferObject!!.enable()
-            GLES20.glClear(GL_COLOR_BUFFER_BIT)
-            filter!!.draw(filterFramebufferObject!!.texName, framebufferObject!!, presentationTime)
-        }
+    /**
+     * Draws the frame composited by the last [drawImage] again, onto the current surface of [width] x [height],
+     * which has to be in the same EGL context. It's scaled to fit, letterboxed if the aspect ratios differ.
+     */
+    fun drawComposited(width: Int, height: Int, presentationTime: Long) {
+        check(!singlePass || keepCompositedFrame) { "The composited frame isn't kept" }
+        val frameWidth = framebufferObject!!.width
+        val frameHeight = framebufferObject!!.height
+        val scale = Math.min(width.toFloat() / frameWidth, height.toFloat() / frameHeight)
+        val scaledWidth = Math.round(frameWidth * scale)
+        val scaledHeight = Math.round(frameHeight * scale)
 
         GLES20.glBindFramebuffer(GL_FRAMEBUFFER, 0)
-        GLES20.glViewport(0, 0, framebufferObject!!.width, framebufferObject!!.height)
-
+        GLES20.glViewport(0, 0, width, height)
         GLES20.glClear(GL_COLOR_BUFFER_BIT or GL_DEPTH_BUFFER_BIT)
+        GLES20.glViewport((width - scaledWidth) / 2, (height - scaledHeight) / 2, scaledWidth, scaledHeight)
         normalShader!!.draw(framebufferObject!!.texName, null, presentationTime)
     }
 
@@ -363,13 +446,24 @@ internal class DecoderSurface
         this.flipHorizontal = flipHorizontal
     }
 
+    /**
+     * Keeps the frame composited by [drawImage] for [drawComposited], i.e. for renditions or to fill frame gaps.
+     * Draws in a single pass cost a copy of the frame then.
+     */
+    fun setKeepCompositedFrame(keepCompositedFrame: Boolean) {
+        this.keepCompositedFrame = keepCompositedFrame
+    }
+
     fun completeParams() {
         val width = outputResolution!!.width
         val height = outputResolution!!.height
-        framebufferObject!!.setup(width, height)
+        singlePass = filter?.drawsOverInput ?: true
+        if (!singlePass) {
+            // the single pass only sets up the composited frame if it's kept
+            framebufferObject!!.setup(width, height)
+            filterFramebufferObject!!.setup(width, height)
+        }
         normalShader!!.setFrameSize(width, height)
-
-        filterFramebufferObject!!.setup(width, height)
         previewShader!!.setFrameSize(width, height)
         // MCLog.d("onSurfaceChanged width = " + width + " height = " + height + " aspectRatio = " + scaleRatio);
         Matrix.frustumM(ProjMatrix, 0, -1f, 1f, -1f, 1f, 5f, 7f)
@@ -383,5 +477,7 @@ internal class DecoderSurface
     companion object {
         private val TAG = "DecoderSurface"
         private val VERBOSE = false
+        private const val FRAME_WAIT_TIMEOUT_MS = 10000L
+        private val DEFAULT_CLEAR_COLOR = floatArrayOf(0f, 0f, 0f, 1f)
     }
 }
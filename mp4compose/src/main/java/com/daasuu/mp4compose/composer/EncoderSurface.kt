@@ -20,10 +20,13 @@ import android.view.Surface
  */
 internal class EncoderSurface
 /**
- * Creates an EncoderSurface from a Surface.
+ * Creates an EncoderSurface from a Surface. With [shared], the window surface is created on the display and
+ * context of that one instead of new ones, so whatever is drawn in that context can be drawn here too (see
+ * [RenditionEncoder]). A shared surface must be released before the one it shares.
  */
-    (private var surface: Surface?) {
+    (private var surface: Surface?, private val shared: EncoderSurface? = null) {
     private var eglDisplay: EGLDisplay? = EGL14.EGL_NO_DISPLAY
+    private var eglConfig: EGLConfig? = null
     private var eglContext: EGLContext? = EGL14.EGL_NO_CONTEXT
     private var eglSurface: EGLSurface? = EGL14.EGL_NO_SURFACE
 
@@ -31,7 +34,11 @@ internal class EncoderSurface
         if (surface == null) {
             throw NullPointerException()
         }
-        eglSetup()
+        if (shared != null) {
+            eglSharedSetup(shared)
+        } else {
+            eglSetup()
+        }
     }
 
     /**
@@ -81,10 +88,27 @@ internal class EncoderSurface
         if (eglContext == null) {
             throw RuntimeException("null context")
         }
-        // Create a window surface, and attach it to the Surface we received.
+        eglConfig = configs[0]
+        createWindowSurface()
+    }
+
+    private fun eglSharedSetup(shared: EncoderSurface) {
+        if (shared.eglDisplay === EGL14.EGL_NO_DISPLAY) {
+            throw IllegalStateException("shared EncoderSurface already released")
+        }
+        eglDisplay = shared.eglDisplay
+        eglConfig = shared.eglConfig
+        eglContext = shared.eglContext
+        createWindowSurface()
+    }
+
+    /**
+     * Creates a window surface, and attaches it to the Surface we received.
+     */
+    private fun createWindowSurface() {
         val surfaceAttribs = intArrayOf(EGL14.EGL_NONE)
         eglSurface = EGL14.eglCreateWindowSurface(
-            eglDisplay, configs[0], surface,
+            eglDisplay, eglConfig, surface,
             surfaceAttribs, 0
         )
         checkEglError("eglCreateWindowSurface")
@@ -98,7 +122,12 @@ internal class EncoderSurface
      * Surface that was passed to our constructor.
      */
     fun release() {
-        if (eglDisplay !== EGL14.EGL_NO_DISPLAY) {
+        if (shared != null) {
+            // the display and context belong to the shared surface
+            if (eglDisplay !== EGL14.EGL_NO_DISPLAY) {
+                EGL14.eglDestroySurface(eglDisplay, eglSurface)
+            }
+        } else if (eglDisplay !== EGL14.EGL_NO_DISPLAY) {
             EGL14.eglDestroySurface(eglDisplay, eglSurface)
             EGL14.eglDestroyContext(eglDisplay, eglContext)
             EGL14.eglReleaseThread()
@@ -120,6 +149,15 @@ internal class EncoderSurface
         }
     }
 
+    /**
+     * Makes no EGL context current on this thread, so that another thread can make ours current.
+     */
+    fun releaseCurrent() {
+        if (!EGL14.eglMakeCurrent(eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT)) {
+            throw RuntimeException("eglMakeCurrent failed")
+        }
+    }
+
     /**
      * Calls eglSwapBuffers.  Use this to "publish" the current frame.
      */
@@ -0,0 +1,86 @@
+package com.daasuu.mp4compose.composer
+
+import android.media.MediaCodec
+import android.media.MediaFormat
+
+import com.daasuu.mp4compose.mp4.FragmentedMp4Writer
+import com.daasuu.mp4compose.mp4.Mp4TrackFormat
+
+import java.io.FileOutputStream
+import java.nio.ByteBuffer
+
+/**
+ * Writes a fragmented mp4 to [destPath] through [FragmentedMp4Writer]: each GOP is written as soon as it's
+ * encoded, and [fragmentListener] tells how much of the file is final, so it can be uploaded while encoding goes on.
+ */
+internal class FragmentedSampleMuxer(
+    destPath: String,
+    fragmentListener: FragmentedMp4Writer.FragmentListener?
+) : SampleMuxer {
+    private val outputStream = FileOutputStream(destPath)
+    private val writer = FragmentedMp4Writer(outputStream.channel)
+
+    init {
+        writer.fragmentListener = fragmentListener
+    }
+
+    override fun addTrack(format: MediaFormat): Int {
+        return writer.addTrack(format.toMp4TrackFormat())
+    }
+
+    override fun start() {
+        writer.start()
+    }
+
+    override fun writeSampleData(trackIndex: Int, byteBuf: ByteBuffer, bufferInfo: MediaCodec.BufferInfo) {
+        if (bufferInfo.flags and MediaCodec.BUFFER_FLAG_CODEC_CONFIG != 0 || bufferInfo.size == 0) {
+            // parameter sets are part of the track format already
+            return
+        }
+        val sample = byteBuf.duplicate()
+        sample.limit(bufferInfo.offset + bufferInfo.size)
+        sample.position(bufferInfo.offset)
+        writer.writeSampleData(
+            trackIndex,
+            sample,
+            bufferInfo.presentationTimeUs,
+            bufferInfo.flags and MediaCodec.BUFFER_FLAG_KEY_FRAME != 0
+        )
+    }
+
+    override fun stop() {
+        writer.finish()
+        outputStream.fd.sync()
+    }
+
+    override fun release() {
+        outputStream.close()
+    }
+
+    private fun MediaFormat.toMp4TrackFormat(): Mp4TrackFormat {
+        val mime = requireNotNull(getString(MediaFormat.KEY_MIME)) { "No mime type in $this" }
+        val codecSpecificData = CSD_KEYS.filter { containsKey(it) }.map { key ->
+            val buffer = getByteBuffer(key)!!.duplicate()
+            ByteArray(buffer.remaining()).also { buffer.get(it) }
+        }
+        return if (mime.startsWith("video/")) {
+            Mp4TrackFormat.video(
+                mime,
+                getInteger(MediaFormat.KEY_WIDTH),
+                getInteger(MediaFormat.KEY_HEIGHT),
+                codecSpecificData
+            )
+        } else {
+            Mp4TrackFormat.audio(
+                mime,
+                getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                getInteger(MediaFormat.KEY_CHANNEL_COUNT),
+                codecSpecificData.firstOrNull() ?: ByteArray(0)
+            )
+        }
+    }
+
+    companion object {
+        private val CSD_KEYS = listOf("csd-0", "csd-1", "csd-2")
+    }
+}
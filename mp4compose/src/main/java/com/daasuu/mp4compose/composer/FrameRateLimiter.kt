@@ -0,0 +1,41 @@
+package com.daasuu.mp4compose.composer
+
+/**
+ * Picks the decoded frames to keep for a [targetFrameRate] output, by presentation time, so the others can be
+ * released by the decoder without being rendered, composited or encoded.
+ *
+ * Kept frames follow a grid of 1 / [targetFrameRate] steps starting at the first frame. A frame is kept once it
+ * reaches the next grid point, give or take a quarter of a step to absorb timestamp rounding. Sources at or below
+ * the target rate keep all their frames. After a gap in the source (longer than a step) the grid restarts at the
+ * next frame.
+ */
+internal class FrameRateLimiter(targetFrameRate: Int) {
+    private val frameIntervalUs: Long
+    private val toleranceUs: Long
+    private var nextFrameUs = Long.MIN_VALUE
+
+    init {
+        require(targetFrameRate > 0) { "Invalid target frame rate $targetFrameRate" }
+        frameIntervalUs = ONE_SEC_US / targetFrameRate
+        toleranceUs = frameIntervalUs / 4
+    }
+
+    /**
+     * Whether the frame presented at [presentationTimeUs] should be rendered. Frames must be given in order.
+     */
+    fun keepFrame(presentationTimeUs: Long): Boolean {
+        if (nextFrameUs != Long.MIN_VALUE && presentationTimeUs + toleranceUs < nextFrameUs) {
+            return false
+        }
+        nextFrameUs = if (nextFrameUs == Long.MIN_VALUE || presentationTimeUs - nextFrameUs >= frameIntervalUs) {
+            presentationTimeUs + frameIntervalUs
+        } else {
+            nextFrameUs + frameIntervalUs
+        }
+        return true
+    }
+
+    companion object {
+        private const val ONE_SEC_US = 1_000_000L
+    }
+}
@@ -0,0 +1,42 @@
+package com.daasuu.mp4compose.composer
+
+/**
+ * How long decoded frames took to show up on a [DecoderSurface], from the moment it started waiting for them (see
+ * [DecoderSurface.awaitNewImage]). Long waits point at frame available callbacks being held up, or at a slow
+ * decoder.
+ */
+internal class FrameWaitStats {
+    var frameCount = 0
+        private set
+    var totalWaitNs = 0L
+        private set
+    var maxWaitNs = 0L
+        private set
+    // waits longer than SLOW_WAIT_NS
+    var slowFrameCount = 0
+        private set
+
+    val averageWaitNs: Long
+        get() = if (frameCount == 0) 0 else totalWaitNs / frameCount
+
+    fun record(waitNs: Long) {
+        frameCount++
+        totalWaitNs += waitNs
+        maxWaitNs = Math.max(maxWaitNs, waitNs)
+        if (waitNs > SLOW_WAIT_NS) {
+            slowFrameCount++
+        }
+    }
+
+    override fun toString(): String {
+        return "$frameCount frames waited ${averageWaitNs / NS_PER_US} us on average, " +
+                "${maxWaitNs / NS_PER_US} us at most, $slowFrameCount over ${SLOW_WAIT_NS / NS_PER_MS} ms"
+    }
+
+    companion object {
+        private const val NS_PER_US = 1_000L
+        private const val NS_PER_MS = 1_000_000L
+        // about two frames at 30 fps
+        private const val SLOW_WAIT_NS = 66 * NS_PER_MS
+    }
+}
@@ -0,0 +1,13 @@
+package com.daasuu.mp4compose.composer
+
+/**
+ * A track composer able to run off [CodecEventLoop] callbacks instead of polling its codecs.
+ */
+internal interface IAsyncComposer {
+    /**
+     * Does whatever work the buffers handed over by the [CodecEventLoop] so far allow, without blocking.
+     *
+     * @return true if any progress was made.
+     */
+    fun stepPipelineAsync(): Boolean
+}
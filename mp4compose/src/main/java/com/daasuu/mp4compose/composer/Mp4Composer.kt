@@ -2,7 +2,6 @@ package com.daasuu.mp4compose.composer
 
 import android.content.Context
 import android.graphics.Bitmap
-import android.media.MediaMetadataRetriever
 import android.net.Uri
 import android.util.Log
 import android.util.Size
@@ -10,10 +9,17 @@ import android.util.Size
 import com.daasuu.mp4compose.FillMode
 import com.daasuu.mp4compose.FillModeCustomItem
 import com.daasuu.mp4compose.Rotation
+import com.daasuu.mp4compose.VideoFormatMimeType
 import com.daasuu.mp4compose.composer.Mp4ComposerEngine.ProgressCallback
 import com.daasuu.mp4compose.filter.GlFilter
-import com.daasuu.mp4compose.utils.DataSourceUtil
-
+import com.daasuu.mp4compose.mp4.FragmentedMp4Writer
+import com.daasuu.mp4compose.mp4.Mp4Faststart
+import com.daasuu.mp4compose.utils.EncoderCapabilities
+import com.daasuu.mp4compose.utils.MediaInfo
+import com.daasuu.mp4compose.utils.MediaProbe
+
+import java.io.File
+import java.io.IOException
 import java.util.concurrent.ExecutorService
 import java.util.concurrent.Executors
 
@@ -32,15 +38,31 @@ class Mp4Composer : ComposerInterface {
     private var listener: Listener? = null
     private var fillMode: FillMode = FillMode.PRESERVE_ASPECT_FIT
     private var fillModeCustomItem: FillModeCustomItem? = null
-    private var timeScale = 1
+    private var timeScale = 1f
     private var flipVertical = false
     private var flipHorizontal = false
     private var isStaticImageBkgSource = false
     private var bkgBitmap: Bitmap? = null
     private var context: Context? = null
     private var addedRequestHeaders: Map<String, String>? = null
+    private var asyncCodecs = true
+    private var stagedPipeline = false
+    private var staticBkgDurationMs = DEFAULT_STATIC_BKG_DURATION_MS
+    private var staticBkgSurfaceInput = true
+    private var fragmentedOutput = false
+    private var fragmentListener: FragmentedMp4Writer.FragmentListener? = null
+    private var faststart = false
+    private var parallelSegments = 1
+    private var segmentFilterFactory: (() -> GlFilter)? = null
+    private var videoFormatMimeType = VideoFormatMimeType.AVC
+    private var frameRate = 0
+    private val renditions = ArrayList<Rendition>()
 
     private var executorService: ExecutorService? = null
+    @Volatile
+    private var engine: Mp4ComposerEngine? = null
+    @Volatile
+    private var canceled = false
 
     constructor(srcUri: Uri, destPath: String) {
         this.srcUri = srcUri
@@ -124,11 +146,126 @@ class Mp4Composer : ComposerInterface {
         return this
     }
 
-    fun timeScale(timeScale: Int): Mp4Composer {
+    /**
+     * Speed of the output, from [MIN_TIME_SCALE] (8x slow motion) to [MAX_TIME_SCALE] (8x fast forward). Fast
+     * forward drops the frames above the source frame rate before rendering them, slow motion repeats frames to
+     * keep it. Audio keeps its pitch. Video sources only.
+     */
+    fun timeScale(timeScale: Float): Mp4Composer {
         this.timeScale = timeScale
         return this
     }
 
+    fun timeScale(timeScale: Int): Mp4Composer {
+        return timeScale(timeScale.toFloat())
+    }
+
+    /**
+     * Output at most [frameRate] frames per second: decoded frames above it are dropped before any rendering, so
+     * high frame rate sources (i.e. 60 fps camera clips) cost about as much as 30 fps ones. 0, the default, keeps
+     * every source frame. Video sources only.
+     */
+    fun frameRate(frameRate: Int): Mp4Composer {
+        require(frameRate >= 0) { "Invalid frame rate $frameRate" }
+        this.frameRate = frameRate
+        return this
+    }
+
+    /**
+     * Drive the codecs through MediaCodec callbacks (the default) rather than by polling them. Turn this off to
+     * fall back to the polling pipeline on devices with misbehaving codecs.
+     */
+    fun asyncCodecs(asyncCodecs: Boolean): Mp4Composer {
+        this.asyncCodecs = asyncCodecs
+        return this
+    }
+
+    /**
+     * Decode, render and encode video sources on three threads at once, so that a stall in one of them (i.e. a slow
+     * write to a content Uri) doesn't idle the others. Off by default. Static backgrounds and [parallelSegments]
+     * ignore it.
+     */
+    fun stagedPipeline(stagedPipeline: Boolean): Mp4Composer {
+        this.stagedPipeline = stagedPipeline
+        return this
+    }
+
+    /**
+     * Length of the video produced out of a static background image.
+     */
+    fun staticBackgroundDuration(durationMs: Long): Mp4Composer {
+        this.staticBkgDurationMs = durationMs
+        return this
+    }
+
+    /**
+     * Draw a static background image through GL onto the encoder input surface (the default), which also renders
+     * the filter. Turn this off to feed the encoder raw YUV 4:2:0 buffers converted on the CPU instead.
+     */
+    fun staticBackgroundSurfaceInput(surfaceInput: Boolean): Mp4Composer {
+        this.staticBkgSurfaceInput = surfaceInput
+        return this
+    }
+
+    /**
+     * Write a fragmented mp4 (a `moof` / `mdat` pair per GOP, see [FragmentedMp4Writer]) instead of a regular one,
+     * so the output can be read while it's still being encoded: [fragmentListener] is told how many bytes of it are
+     * final after each fragment.
+     */
+    @JvmOverloads
+    fun fragmentedOutput(
+        fragmented: Boolean,
+        fragmentListener: FragmentedMp4Writer.FragmentListener? = null
+    ): Mp4Composer {
+        this.fragmentedOutput = fragmented
+        this.fragmentListener = fragmentListener
+        return this
+    }
+
+    /**
+     * Move the `moov` box in front of the media data once the file is complete (see [Mp4Faststart]), so it can be
+     * played while it's being downloaded. Fragmented output already starts with it.
+     */
+    fun faststart(faststart: Boolean): Mp4Composer {
+        this.faststart = faststart
+        return this
+    }
+
+    /**
+     * Transcode long video sources in up to [segmentCount] keyframe aligned segments at once, each with its own
+     * codecs and a filter from [filterFactory] (replacing [filter], which can't be shared between GL contexts).
+     * The segment count is capped by what the codecs can run at once, short sources and [timeScale] changes still
+     * go through a single pipeline.
+     */
+    fun parallelSegments(segmentCount: Int, filterFactory: (() -> GlFilter)?): Mp4Composer {
+        this.parallelSegments = segmentCount
+        this.segmentFilterFactory = filterFactory
+        return this
+    }
+
+    /**
+     * Codec of the output video, AVC by default. [VideoFormatMimeType.HEVC] and [VideoFormatMimeType.AUTO] use HEVC
+     * when the device has a hardware encoder for it at the output size, and fall back to AVC otherwise (software
+     * HEVC encoders are far too slow for exports). Unless [videoBitrate] is set, HEVC gets a lower bitrate for
+     * about the same quality.
+     */
+    fun videoFormatMimeType(mimeType: VideoFormatMimeType): Mp4Composer {
+        this.videoFormatMimeType = mimeType
+        return this
+    }
+
+    /**
+     * Also write a [size] rendition of the output video to [destPath], i.e. a smaller one for feeds and previews.
+     * It's encoded from the same decoded and filtered frames as the main output (scaled to fit), so it doesn't cost
+     * another decode. [bitrate] is computed from [size] when negative. Video sources only, and not combined with
+     * [parallelSegments].
+     */
+    @JvmOverloads
+    fun addRendition(destPath: String, size: Size, bitrate: Int = -1): Mp4Composer {
+        renditions.add(Rendition(destPath, size, bitrate))
+        return this
+    }
+
     private fun getExecutorService(): ExecutorService {
         if (executorService == null) {
             executorService = Executors.newSingleThreadExecutor()
@@ -139,6 +276,19 @@ class Mp4Composer : ComposerInterface {
     override fun start(): Mp4Composer {
         getExecutorService().execute(Runnable {
             val engine = Mp4ComposerEngine()
+            this@Mp4Composer.engine = engine
+            if (canceled) {
+                // canceled before the engine existed
+                engine.cancel()
+            }
+            engine.setUseAsyncCodecs(asyncCodecs)
+            engine.setStagedPipeline(stagedPipeline)
+            engine.setStaticImageSurfaceInput(staticBkgSurfaceInput)
+            engine.setFragmentedOutput(fragmentedOutput, fragmentListener)
+            engine.setParallelSegments(parallelSegments, segmentFilterFactory)
+            if (!isStaticImageBkgSource) {
+                engine.setTargetFrameRate(frameRate)
+            }
 
             engine.setProgressCallback(
                 object : ProgressCallback {
@@ -161,8 +311,10 @@ class Mp4Composer : ComposerInterface {
             // Mp4Composer(final Bitmap bkgBmp, final String destPath) (remove such constructor).
             if (!isStaticImageBkgSource) {
                 initializeUriDataSource(engine)
-                val videoRotate = getVideoRotation(srcUri!!)
-                val srcVideoResolution = getVideoResolution(srcUri, DEFAULT_FALLBACK_VIDEO_RESOLUTION)
+                val mediaInfo = probeSource()
+                val videoRotate = mediaInfo?.rotation ?: 0
+                val srcVideoResolution = mediaInfo?.takeIf { it.width > 0 && it.height > 0 }
+                    ?.let { Size(it.width, it.height) } ?: DEFAULT_FALLBACK_VIDEO_RESOLUTION
 
                 if (outputResolution == null) {
                     if (fillMode == FillMode.CUSTOM) {
@@ -177,9 +329,7 @@ class Mp4Composer : ComposerInterface {
                     }
                 }
 
-                if (timeScale < 2) {
-                    timeScale = 1
-                }
+                timeScale = Math.max(MIN_TIME_SCALE, Math.min(MAX_TIME_SCALE, timeScale))
 
                 Log.d(TAG, "rotation = " + (rotation.rotation + videoRotate))
                 Log.d(
@@ -193,8 +343,18 @@ class Mp4Composer : ComposerInterface {
                 Log.d(TAG, "fillMode = " + fillMode)
 
                 try {
+                    val mimeType = resolveVideoMimeType(outputResolution!!)
+                    engine.setVideoMimeType(mimeType)
                     if (bitrate < 0) {
-                        bitrate = calcBitRate(outputResolution!!.width, outputResolution!!.height)
+                        bitrate = calcBitRate(outputResolution!!.width, outputResolution!!.height, mimeType)
+                    }
+                    for (rendition in renditions) {
+                        val renditionBitrate = if (rendition.bitrate < 0) {
+                            calcBitRate(rendition.size.width, rendition.size.height, mimeType)
+                        } else {
+                            rendition.bitrate
+                        }
+                        engine.addRendition(rendition.destPath, rendition.size, renditionBitrate)
                     }
                     engine.composeFromVideoSource(
                         context,
@@ -212,6 +372,10 @@ class Mp4Composer : ComposerInterface {
                         flipHorizontal
                     )
                 } catch (e: Exception) {
+                    if (engine.isCanceled) {
+                        notifyCanceled()
+                        return@Runnable
+                    }
                     e.printStackTrace()
                     if (listener != null) {
                         listener!!.onFailed(e)
@@ -220,12 +384,16 @@ class Mp4Composer : ComposerInterface {
                     return@Runnable
                 }
             } else {
-                // FIXME hardcoded video output resolution
-                outputResolution = DEFAULT_FALLBACK_VIDEO_RESOLUTION
-                // outputResolution = new Size(640, 480);
-                timeScale = 1
-                bitrate = calcBitRate(outputResolution!!.width, outputResolution!!.height)
+                if (outputResolution == null) {
+                    outputResolution = DEFAULT_FALLBACK_VIDEO_RESOLUTION
+                }
+                timeScale = 1f
                 try {
+                    val mimeType = resolveVideoMimeType(outputResolution!!)
+                    engine.setVideoMimeType(mimeType)
+                    if (bitrate < 0) {
+                        bitrate = calcStaticBkgBitRate(mimeType)
+                    }
                     val staticImageResolution = Size(bkgBitmap!!.width, bkgBitmap!!.height)
                     engine.composeFromStaticImageSource(
                         bkgBitmap!!,
@@ -237,12 +405,17 @@ class Mp4Composer : ComposerInterface {
                         Rotation.fromInt(rotation.rotation), // FIXME assume portrait for now
                         staticImageResolution,
                         fillMode,
-                        fillModeCustomItem!!,
+                        fillModeCustomItem,
                         timeScale,
                         flipVertical,
-                        flipHorizontal
+                        flipHorizontal,
+                        staticBkgDurationMs * 1000
                     )
                 } catch (e: Exception) {
+                    if (engine.isCanceled) {
+                        notifyCanceled()
+                        return@Runnable
+                    }
                     e.printStackTrace()
                     if (listener != null) {
                         listener!!.onFailed(e)
@@ -252,6 +425,25 @@ class Mp4Composer : ComposerInterface {
                 }
             }
 
+            if (engine.isCanceled) {
+                notifyCanceled()
+                return@Runnable
+            }
+
+            if (faststart && !fragmentedOutput) {
+                try {
+                    Mp4Faststart.process(destPath)
+                    if (!isStaticImageBkgSource) {
+                        renditions.forEach { Mp4Faststart.process(it.destPath) }
+                    }
+                } catch (e: IOException) {
+                    e.printStackTrace()
+                    listener?.onFailed(e)
+                    executorService!!.shutdown()
+                    return@Runnable
+                }
+            }
+
             if (listener != null) {
                 listener!!.onCompleted()
             }
@@ -261,95 +453,92 @@ class Mp4Composer : ComposerInterface {
         return this
     }
 
-    fun cancel() {
-        getExecutorService().shutdownNow()
+    /**
+     * Stops composing within a pipeline step: codecs and EGL are released on the composing thread, the partial
+     * output is deleted and the listener gets [Listener.onCanceled]. Does nothing once the composition is over.
+     */
+    override fun cancel() {
+        canceled = true
+        engine?.cancel()
+    }
+
+    private fun notifyCanceled() {
+        File(destPath).delete()
+        renditions.forEach { File(it.destPath).delete() }
+        listener?.onCanceled()
+        executorService!!.shutdown()
     }
 
     private fun initializeUriDataSource(engine: Mp4ComposerEngine) {
         engine.setDataSource(srcUri, addedRequestHeaders)
     }
 
-    private fun getVideoRotation(videoUri: Uri): Int {
-        var mediaMetadataRetriever: MediaMetadataRetriever? = null
-        try {
-            mediaMetadataRetriever = MediaMetadataRetriever()
-            context?.let {
-                DataSourceUtil.setDataSource(
-                    it,
-                    videoUri,
-                    mediaExtractor = null,
-                    mediaMetadataRetriever = mediaMetadataRetriever,
-                    addedRequestHeaders = addedRequestHeaders
-                )
-            }
-            val orientation = mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION)
-            return orientation?.let { Integer.valueOf(it) } ?: 0
-        } catch (e: IllegalArgumentException) {
-            Log.e("MediaMetadataRetriever", "getVideoRotation IllegalArgumentException")
-            return 0
-        } catch (e: RuntimeException) {
-            Log.e("MediaMetadataRetriever", "getVideoRotation RuntimeException")
-            return 0
+    /**
+     * The engine probes the source again, which is then answered from the [MediaProbe] cache.
+     */
+    private fun probeSource(): MediaInfo? {
+        return try {
+            val context = requireNotNull(context) { "A context is needed to read $srcUri" }
+            MediaProbe.probe(context, srcUri!!, addedRequestHeaders)
         } catch (e: Exception) {
-            Log.e("MediaMetadataRetriever", "getVideoRotation Exception")
-            return 0
-        } finally {
-            try {
-                mediaMetadataRetriever?.release()
-            } catch (e: RuntimeException) {
-                Log.e(TAG, "Failed to release mediaMetadataRetriever.", e)
+            Log.e(TAG, "Can't probe $srcUri", e)
+            null
+        }
+    }
+
+    private fun resolveVideoMimeType(outputResolution: Size): String {
+        val avc = VideoFormatMimeType.AVC.format
+        val mimeType = when (videoFormatMimeType) {
+            VideoFormatMimeType.AVC -> avc
+            VideoFormatMimeType.HEVC, VideoFormatMimeType.AUTO -> {
+                val hevc = VideoFormatMimeType.HEVC.format
+                val encoder =
+                    EncoderCapabilities.findEncoder(context, hevc, outputResolution.width, outputResolution.height)
+                if (encoder?.isHardware == true) hevc else avc
             }
+            else -> EncoderCapabilities.selectMimeType(
+                context,
+                listOf(videoFormatMimeType.format, avc),
+                outputResolution.width,
+                outputResolution.height
+            ) ?: avc
         }
+        Log.d(TAG, "video mime type = $mimeType")
+        return mimeType
     }
 
-    private fun calcBitRate(width: Int, height: Int): Int {
-        val bitrate = (0.25 * 30.0 * width.toDouble() * height.toDouble()).toInt()
+    private fun calcBitRate(width: Int, height: Int, mimeType: String): Int {
+        val fps = if (frameRate > 0 && !isStaticImageBkgSource) frameRate.toDouble() else 30.0
+        var bitrate = (0.25 * fps * width.toDouble() * height.toDouble()).toInt()
+        if (mimeType == VideoFormatMimeType.HEVC.format) {
+            bitrate = (bitrate * HEVC_BITRATE_RATIO).toInt()
+        }
         Log.i(TAG, "bitrate=$bitrate")
         return bitrate
     }
 
-    private fun getVideoResolution(videoUri: Uri, defaultResolution: Size): Size {
-        var retriever: MediaMetadataRetriever? = null
-        try {
-            retriever = MediaMetadataRetriever()
-            context?.let {
-                DataSourceUtil.setDataSource(
-                    it,
-                    videoUri,
-                    mediaExtractor = null,
-                    mediaMetadataRetriever = retriever,
-                    addedRequestHeaders = addedRequestHeaders
-                )
-            }
-
-            val width = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH)
-            val height = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT)
+    private class Rendition(val destPath: String, val size: Size, val bitrate: Int)
 
-            return if (width != null && height != null) {
-                Size(Integer.valueOf(width), Integer.valueOf(height))
-            } else {
-                defaultResolution
-            }
-        } catch (e: IllegalArgumentException) {
-            Log.e("MediaMetadataRetriever", "getVideoResolution IllegalArgumentException")
-            return defaultResolution
-        } catch (e: RuntimeException) {
-            Log.e("MediaMetadataRetriever", "getVideoResolution RuntimeException")
-            return defaultResolution
-        } catch (e: Exception) {
-            Log.e("MediaMetadataRetriever", "getVideoResolution Exception")
-            return defaultResolution
-        } finally {
-            try {
-                retriever?.release()
-            } catch (e: RuntimeException) {
-                Log.e(TAG, "Failed to release mediaMetadataRetriever.", e)
-            }
+    /**
+     * A still background with a few stickers on top needs far less than a video of the same size.
+     */
+    private fun calcStaticBkgBitRate(mimeType: String): Int {
+        var bitrate = STATIC_BKG_BIT_RATE
+        if (mimeType == VideoFormatMimeType.HEVC.format) {
+            bitrate = (bitrate * HEVC_BITRATE_RATIO).toInt()
         }
+        Log.i(TAG, "bitrate=$bitrate")
+        return bitrate
     }
 
     companion object {
         private val TAG = Mp4Composer::class.java.simpleName
         private val DEFAULT_FALLBACK_VIDEO_RESOLUTION = Size(480, 720)
+        // HEVC needs about 60% of the AVC bitrate for the same quality
+        private const val HEVC_BITRATE_RATIO = 0.6
+        private const val STATIC_BKG_BIT_RATE = 2000000
+        const val DEFAULT_STATIC_BKG_DURATION_MS = 5000L
+        const val MIN_TIME_SCALE = 0.125f
+        const val MAX_TIME_SCALE = 8f
     }
 }
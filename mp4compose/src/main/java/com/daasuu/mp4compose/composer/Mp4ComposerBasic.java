@@ -15,10 +15,13 @@ import com.daasuu.mp4compose.VideoFormatMimeType;
 import com.daasuu.mp4compose.filter.GlFilter;
 import com.daasuu.mp4compose.logger.AndroidLogger;
 import com.daasuu.mp4compose.logger.Logger;
+import com.daasuu.mp4compose.mp4.Mp4Faststart;
 import com.daasuu.mp4compose.source.DataSource;
 import com.daasuu.mp4compose.source.FilePathDataSource;
 
+import java.io.File;
 import java.io.FileDescriptor;
+import java.io.IOException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -44,9 +47,6 @@ public class Mp4ComposerBasic implements ComposerInterface {
     private Listener listener;
     private FillMode fillMode = FillMode.PRESERVE_ASPECT_FIT;
     private FillModeCustomItem fillModeCustomItem;
-    // TODO: currently we do not use the timeScale feature. Also the timeScale ends up
-    // being converted into an int in the VideoComposer layer.
-    // See https://github.com/Automattic/stories-android/issues/685 for more context.
     private float timeScale = 1f; // should be in range 0.125 (-8X) to 8.0 (8X)
     private boolean isPitchChanged = false;
     private boolean flipVertical = false;
@@ -54,9 +54,11 @@ public class Mp4ComposerBasic implements ComposerInterface {
     private long trimStartMs = 0;
     private long trimEndMs = -1;
     private VideoFormatMimeType videoFormatMimeType = VideoFormatMimeType.AUTO;
+    private boolean faststart = false;
 
     private ExecutorService executorService;
-    private Mp4ComposerEngineBasic engine;
+    private volatile Mp4ComposerEngineBasic engine;
+    private volatile boolean canceled;
 
     private Logger logger;
 
@@ -173,6 +175,17 @@ public class Mp4ComposerBasic implements ComposerInterface {
         return this;
     }
 
+    /**
+     * Move the moov box in front of the media data once the file is complete, see {@link Mp4Faststart}.
+     *
+     * @param faststart Whether the output should be playable while it's being downloaded.
+     * @return The composer instance.
+     */
+    public Mp4ComposerBasic faststart(final boolean faststart) {
+        this.faststart = faststart;
+        return this;
+    }
+
     /**
      * Set the {@link Logger} that should be used. Defaults to {@link AndroidLogger} if none is set.
      *
@@ -223,6 +236,10 @@ public class Mp4ComposerBasic implements ComposerInterface {
                     logger = new AndroidLogger();
                 }
                 engine = new Mp4ComposerEngineBasic(logger);
+                if (canceled) {
+                    // canceled before the engine existed
+                    engine.cancel();
+                }
 
                 engine.setProgressCallback(new Mp4ComposerEngineBasic.ProgressCallback() {
                     @Override
@@ -343,6 +360,19 @@ public class Mp4ComposerBasic implements ComposerInterface {
                     return;
                 }
 
+                if (faststart && !engine.isCanceled()) {
+                    try {
+                        Mp4Faststart.process(destPath);
+                    } catch (IOException e) {
+                        logger.error(TAG, "Unable to move the moov box in front of the media data", e);
+                        notifyListenerOfFailureAndShutdown(e);
+                        return;
+                    }
+                }
+
+                if (engine.isCanceled() && destPath != null) {
+                    new File(destPath).delete();
+                }
                 if (listener != null) {
                     if (engine.isCanceled()) {
                         listener.onCanceled();
@@ -367,9 +397,12 @@ public class Mp4ComposerBasic implements ComposerInterface {
         }
     }
 
+    @Override
     public void cancel() {
-        if (engine != null) {
-            engine.cancel();
+        canceled = true;
+        final Mp4ComposerEngineBasic currentEngine = engine;
+        if (currentEngine != null) {
+            currentEngine.cancel();
         }
     }
 
@@ -5,7 +5,6 @@ import android.graphics.Bitmap
 import android.media.MediaCodecInfo
 import android.media.MediaExtractor
 import android.media.MediaFormat
-import android.media.MediaMetadataRetriever
 import android.media.MediaMuxer
 import android.util.Log
 import android.util.Size
@@ -14,13 +13,14 @@ import com.daasuu.mp4compose.FillMode
 import com.daasuu.mp4compose.FillModeCustomItem
 import com.daasuu.mp4compose.Rotation
 import com.daasuu.mp4compose.filter.GlFilter
+import com.daasuu.mp4compose.mp4.FragmentedMp4Writer
 
 import java.io.IOException
 
-import android.media.MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar
 import android.media.MediaFormat.MIMETYPE_VIDEO_AVC
 import android.net.Uri
 import com.daasuu.mp4compose.utils.DataSourceUtil
+import com.daasuu.mp4compose.utils.MediaProbe
 
 // Refer: https://github.com/ypresto/android-transcoder/blob/master/lib/src/main/java/net/ypresto/androidtranscoder/engine/MediaTranscoderEngine.java
 
@@ -33,14 +33,31 @@ internal class Mp4ComposerEngine {
     private var videoComposer: VideoComposer? = null
     private var audioComposer: IAudioComposer? = null
     private var mediaExtractor: MediaExtractor? = null
-    private var mediaMuxer: MediaMuxer? = null
+    private var muxer: SampleMuxer? = null
     private var progressCallback: ProgressCallback? = null
     private var durationUs: Long = 0
-    private var mediaMetadataRetriever: MediaMetadataRetriever? = null
+    private var useAsyncCodecs: Boolean = true
+    private var stagedPipeline: Boolean = false
+    private var eventLoop: CodecEventLoop? = null
+    private var fragmentedOutput: Boolean = false
+    private var fragmentListener: FragmentedMp4Writer.FragmentListener? = null
+    private var parallelSegments: Int = 1
+    private var segmentFilterFactory: (() -> GlFilter)? = null
+    private var videoMimeType: String = MIMETYPE_VIDEO_AVC
+    private var targetFrameRate: Int = 0
+    private val renditions = ArrayList<Rendition>()
+    private val renditionMuxers = ArrayList<SampleMuxer>()
 
     private var useStaticBkg: Boolean = false
+    private var staticBkgSurfaceInput: Boolean = true
+    private var staticBkgDurationUs: Long = 0
     private var bkgBitmap: Bitmap? = null
     private var context: Context? = null
+    @Volatile
+    private var canceled: Boolean = false
+
+    val isCanceled: Boolean
+        get() = canceled
 
     fun setDataSource(uri: Uri?, addedRequestHeaders: Map<String, String>?) {
         this.sourceUri = uri
@@ -51,6 +68,84 @@ internal class Mp4ComposerEngine {
         this.progressCallback = progressCallback
     }
 
+    /**
+     * When enabled (the default) codecs report their buffers through MediaCodec callbacks and the pipeline waits
+     * on those events, instead of polling every codec and sleeping whenever none of them had anything ready.
+     */
+    fun setUseAsyncCodecs(useAsyncCodecs: Boolean) {
+        this.useAsyncCodecs = useAsyncCodecs
+    }
+
+    /**
+     * Run the decoder feed, GL rendering and encoder draining of video sources on threads of their own, handing
+     * frames over through small bounded queues (see [StagedPipeline]), rather than stepping them all on this
+     * thread. Takes precedence over [setUseAsyncCodecs] for video sources going through a single pipeline.
+     */
+    fun setStagedPipeline(stagedPipeline: Boolean) {
+        this.stagedPipeline = stagedPipeline
+    }
+
+    /**
+     * When enabled (the default) a static background image is drawn through GL onto the encoder input surface,
+     * together with the filter. Otherwise it's converted to YUV 4:2:0 on the CPU and queued as raw input
+     * buffers, which not all encoders accept and which can't apply the filter.
+     */
+    fun setStaticImageSurfaceInput(surfaceInput: Boolean) {
+        this.staticBkgSurfaceInput = surfaceInput
+    }
+
+    /**
+     * Write a fragmented mp4 (a `moof` / `mdat` pair per GOP) instead of a regular one, [fragmentListener] being
+     * told as soon as each fragment is final in the output file.
+     */
+    fun setFragmentedOutput(fragmented: Boolean, fragmentListener: FragmentedMp4Writer.FragmentListener?) {
+        this.fragmentedOutput = fragmented
+        this.fragmentListener = fragmentListener
+    }
+
+    /**
+     * Transcode long videos in up to [segmentCount] keyframe aligned segments at once, each with its own codecs and
+     * a filter from [filterFactory] (filters hold GL state, they can't be shared between segments). Only applies to
+     * video sources at normal speed, everything else goes through a single pipeline.
+     */
+    fun setParallelSegments(segmentCount: Int, filterFactory: (() -> GlFilter)?) {
+        this.parallelSegments = segmentCount
+        this.segmentFilterFactory = filterFactory
+    }
+
+    /**
+     * Codec of the output video track, AVC by default. The caller makes sure an encoder exists for it.
+     */
+    fun setVideoMimeType(mimeType: String) {
+        this.videoMimeType = mimeType
+    }
+
+    /**
+     * Drop decoded frames above [frameRate] before rendering them, and encode at that rate. 0 (the default) keeps
+     * every frame, the encoder being told about [VIDEO_SOURCE_FRAME_RATE]. Only applies to video sources.
+     */
+    fun setTargetFrameRate(frameRate: Int) {
+        require(frameRate >= 0) { "Invalid frame rate $frameRate" }
+        this.targetFrameRate = frameRate
+    }
+
+    /**
+     * Also encode the composited video to [destPath] at [resolution] and [bitrate], out of the same decode and
+     * filter pass as the main output (letterboxed if the aspect ratio differs). The audio track is copied over
+     * unless the time scale changes it. Only applies to video sources, which then go through a single pipeline.
+     */
+    fun addRendition(destPath: String, resolution: Size, bitrate: Int) {
+        renditions.add(Rendition(destPath, resolution, bitrate))
+    }
+
+    /**
+     * Stops the pipeline at its next step, from any thread. The compose call then returns early, having released
+     * codecs, EGL and muxers, and leaves an incomplete output behind.
+     */
+    fun cancel() {
+        canceled = true
+    }
+
     @Throws(IOException::class)
     fun composeFromVideoSource(
         context: Context?,
@@ -63,7 +158,7 @@ internal class Mp4ComposerEngine {
         inputResolution: Size,
         fillMode: FillMode,
         fillModeCustomItem: FillModeCustomItem?,
-        timeScale: Int,
+        timeScale: Float,
         flipVertical: Boolean,
         flipHorizontal: Boolean
     ) {
@@ -87,12 +182,14 @@ internal class Mp4ComposerEngine {
         inputResolution: Size,
         fillMode: FillMode,
         fillModeCustomItem: FillModeCustomItem?,
-        timeScale: Int,
+        timeScale: Float,
         flipVertical: Boolean,
-        flipHorizontal: Boolean
+        flipHorizontal: Boolean,
+        durationUs: Long
     ) {
         this.useStaticBkg = true
         this.bkgBitmap = bkgBitmap
+        this.staticBkgDurationUs = durationUs
         compose(
             destPath, outputResolution, filter, bitrate, mute, rotation, inputResolution, fillMode,
             fillModeCustomItem, timeScale, flipVertical, flipHorizontal
@@ -110,67 +207,123 @@ internal class Mp4ComposerEngine {
         inputResolution: Size,
         fillMode: FillMode,
         fillModeCustomItem: FillModeCustomItem?,
-        timeScale: Int,
+        timeScale: Float,
         flipVertical: Boolean,
         flipHorizontal: Boolean
     ) {
         try {
-            mediaMuxer = MediaMuxer(destPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4)
+            muxer = createMuxer(destPath, fragmentListener)
             val videoOutputFormat =
-                MediaFormat.createVideoFormat(MIMETYPE_VIDEO_AVC, outputResolution.width, outputResolution.height)
-            val muxRender = MuxRender(mediaMuxer!!)
+                MediaFormat.createVideoFormat(videoMimeType, outputResolution.width, outputResolution.height)
+            val muxRender = MuxRender(muxer!!)
+            if (useAsyncCodecs && !(stagedPipeline && !useStaticBkg)) {
+                eventLoop = CodecEventLoop()
+            }
 
             if (!useStaticBkg) {
+                val uri = checkNotNull(sourceUri) { "No data source set" }
+                val sourceContext = checkNotNull(context) { "A context is needed to read $uri" }
+                // usually answered from the cache Mp4Composer filled, so only the extractor opens the source here
+                val mediaInfo = MediaProbe.probe(sourceContext, uri, addedRequestHeaders)
                 mediaExtractor = MediaExtractor()
-                mediaMetadataRetriever = MediaMetadataRetriever()
-
-                sourceUri?.let { uri ->
-                    context?.let {
-                        DataSourceUtil.setDataSource(
-                            it,
-                            uri,
-                            mediaExtractor = mediaExtractor,
-                            mediaMetadataRetriever = mediaMetadataRetriever,
-                            addedRequestHeaders = addedRequestHeaders
-                        )
-                    }
-                }
-
-                try {
-                    val duration = mediaMetadataRetriever?.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION)
-                    durationUs = duration?.let { java.lang.Long.parseLong(it) * 1000 } ?: 0
-                } catch (e: NumberFormatException) {
-                    durationUs = -1
-                }
-
-                Log.d(TAG, "Duration (us): $durationUs")
-
-                videoOutputFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitrate)
-                videoOutputFormat.setInteger(MediaFormat.KEY_FRAME_RATE, 30)
-                videoOutputFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1)
-                videoOutputFormat.setInteger(
-                    MediaFormat.KEY_COLOR_FORMAT,
-                    MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface
+                DataSourceUtil.setDataSource(
+                    sourceContext,
+                    uri,
+                    mediaExtractor = mediaExtractor,
+                    addedRequestHeaders = addedRequestHeaders
                 )
 
-                // identify track indices
-                val format = mediaExtractor!!.getTrackFormat(0)
-                val mime = format.getString(MediaFormat.KEY_MIME)
+                // of the output, which progress is measured against
+                durationUs = (mediaInfo.durationUs / timeScale).toLong()
+                Log.d(TAG, "Duration (us): $durationUs")
 
-                val videoTrackIndex: Int
-                val audioTrackIndex: Int
+                configureVideoSourceOutput(videoOutputFormat, bitrate)
 
-                if (mime!!.startsWith("video/")) {
-                    videoTrackIndex = 0
-                    audioTrackIndex = 1
+                if (!mediaInfo.hasVideo) {
+                    throw IllegalStateException("No video track in $uri")
+                }
+                val videoTrackIndex = mediaInfo.videoTrackIndex
+                val audioTrackIndex = mediaInfo.audioTrackIndex
+
+                val filterFactory = segmentFilterFactory
+                val segments = if (parallelSegments > 1 && filterFactory != null && timeScale == 1f &&
+                    renditions.isEmpty()
+                ) {
+                    SegmentedVideoTranscoder.planSegments(
+                        sourceContext,
+                        uri,
+                        addedRequestHeaders,
+                        mediaInfo,
+                        videoOutputFormat,
+                        parallelSegments
+                    )
                 } else {
-                    videoTrackIndex = 1
-                    audioTrackIndex = 0
+                    emptyList()
+                }
+                if (filterFactory != null && segments.isNotEmpty()) {
+                    if (mediaInfo.hasAudio && !mute) {
+                        audioComposer = AudioComposer(mediaExtractor!!, audioTrackIndex, muxRender)
+                        audioComposer!!.setup()
+                        mediaExtractor!!.selectTrack(audioTrackIndex)
+                    }
+                    SegmentedVideoTranscoder(sourceContext, uri, addedRequestHeaders, videoTrackIndex, segments)
+                        .transcode(
+                            muxRender,
+                            audioComposer,
+                            durationUs,
+                            outputFormatFactory = {
+                                configureVideoSourceOutput(
+                                    MediaFormat.createVideoFormat(
+                                        videoMimeType,
+                                        outputResolution.width,
+                                        outputResolution.height
+                                    ),
+                                    bitrate
+                                )
+                            },
+                            setUpComposer = { composer ->
+                                composer.setUp(
+                                    filterFactory(),
+                                    rotation,
+                                    outputResolution,
+                                    inputResolution,
+                                    fillMode,
+                                    fillModeCustomItem,
+                                    flipVertical,
+                                    flipHorizontal
+                                )
+                                if (targetFrameRate > 0) {
+                                    composer.setTargetFrameRate(targetFrameRate)
+                                }
+                            },
+                            progressCallback = progressCallback,
+                            isCanceled = { canceled }
+                        )
+                    if (!canceled) {
+                        muxer!!.stop()
+                    }
+                    return
                 }
 
                 // setup video composer
                 videoComposer =
                     VideoComposer(mediaExtractor!!, videoTrackIndex, videoOutputFormat, muxRender, timeScale)
+                for (rendition in renditions) {
+                    val renditionMuxer = createMuxer(rendition.destPath, null)
+                    renditionMuxers.add(renditionMuxer)
+                    val renditionMuxRender = MuxRender(renditionMuxer)
+                    val renditionFormat = MediaFormat.createVideoFormat(
+                        videoMimeType,
+                        rendition.resolution.width,
+                        rendition.resolution.height
+                    )
+                    configureVideoSourceOutput(renditionFormat, rendition.bitrate)
+                    videoComposer!!.addRendition(RenditionEncoder(renditionFormat, renditionMuxRender))
+                    if (mediaInfo.hasAudio && !mute && timeScale == 1f) {
+                        // passed through as is, see below
+                        muxRender.mirrorAudioTo(renditionMuxRender)
+                    }
+                }
                 videoComposer!!.setUp(
                     filter,
                     rotation,
@@ -179,14 +332,26 @@ internal class Mp4ComposerEngine {
                     fillMode,
                     fillModeCustomItem,
                     flipVertical,
-                    flipHorizontal
+                    flipHorizontal,
+                    eventLoop
                 )
+                val outputFrameRate = if (targetFrameRate > 0) {
+                    targetFrameRate
+                } else {
+                    frameRateOf(mediaInfo.trackFormats[videoTrackIndex]) ?: VIDEO_SOURCE_FRAME_RATE
+                }
+                if (targetFrameRate > 0 || timeScale > 1f) {
+                    // fast forward only renders the frames needed for the source frame rate
+                    videoComposer!!.setTargetFrameRate(outputFrameRate)
+                }
+                if (timeScale < 1f) {
+                    videoComposer!!.setMinimumFrameRate(outputFrameRate)
+                }
                 mediaExtractor!!.selectTrack(videoTrackIndex)
                 // setup audio if present and not muted
-                if (mediaMetadataRetriever!!
-                        .extractMetadata(MediaMetadataRetriever.METADATA_KEY_HAS_AUDIO) != null && !mute) {
+                if (mediaInfo.hasAudio && !mute) {
                     // has Audio video
-                    if (timeScale < 2) {
+                    if (timeScale == 1f) {
                         audioComposer = AudioComposer(mediaExtractor!!, audioTrackIndex, muxRender)
                     } else {
                         audioComposer = RemixAudioComposer(
@@ -194,7 +359,8 @@ internal class Mp4ComposerEngine {
                             audioTrackIndex,
                             mediaExtractor!!.getTrackFormat(audioTrackIndex),
                             muxRender,
-                            timeScale
+                            timeScale,
+                            eventLoop
                         )
                     }
 
@@ -202,20 +368,42 @@ internal class Mp4ComposerEngine {
 
                     mediaExtractor!!.selectTrack(audioTrackIndex)
 
-                    runPipelines()
+                    if (stagedPipeline) {
+                        runPipelinesStaged()
+                    } else {
+                        eventLoop?.let { runPipelinesAsync(it) } ?: runPipelines()
+                    }
+                } else if (stagedPipeline) {
+                    runPipelinesStaged()
                 } else {
                     // no audio video
-                    runPipelinesNoAudio()
+                    eventLoop?.let { runPipelinesAsync(it) } ?: runPipelinesNoAudio()
                 }
             } else {
-                videoOutputFormat.setInteger(MediaFormat.KEY_BIT_RATE, BIT_RATE)
+                if (renditions.isNotEmpty()) {
+                    Log.w(TAG, "Renditions are only encoded from video sources, skipping them")
+                }
+                videoOutputFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitrate)
                 videoOutputFormat.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE)
                 videoOutputFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL)
-                @Suppress("DEPRECATION")
-                videoOutputFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, COLOR_FormatYUV420SemiPlanar)
+                if (staticBkgSurfaceInput) {
+                    videoOutputFormat.setInteger(
+                        MediaFormat.KEY_COLOR_FORMAT,
+                        MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface
+                    )
+                }
+                // otherwise VideoComposer picks the YUV color format the encoder supports
+                durationUs = staticBkgDurationUs
 
                 // setup video composer for static background image
-                videoComposer = VideoComposer(bkgBitmap!!, videoOutputFormat, muxRender, timeScale)
+                videoComposer = VideoComposer(
+                    bkgBitmap!!,
+                    videoOutputFormat,
+                    muxRender,
+                    timeScale,
+                    staticBkgDurationUs,
+                    staticBkgSurfaceInput
+                )
                 videoComposer!!.setUp(
                     filter,
                     rotation,
@@ -224,12 +412,16 @@ internal class Mp4ComposerEngine {
                     fillMode,
                     fillModeCustomItem,
                     flipVertical,
-                    flipHorizontal
+                    flipHorizontal,
+                    eventLoop
                 )
-                runPipelinesNoAudioForStaticBackground()
+                eventLoop?.let { runPipelinesAsync(it) } ?: runPipelinesNoAudioForStaticBackground()
             }
 
-            mediaMuxer!!.stop()
+            if (!canceled) {
+                muxer!!.stop()
+                renditionMuxers.forEach { it.stop() }
+            }
         } finally {
             try {
                 if (videoComposer != null) {
@@ -248,26 +440,60 @@ internal class Mp4ComposerEngine {
                 Log.e(TAG, "Could not shutdown mediaExtractor, codecs and mediaMuxer pipeline.", e)
             }
 
+            eventLoop?.release()
+            eventLoop = null
+
             try {
-                if (mediaMuxer != null) {
-                    mediaMuxer!!.release()
-                    mediaMuxer = null
+                if (muxer != null) {
+                    muxer!!.release()
+                    muxer = null
                 }
-            } catch (e: RuntimeException) {
-                Log.e(TAG, "Failed to release mediaMuxer.", e)
+            } catch (e: Exception) {
+                Log.e(TAG, "Failed to release muxer.", e)
             }
-
-            try {
-                if (mediaMetadataRetriever != null) {
-                    mediaMetadataRetriever!!.release()
-                    mediaMetadataRetriever = null
+            for (renditionMuxer in renditionMuxers) {
+                try {
+                    renditionMuxer.release()
+                } catch (e: Exception) {
+                    Log.e(TAG, "Failed to release rendition muxer.", e)
                 }
-            } catch (e: RuntimeException) {
-                Log.e(TAG, "Failed to release mediaMetadataRetriever.", e)
             }
+            renditionMuxers.clear()
+        }
+    }
+
+    private fun createMuxer(destPath: String, fragmentListener: FragmentedMp4Writer.FragmentListener?): SampleMuxer {
+        return if (fragmentedOutput) {
+            FragmentedSampleMuxer(destPath, fragmentListener)
+        } else {
+            PlatformSampleMuxer(MediaMuxer(destPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4))
         }
     }
 
+    private fun configureVideoSourceOutput(format: MediaFormat, bitrate: Int): MediaFormat {
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate)
+        format.setInteger(
+            MediaFormat.KEY_FRAME_RATE,
+            if (targetFrameRate > 0) targetFrameRate else VIDEO_SOURCE_FRAME_RATE
+        )
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1)
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface)
+        return format
+    }
+
+    private fun frameRateOf(format: MediaFormat): Int? {
+        if (!format.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+            return null
+        }
+        // stored as an integer or a float depending on the extractor
+        val frameRate = try {
+            format.getInteger(MediaFormat.KEY_FRAME_RATE)
+        } catch (e: ClassCastException) {
+            Math.round(format.getFloat(MediaFormat.KEY_FRAME_RATE))
+        }
+        return frameRate.takeIf { it > 0 }
+    }
+
     private fun runPipelines() {
         var loopCount: Long = 0
         if (durationUs <= 0) {
@@ -275,7 +501,7 @@ internal class Mp4ComposerEngine {
                 progressCallback!!.onProgress(PROGRESS_UNKNOWN)
             } // unknown
         }
-        while (!(videoComposer!!.isFinished && audioComposer!!.isFinished)) {
+        while (!canceled && !(videoComposer!!.isFinished && audioComposer!!.isFinished)) {
             val stepped = videoComposer!!.stepPipeline() || audioComposer!!.stepPipeline()
             loopCount++
             if (durationUs > 0 && loopCount % PROGRESS_INTERVAL_STEPS == 0L) {
@@ -309,7 +535,7 @@ internal class Mp4ComposerEngine {
                 progressCallback!!.onProgress(PROGRESS_UNKNOWN)
             } // unknown
         }
-        while (!videoComposer!!.isFinished) {
+        while (!canceled && !videoComposer!!.isFinished) {
             val stepped = videoComposer!!.stepPipeline()
             loopCount++
             if (durationUs > 0 && loopCount % PROGRESS_INTERVAL_STEPS == 0L) {
@@ -338,7 +564,7 @@ internal class Mp4ComposerEngine {
                 progressCallback!!.onProgress(PROGRESS_UNKNOWN)
             } // unknown
         }
-        while (!videoComposer!!.isFinished) {
+        while (!canceled && !videoComposer!!.isFinished) {
             val stepped = videoComposer!!.stepPipelineStaticImageBackground()
             loopCount++
             if (durationUs > 0 && loopCount % PROGRESS_INTERVAL_STEPS == 0L) {
@@ -360,6 +586,73 @@ internal class Mp4ComposerEngine {
         }
     }
 
+    private fun runPipelinesAsync(eventLoop: CodecEventLoop) {
+        var loopCount: Long = 0
+        if (durationUs <= 0) {
+            if (progressCallback != null) {
+                progressCallback!!.onProgress(PROGRESS_UNKNOWN)
+            } // unknown
+        }
+        val audioComposer = audioComposer
+        while (!canceled && !(videoComposer!!.isFinished && (audioComposer == null || audioComposer.isFinished))) {
+            var stepped = videoComposer!!.stepPipelineAsync()
+            if (audioComposer != null) {
+                stepped = (audioComposer as IAsyncComposer).stepPipelineAsync() || stepped
+            }
+            // only block when there's nothing left to do with the buffers we already have
+            if (!eventLoop.dispatch(if (stepped) 0 else CODEC_EVENT_TIMEOUT_MS) && !stepped) {
+                throw RuntimeException("Timed out waiting for codec events")
+            }
+            loopCount++
+            if (durationUs > 0 && loopCount % PROGRESS_INTERVAL_STEPS == 0L) {
+                val videoProgress = if (videoComposer!!.isFinished) 1.0 else Math.min(
+                    1.0,
+                    videoComposer!!.writtenPresentationTimeUs.toDouble() / durationUs
+                )
+                val progress = if (audioComposer == null) videoProgress else {
+                    val audioProgress = if (audioComposer.isFinished) 1.0 else Math.min(
+                        1.0,
+                        audioComposer.writtenPresentationTimeUs.toDouble() / durationUs
+                    )
+                    (videoProgress + audioProgress) / 2.0
+                }
+                if (progressCallback != null) {
+                    progressCallback!!.onProgress(progress)
+                }
+            }
+        }
+    }
+
+    private fun runPipelinesStaged() {
+        if (durationUs <= 0) {
+            if (progressCallback != null) {
+                progressCallback!!.onProgress(PROGRESS_UNKNOWN)
+            } // unknown
+        }
+        val videoComposer = videoComposer!!
+        val audioComposer = audioComposer
+        videoComposer.runStaged(audioComposer, { canceled }) {
+            if (durationUs > 0) {
+                val videoProgress = if (videoComposer.isFinished) 1.0 else Math.min(
+                    1.0,
+                    videoComposer.writtenPresentationTimeUs.toDouble() / durationUs
+                )
+                val progress = if (audioComposer == null) videoProgress else {
+                    val audioProgress = if (audioComposer.isFinished) 1.0 else Math.min(
+                        1.0,
+                        audioComposer.writtenPresentationTimeUs.toDouble() / durationUs
+                    )
+                    (videoProgress + audioProgress) / 2.0
+                }
+                if (progressCallback != null) {
+                    progressCallback!!.onProgress(progress)
+                }
+            }
+        }
+    }
+
+    private class Rendition(val destPath: String, val resolution: Size, val bitrate: Int)
+
     internal interface ProgressCallback {
         /**
          * Called to notify progress. Same thread which initiated transcode is used.
@@ -374,9 +667,11 @@ internal class Mp4ComposerEngine {
         private val PROGRESS_UNKNOWN = -1.0
         private val SLEEP_TO_WAIT_TRACK_TRANSCODERS: Long = 10
         private val PROGRESS_INTERVAL_STEPS: Long = 10
+        private val CODEC_EVENT_TIMEOUT_MS: Long = 10000
 
-        private val BIT_RATE = 2000000
         private val FRAME_RATE = 20
+        // what the encoder is told when the source frames are all kept, it's only a hint for rate control then
+        private const val VIDEO_SOURCE_FRAME_RATE = 30
         private val I_FRAME_INTERVAL = 5
     }
 }
@@ -1,7 +1,6 @@
 package com.daasuu.mp4compose.composer;
 
 import android.media.MediaCodecInfo;
-import android.media.MediaCodecList;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.media.MediaMetadataRetriever;
@@ -18,9 +17,12 @@ import com.daasuu.mp4compose.VideoFormatMimeType;
 import com.daasuu.mp4compose.filter.GlFilter;
 import com.daasuu.mp4compose.logger.Logger;
 import com.daasuu.mp4compose.source.DataSource;
+import com.daasuu.mp4compose.utils.EncoderCapabilities;
 
 import java.io.FileDescriptor;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 // Refer: https://github.com/ypresto/android-transcoder/blob/master/lib/src/main/
 // java/net/ypresto/androidtranscoder/engine/MediaTranscoderEngine.java
@@ -54,9 +56,6 @@ class Mp4ComposerEngineBasic {
         this.progressCallback = progressCallback;
     }
 
-    // TODO: currently we do not use the timeScale feature. Also the timeScale ends up
-    // being converted into an int in the VideoComposer layer.
-    // See https://github.com/Automattic/stories-android/issues/685 for more context.
     void compose(
             final DataSource srcDataSource,
             final String destSrc,
@@ -106,7 +105,7 @@ class Mp4ComposerEngineBasic {
 
             logger.debug(TAG, "Duration (us): " + durationUs);
 
-            MuxRender muxRender = new MuxRender(mediaMuxer);
+            MuxRender muxRender = new MuxRender(new PlatformSampleMuxer(mediaMuxer));
 
             // identify track indices
             int videoTrackIndex = -1;
@@ -135,7 +134,7 @@ class Mp4ComposerEngineBasic {
                     videoTrackIndex,
                     actualVideoOutputFormat,
                     muxRender,
-                    (int) timeScale
+                    timeScale
             );
             videoComposer.setUp(
                     filter,
@@ -193,7 +192,10 @@ class Mp4ComposerEngineBasic {
                 runPipelinesNoAudio();
             }
 
-            mediaMuxer.stop();
+            if (!canceled) {
+                // the partial output is deleted when canceled
+                mediaMuxer.stop();
+            }
         } finally {
             try {
                 if (videoComposer != null) {
@@ -243,51 +245,26 @@ class Mp4ComposerEngineBasic {
                                                                             final int bitrate,
                                                                             @NonNull final Size outputResolution,
                                                                             final int iFrameInterval) {
-        final MediaCodecList mediaCodecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
-
+        final List<String> candidates = new ArrayList<>();
         if (mimeType != VideoFormatMimeType.AUTO) {
-            final MediaFormat mediaFormat = createVideoFormat(
-                    mimeType.getFormat(),
-                    bitrate,
-                    outputResolution,
-                    iFrameInterval
-            );
-            if (mediaCodecList.findEncoderForFormat(mediaFormat) != null) {
-                return mediaFormat;
-            }
+            candidates.add(mimeType.getFormat());
         }
-
-        final MediaFormat hevcMediaFormat = createVideoFormat(
-                VideoFormatMimeType.HEVC.getFormat(),
-                bitrate,
-                outputResolution,
-                iFrameInterval
+        candidates.add(VideoFormatMimeType.HEVC.getFormat());
+        candidates.add(VideoFormatMimeType.AVC.getFormat());
+        candidates.add(VideoFormatMimeType.MPEG4.getFormat());
+
+        // answered from the probed encoder capabilities, MediaCodecList is only walked once per process
+        String selected = EncoderCapabilities.selectMimeType(
+                null,
+                candidates,
+                outputResolution.getWidth(),
+                outputResolution.getHeight(),
+                bitrate
         );
-        if (mediaCodecList.findEncoderForFormat(hevcMediaFormat) != null) {
-            return hevcMediaFormat;
+        if (selected == null) {
+            selected = VideoFormatMimeType.H263.getFormat();
         }
-
-        final MediaFormat avcMediaFormat = createVideoFormat(
-                VideoFormatMimeType.AVC.getFormat(),
-                bitrate,
-                outputResolution,
-                iFrameInterval
-        );
-        if (mediaCodecList.findEncoderForFormat(avcMediaFormat) != null) {
-            return avcMediaFormat;
-        }
-
-        final MediaFormat mp4vesMediaFormat = createVideoFormat(
-                VideoFormatMimeType.MPEG4.getFormat(),
-                bitrate,
-                outputResolution,
-                iFrameInterval
-        );
-        if (mediaCodecList.findEncoderForFormat(mp4vesMediaFormat) != null) {
-            return mp4vesMediaFormat;
-        }
-
-        return createVideoFormat(VideoFormatMimeType.H263.getFormat(), bitrate, outputResolution, iFrameInterval);
+        return createVideoFormat(selected, bitrate, outputResolution, iFrameInterval);
     }
 
     @NonNull
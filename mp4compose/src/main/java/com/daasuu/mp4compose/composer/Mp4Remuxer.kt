@@ -0,0 +1,399 @@
+package com.daasuu.mp4compose.composer
+
+import android.annotation.SuppressLint
+import android.content.Context
+import android.media.MediaCodec
+import android.media.MediaExtractor
+import android.media.MediaFormat
+import android.media.MediaMuxer
+import android.net.Uri
+import android.util.Log
+import android.util.Size
+
+import com.daasuu.mp4compose.FillMode
+import com.daasuu.mp4compose.filter.GlFilter
+import com.daasuu.mp4compose.mp4.Mp4Faststart
+import com.daasuu.mp4compose.utils.DataSourceUtil
+
+import java.io.File
+import java.nio.ByteBuffer
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+
+/**
+ * Copies the compressed samples of a video straight from a [MediaExtractor] into a [MediaMuxer], without
+ * decoding or encoding anything. This is only bound by I/O and keeps the original quality, but it can't resize,
+ * filter or otherwise alter the frames. A [size] the source doesn't already have, or a [filter], make the remux
+ * fail with an [IllegalStateException] up front, the caller being expected to transcode instead. [fillMode] only
+ * matters when resizing, so it's ignored.
+ *
+ * Audio tracks can be dropped with [mute], and any other track with [dropTrackMimeTypePrefix]. A [trim] only
+ * re-encodes the video GOPs it cuts through.
+ */
+class Mp4Remuxer(private val srcUri: Uri, private val destPath: String) : ComposerInterface {
+    private var context: Context? = null
+    private var addedRequestHeaders: Map<String, String>? = null
+    private var mute = false
+    private var size: Size? = null
+    private var filter: GlFilter? = null
+    private val droppedMimeTypePrefixes = ArrayList<String>()
+    private var listener: Listener? = null
+    private var faststart = false
+    private var trimStartMs = 0L
+    private var trimEndMs = -1L
+
+    private var executorService: ExecutorService? = null
+
+    fun with(context: Context): Mp4Remuxer {
+        // needed for Uri handling (content resolver)
+        this.context = context
+        return this
+    }
+
+    fun addedHeaders(headers: Map<String, String>?): Mp4Remuxer {
+        this.addedRequestHeaders = headers
+        return this
+    }
+
+    /**
+     * The size the output has to be, as displayed (rotation applied). Samples are copied as they are, so the
+     * source video has to be that size already.
+     */
+    override fun size(size: Size): Mp4Remuxer {
+        this.size = size
+        return this
+    }
+
+    override fun fillMode(fillMode: FillMode): Mp4Remuxer {
+        return this
+    }
+
+    /**
+     * Frames can't be filtered without transcoding them, so any filter makes the remux fail.
+     */
+    override fun filter(filter: GlFilter?): Mp4Remuxer {
+        this.filter = filter
+        return this
+    }
+
+    override fun mute(mute: Boolean): Mp4Remuxer {
+        this.mute = mute
+        return this
+    }
+
+    /**
+     * Leaves out of the output every track whose mime type starts with [mimeTypePrefix] (i.e. "audio/", "text/").
+     */
+    fun dropTrackMimeTypePrefix(mimeTypePrefix: String): Mp4Remuxer {
+        droppedMimeTypePrefixes.add(mimeTypePrefix)
+        return this
+    }
+
+    /**
+     * Move the `moov` box in front of the media data once all samples are copied, see [Mp4Faststart].
+     */
+    fun faststart(faststart: Boolean): Mp4Remuxer {
+        this.faststart = faststart
+        return this
+    }
+
+    /**
+     * Keep only what's presented from [trimStartMs] until [trimEndMs] (-1 for the end of the source), starting
+     * the output at 0. The video GOPs fully inside that window are copied and the ones it cuts through are
+     * re-encoded (see [SmartTrimmer]), so trimming costs about two GOPs of transcoding whatever the length kept.
+     * Other tracks are cut on their sync samples, which for audio is every sample.
+     */
+    fun trim(trimStartMs: Long, trimEndMs: Long): Mp4Remuxer {
+        require(trimStartMs >= 0) { "Invalid trim start: $trimStartMs" }
+        require(trimEndMs == -1L || trimEndMs > trimStartMs) { "Invalid trim end: $trimEndMs" }
+        this.trimStartMs = trimStartMs
+        this.trimEndMs = trimEndMs
+        return this
+    }
+
+    override fun listener(listener: Listener): Mp4Remuxer {
+        this.listener = listener
+        return this
+    }
+
+    private fun getExecutorService(): ExecutorService {
+        if (executorService == null) {
+            executorService = Executors.newSingleThreadExecutor()
+        }
+        return executorService!!
+    }
+
+    override fun start(): Mp4Remuxer {
+        getExecutorService().execute(Runnable {
+            listener?.onStart()
+            val completed: Boolean
+            try {
+                completed = remux()
+                if (completed && faststart) {
+                    Mp4Faststart.process(destPath)
+                }
+            } catch (e: Exception) {
+                Log.e(TAG, "Could not remux $srcUri", e)
+                File(destPath).delete()
+                listener?.onFailed(e)
+                executorService!!.shutdown()
+                return@Runnable
+            }
+            if (completed) {
+                listener?.onCompleted()
+            } else {
+                File(destPath).delete()
+                listener?.onCanceled()
+            }
+            executorService!!.shutdown()
+        })
+        return this
+    }
+
+    override fun cancel() {
+        getExecutorService().shutdownNow()
+    }
+
+    /**
+     * @return false if the thread got interrupted before all samples were copied.
+     */
+    @SuppressLint("WrongConstant")
+    private fun remux(): Boolean {
+        val extractor = MediaExtractor()
+        var muxer: MediaMuxer? = null
+        var muxerStarted = false
+        var headSpool: SpoolSampleMuxer? = null
+        var tailSpool: SpoolSampleMuxer? = null
+        try {
+            check(filter == null) { "Frames can't be filtered without transcoding them" }
+            val context = requireNotNull(context) { "A context is needed to read $srcUri" }
+            DataSourceUtil.setDataSource(
+                context,
+                srcUri,
+                mediaExtractor = extractor,
+                addedRequestHeaders = addedRequestHeaders
+            )
+
+            // source track index -> muxer track index
+            val trackMap = HashMap<Int, Int>()
+            var maxSampleSize = DEFAULT_BUFFER_SIZE
+            var durationUs = 0L
+            var rotation = 0
+            var videoTrackIndex = -1
+            muxer = MediaMuxer(destPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4)
+
+            for (trackIndex in 0 until extractor.trackCount) {
+                val format = extractor.getTrackFormat(trackIndex)
+                val mime = format.getString(MediaFormat.KEY_MIME) ?: continue
+                if (!shouldKeepTrack(mime)) {
+                    Log.d(TAG, "dropping track $trackIndex ($mime)")
+                    continue
+                }
+                if (mime.startsWith(VIDEO_PREFIX) && videoTrackIndex < 0) {
+                    videoTrackIndex = trackIndex
+                }
+                if (mime.startsWith(VIDEO_PREFIX) && format.containsKey(MediaFormat.KEY_ROTATION)) {
+                    rotation = format.getInteger(MediaFormat.KEY_ROTATION)
+                }
+                if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+                    maxSampleSize = Math.max(maxSampleSize, format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE))
+                }
+                if (format.containsKey(MediaFormat.KEY_DURATION)) {
+                    durationUs = Math.max(durationUs, format.getLong(MediaFormat.KEY_DURATION))
+                }
+                // throws IllegalStateException for formats the mp4 container can't carry, the caller is then
+                // expected to transcode instead
+                trackMap[trackIndex] = muxer.addTrack(format)
+                extractor.selectTrack(trackIndex)
+            }
+
+            if (trackMap.isEmpty()) {
+                throw IllegalStateException("No track left to remux in $srcUri")
+            }
+            size?.let { checkVideoSize(extractor, videoTrackIndex, rotation, it) }
+
+            // source track index -> window of it to copy, only when trimming
+            val windows = HashMap<Int, SmartTrimmer.Range>()
+            val trimStartUs = trimStartMs * 1000
+            var copiedVideoPrefix: ByteArray? = null
+            val videoFormat = if (videoTrackIndex >= 0) extractor.getTrackFormat(videoTrackIndex) else null
+            if (trimStartMs > 0 || trimEndMs >= 0) {
+                val trimEndUs = if (trimEndMs < 0) Long.MAX_VALUE else trimEndMs * 1000
+                for (trackIndex in trackMap.keys) {
+                    windows[trackIndex] = SmartTrimmer.Range(trimStartUs, trimEndUs)
+                }
+                if (videoFormat != null) {
+                    val trimmer = SmartTrimmer(
+                        context,
+                        srcUri,
+                        addedRequestHeaders,
+                        videoTrackIndex,
+                        trimStartUs,
+                        trimEndUs
+                    )
+                    trimmer.plan()
+                    headSpool = trimmer.head?.let { trimmer.encode(it, videoFormat) }
+                    tailSpool = trimmer.tail?.let { trimmer.encode(it, videoFormat) }
+                    val copied = trimmer.copied
+                    if (copied != null) {
+                        windows[videoTrackIndex] = copied
+                        // back to the source parameter sets after the re-encoded head
+                        copiedVideoPrefix = headSpool?.format?.let {
+                            SpoolSampleMuxer.inBandCodecConfig(it, videoFormat)
+                        }
+                    } else {
+                        windows.remove(videoTrackIndex)
+                        extractor.unselectTrack(videoTrackIndex)
+                    }
+                }
+                durationUs = Math.min(durationUs, trimEndUs) - trimStartUs
+                extractor.seekTo(trimStartUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC)
+            }
+
+            // the rotation is a container hint, it's not part of the compressed samples
+            muxer.setOrientationHint(rotation)
+            muxer.start()
+            muxerStarted = true
+
+            headSpool?.let { muxer.writeSpool(it, trackMap.getValue(videoTrackIndex), videoFormat!!, trimStartUs) }
+
+            val buffer = ByteBuffer.allocateDirect(maxSampleSize + (copiedVideoPrefix?.size ?: 0))
+            val bufferInfo = MediaCodec.BufferInfo()
+            // tracks whose window start has been reached
+            val startedTracks = HashSet<Int>()
+            var lastReportedProgress = 0.0
+            while (true) {
+                if (Thread.currentThread().isInterrupted) {
+                    return false
+                }
+
+                val trackIndex = extractor.sampleTrackIndex
+                if (trackIndex < 0) {
+                    break
+                }
+
+                var offset = 0
+                val window = windows[trackIndex]
+                if (window != null) {
+                    val isSync = extractor.sampleFlags and MediaExtractor.SAMPLE_FLAG_SYNC != 0
+                    if (isSync && extractor.sampleTime >= window.endUs) {
+                        extractor.unselectTrack(trackIndex)
+                        continue
+                    }
+                    if (trackIndex !in startedTracks) {
+                        if (!isSync || extractor.sampleTime < window.startUs) {
+                            extractor.advance()
+                            continue
+                        }
+                        startedTracks.add(trackIndex)
+                        if (trackIndex == videoTrackIndex && copiedVideoPrefix != null) {
+                            buffer.clear()
+                            buffer.put(copiedVideoPrefix)
+                            offset = copiedVideoPrefix.size
+                        }
+                    }
+                }
+
+                val sampleSize = extractor.readSampleData(buffer, offset)
+                if (sampleSize < 0) {
+                    break
+                }
+                bufferInfo.set(
+                    0,
+                    offset + sampleSize,
+                    extractor.sampleTime - trimStartUs,
+                    extractor.sampleFlags.toBufferFlags()
+                )
+                muxer.writeSampleData(trackMap.getValue(trackIndex), buffer, bufferInfo)
+
+                if (durationUs > 0) {
+                    val progress = Math.min(1.0, bufferInfo.presentationTimeUs.toDouble() / durationUs)
+                    if (progress - lastReportedProgress >= PROGRESS_REPORT_STEP) {
+                        lastReportedProgress = progress
+                        listener?.onProgress(progress)
+                    }
+                }
+                extractor.advance()
+            }
+
+            tailSpool?.let { muxer.writeSpool(it, trackMap.getValue(videoTrackIndex), videoFormat!!, trimStartUs) }
+            listener?.onProgress(1.0)
+            return true
+        } catch (e: InterruptedException) {
+            // canceled while re-encoding a trim boundary
+            return false
+        } finally {
+            headSpool?.release()
+            tailSpool?.release()
+            extractor.release()
+            try {
+                if (muxerStarted) {
+                    muxer?.stop()
+                }
+                muxer?.release()
+            } catch (e: RuntimeException) {
+                Log.e(TAG, "Failed to release muxer.", e)
+            }
+        }
+    }
+
+    /**
+     * Writes re-encoded trim boundary samples, with their parameter sets in band if they differ from the source
+     * ones the track was declared with.
+     */
+    private fun MediaMuxer.writeSpool(
+        spool: SpoolSampleMuxer,
+        muxerTrackIndex: Int,
+        sourceFormat: MediaFormat,
+        trimStartUs: Long
+    ) {
+        // no frame presented inside the range
+        val format = spool.format ?: return
+        spool.replay(SpoolSampleMuxer.inBandCodecConfig(sourceFormat, format)) { buffer, info ->
+            info.presentationTimeUs -= trimStartUs
+            writeSampleData(muxerTrackIndex, buffer, info)
+        }
+    }
+
+    private fun shouldKeepTrack(mime: String): Boolean {
+        if (mute && mime.startsWith(AUDIO_PREFIX)) {
+            return false
+        }
+        return droppedMimeTypePrefixes.none { mime.startsWith(it) }
+    }
+
+    /**
+     * Fails unless the video track, as displayed with [rotation], is [size].
+     */
+    private fun checkVideoSize(extractor: MediaExtractor, videoTrackIndex: Int, rotation: Int, size: Size) {
+        check(videoTrackIndex >= 0) { "No video track to remux in $srcUri" }
+        val format = extractor.getTrackFormat(videoTrackIndex)
+        var width = format.getInteger(MediaFormat.KEY_WIDTH)
+        var height = format.getInteger(MediaFormat.KEY_HEIGHT)
+        if (rotation % 180 != 0) {
+            width = height.also { height = width }
+        }
+        check(width == size.width && height == size.height) {
+            "$srcUri is ${width}x$height, it can't be remuxed to ${size.width}x${size.height}"
+        }
+    }
+
+    private fun Int.toBufferFlags(): Int {
+        var flags = 0
+        if (this and MediaExtractor.SAMPLE_FLAG_SYNC != 0) {
+            flags = flags or MediaCodec.BUFFER_FLAG_KEY_FRAME
+        }
+        if (this and MediaExtractor.SAMPLE_FLAG_PARTIAL_FRAME != 0) {
+            flags = flags or MediaCodec.BUFFER_FLAG_PARTIAL_FRAME
+        }
+        return flags
+    }
+
+    companion object {
+        private val TAG = Mp4Remuxer::class.java.simpleName
+        private const val VIDEO_PREFIX = "video/"
+        private const val AUDIO_PREFIX = "audio/"
+        private const val DEFAULT_BUFFER_SIZE = 1024 * 1024
+        private const val PROGRESS_REPORT_STEP = 0.01
+    }
+}
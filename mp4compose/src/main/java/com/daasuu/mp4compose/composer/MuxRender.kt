@@ -2,7 +2,6 @@ package com.daasuu.mp4compose.composer
 
 import android.media.MediaCodec
 import android.media.MediaFormat
-import android.media.MediaMuxer
 import android.util.Log
 
 import java.nio.ByteBuffer
@@ -11,7 +10,8 @@ import java.util.ArrayList
 
 // Refer: https://github.com/ypresto/android-transcoder/blob/master/lib/src/main/java/net/ypresto/androidtranscoder/engine/QueuedMuxer.java
 
-internal class MuxRender(private val muxer: MediaMuxer) {
+// Synchronized, as a staged pipeline (see StagedPipeline) writes audio and video samples from different threads.
+internal class MuxRender(private val muxer: SampleMuxer) {
     private var videoFormat: MediaFormat? = null
     private var audioFormat: MediaFormat? = null
     private var videoTrackIndex: Int = 0
@@ -19,18 +19,32 @@ internal class MuxRender(private val muxer: MediaMuxer) {
     private var byteBuffer: ByteBuffer? = null
     private val sampleInfoList: MutableList<SampleInfo>
     private var started: Boolean = false
+    private val audioMirrors = ArrayList<MuxRender>()
 
     init {
         sampleInfoList = ArrayList()
     }
 
+    /**
+     * Also writes the audio track to [other], i.e. the output of a [RenditionEncoder]. Call before the audio
+     * format is set.
+     */
+    fun mirrorAudioTo(other: MuxRender) {
+        audioMirrors.add(other)
+    }
+
+    @Synchronized
     fun setOutputFormat(sampleType: SampleType, format: MediaFormat) {
         when (sampleType) {
             MuxRender.SampleType.VIDEO -> videoFormat = format
-            MuxRender.SampleType.AUDIO -> audioFormat = format
+            MuxRender.SampleType.AUDIO -> {
+                audioFormat = format
+                audioMirrors.forEach { it.setOutputFormat(sampleType, format) }
+            }
         }
     }
 
+    @Synchronized
     fun onSetOutputFormat() {
         if (videoFormat != null && audioFormat != null) {
             videoTrackIndex = muxer.addTrack(videoFormat!!)
@@ -76,7 +90,12 @@ internal class MuxRender(private val muxer: MediaMuxer) {
         byteBuffer = null
     }
 
+    @Synchronized
     fun writeSampleData(sampleType: SampleType, byteBuf: ByteBuffer, bufferInfo: MediaCodec.BufferInfo) {
+        if (sampleType == SampleType.AUDIO) {
+            // queuing a sample consumes the buffer
+            audioMirrors.forEach { it.writeSampleData(sampleType, byteBuf.duplicate(), bufferInfo) }
+        }
         if (started) {
             muxer.writeSampleData(getTrackIndexForSampleType(sampleType), byteBuf, bufferInfo)
             return
@@ -0,0 +1,24 @@
+package com.daasuu.mp4compose.composer
+
+import android.media.MediaCodec
+import android.media.MediaFormat
+import android.media.MediaMuxer
+
+import java.nio.ByteBuffer
+
+/**
+ * Writes a regular mp4 through [MediaMuxer], its `moov` box being written on [stop].
+ */
+internal class PlatformSampleMuxer(private val muxer: MediaMuxer) : SampleMuxer {
+    override fun addTrack(format: MediaFormat) = muxer.addTrack(format)
+
+    override fun start() = muxer.start()
+
+    override fun writeSampleData(trackIndex: Int, byteBuf: ByteBuffer, bufferInfo: MediaCodec.BufferInfo) {
+        muxer.writeSampleData(trackIndex, byteBuf, bufferInfo)
+    }
+
+    override fun stop() = muxer.stop()
+
+    override fun release() = muxer.release()
+}
@@ -5,11 +5,15 @@ import android.media.MediaExtractor
 import android.media.MediaFormat
 
 import java.io.IOException
+import java.util.ArrayDeque
 
 // Refer:  https://github.com/ypresto/android-transcoder/blob/master/lib/src/main/java/net/ypresto/androidtranscoder/engine/AudioTrackTranscoder.java
 
 /**
  * Created by sudamasayuki2 on 2018/02/22.
+ *
+ * Decodes and encodes the audio track again, sped up or slowed down by [timeScale] through Sonic (see
+ * [AudioChannelWithSP]), keeping the pitch.
  */
 
 internal class RemixAudioComposer(
@@ -17,11 +21,11 @@ internal class RemixAudioComposer(
     private val trackIndex: Int,
     private val outputFormat: MediaFormat,
     private val muxer: MuxRender,
-    private val timeScale: Int // TODO: this (and in other places) was float in the original lib, should we restore it?
-) : IAudioComposer {
+    private val timeScale: Float,
+    private val eventLoop: CodecEventLoop? = null
+) : IAudioComposer, IAsyncComposer, CodecEventLoop.Client {
     override var writtenPresentationTimeUs: Long = 0
         private set
-    private var muxCount = 1
 
     private val bufferInfo = MediaCodec.BufferInfo()
     private var decoder: MediaCodec? = null
@@ -38,7 +42,11 @@ internal class RemixAudioComposer(
     private var decoderStarted: Boolean = false
     private var encoderStarted: Boolean = false
 
-    private var audioChannel: AudioChannel? = null
+    private var audioChannel: AudioChannelWithSP? = null
+
+    // only used when the codecs are driven by a CodecEventLoop
+    private val decoderInputBufferIndices = ArrayDeque<Int>()
+    private val encoderInputBufferIndices = ArrayDeque<Int>()
 
     override fun setup() {
         extractor.selectTrack(trackIndex)
@@ -48,6 +56,7 @@ internal class RemixAudioComposer(
             throw IllegalStateException(e)
         }
 
+        eventLoop?.register(encoder!!, this)
         encoder?.configure(outputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE)
         encoder?.start()
         encoderStarted = true
@@ -60,12 +69,13 @@ internal class RemixAudioComposer(
             throw IllegalStateException(e)
         }
 
+        eventLoop?.register(decoder!!, this)
         decoder!!.configure(inputFormat, null, null, 0)
         decoder!!.start()
         decoderStarted = true
         decoderBuffers = MediaCodecBufferCompatWrapper(decoder!!)
 
-        audioChannel = AudioChannel(decoder!!, encoder!!, outputFormat)
+        audioChannel = AudioChannelWithSP(decoder!!, encoder!!, outputFormat, timeScale, false)
     }
 
     override fun stepPipeline(): Boolean {
@@ -85,6 +95,60 @@ internal class RemixAudioComposer(
         return busy
     }
 
+    override fun stepPipelineAsync(): Boolean {
+        var busy = false
+
+        while (encoderInputBufferIndices.isNotEmpty() && audioChannel!!.hasPendingData()) {
+            audioChannel!!.feedEncoderInputBuffer(encoderInputBufferIndices.poll()!!)
+            busy = true
+        }
+        while (!isExtractorEOS && decoderInputBufferIndices.isNotEmpty()) {
+            val sampleTrackIndex = extractor.sampleTrackIndex
+            if (sampleTrackIndex >= 0 && sampleTrackIndex != trackIndex) {
+                // the next sample belongs to another composer, keep the buffer until it's been consumed
+                break
+            }
+            queueSampleToDecoder(decoderInputBufferIndices.poll()!!, sampleTrackIndex)
+            busy = true
+        }
+
+        return busy
+    }
+
+    override fun onInputBufferAvailable(codec: MediaCodec, index: Int) {
+        if (codec === decoder) {
+            decoderInputBufferIndices.add(index)
+        } else if (codec === encoder) {
+            encoderInputBufferIndices.add(index)
+        }
+    }
+
+    override fun onOutputBufferAvailable(codec: MediaCodec, index: Int, info: MediaCodec.BufferInfo) {
+        if (codec === decoder) {
+            if (info.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM != 0) {
+                isDecoderEOS = true
+                // the channel is only told about the end of stream, the buffer itself goes back to the decoder
+                decoder!!.releaseOutputBuffer(index, false)
+                audioChannel!!.drainDecoderBufferAndQueue(BaseAudioChannel.BUFFER_INDEX_END_OF_STREAM, 0)
+            } else if (info.size > 0) {
+                // output timestamps are counted from the Sonic output samples
+                audioChannel!!.drainDecoderBufferAndQueue(index, info.presentationTimeUs)
+            } else {
+                decoder!!.releaseOutputBuffer(index, false)
+            }
+        } else if (codec === encoder && !isFinished) {
+            writeEncodedSample(index, info)
+        }
+    }
+
+    override fun onOutputFormatChanged(codec: MediaCodec, format: MediaFormat) {
+        if (codec === decoder) {
+            audioChannel!!.setActualDecodedFormat(format)
+        } else if (codec === encoder) {
+            onEncoderOutputFormatChanged(format)
+        }
+    }
+
     private fun drainExtractor(timeoutUs: Long): Int {
         if (isExtractorEOS) return DRAIN_STATE_NONE
         val trackIndex = extractor.sampleTrackIndex
@@ -94,23 +158,31 @@ internal class RemixAudioComposer(
 
         val result = decoder!!.dequeueInputBuffer(timeoutUs)
         if (result < 0) return DRAIN_STATE_NONE
-        if (trackIndex < 0) {
+        queueSampleToDecoder(result, trackIndex)
+        return if (trackIndex < 0) DRAIN_STATE_NONE else DRAIN_STATE_CONSUMED
+    }
+
+    /**
+     * Moves the current extractor sample into the given decoder input buffer, or signals the end of stream if
+     * the extractor has run out of samples ([sampleTrackIndex] < 0).
+     */
+    private fun queueSampleToDecoder(index: Int, sampleTrackIndex: Int) {
+        if (sampleTrackIndex < 0) {
             isExtractorEOS = true
-            decoder!!.queueInputBuffer(result, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM)
-            return DRAIN_STATE_NONE
+            decoder!!.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM)
+            return
         }
 
-        val sampleSize = extractor.readSampleData(decoderBuffers!!.getInputBuffer(result)!!, 0)
+        val sampleSize = extractor.readSampleData(decoderBuffers!!.getInputBuffer(index)!!, 0)
         val isKeyFrame = extractor.sampleFlags and MediaExtractor.SAMPLE_FLAG_SYNC != 0
         decoder!!.queueInputBuffer(
-            result,
+            index,
             0,
             sampleSize,
             extractor.sampleTime,
             if (isKeyFrame) MediaCodec.BUFFER_FLAG_KEY_FRAME else 0
         )
         extractor.advance()
-        return DRAIN_STATE_CONSUMED
     }
 
     private fun drainDecoder(timeoutUs: Long): Int {
@@ -129,9 +201,9 @@ internal class RemixAudioComposer(
 
         if (bufferInfo.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM != 0) {
             isDecoderEOS = true
-            audioChannel!!.drainDecoderBufferAndQueue(AudioChannel.BUFFER_INDEX_END_OF_STREAM, 0)
+            audioChannel!!.drainDecoderBufferAndQueue(BaseAudioChannel.BUFFER_INDEX_END_OF_STREAM, 0)
         } else if (bufferInfo.size > 0) {
-            audioChannel!!.drainDecoderBufferAndQueue(result, bufferInfo.presentationTimeUs / timeScale)
+            audioChannel!!.drainDecoderBufferAndQueue(result, bufferInfo.presentationTimeUs)
         }
 
         return DRAIN_STATE_CONSUMED
@@ -145,11 +217,7 @@ internal class RemixAudioComposer(
         when (result) {
             MediaCodec.INFO_TRY_AGAIN_LATER -> return DRAIN_STATE_NONE
             MediaCodec.INFO_OUTPUT_FORMAT_CHANGED -> {
-                if (actualOutputFormat != null) {
-                    throw RuntimeException("Audio output format changed twice.")
-                }
-                actualOutputFormat = encoder!!.outputFormat
-                muxer.setOutputFormat(SAMPLE_TYPE, actualOutputFormat!!)
+                onEncoderOutputFormatChanged(encoder!!.outputFormat)
                 return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY
             }
             MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED -> {
@@ -158,32 +226,46 @@ internal class RemixAudioComposer(
             }
         }
 
+        return if (writeEncodedSample(result, bufferInfo)) {
+            DRAIN_STATE_CONSUMED
+        } else {
+            DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY
+        }
+    }
+
+    private fun onEncoderOutputFormatChanged(format: MediaFormat) {
+        if (actualOutputFormat != null) {
+            throw RuntimeException("Audio output format changed twice.")
+        }
+        actualOutputFormat = format
+        muxer.setOutputFormat(SAMPLE_TYPE, format)
+    }
+
+    /**
+     * Hands an encoded buffer over to the muxer and gives it back to the encoder.
+     *
+     * @return false if the buffer only carried codec config data, which is passed to the muxer by MediaFormat.
+     */
+    private fun writeEncodedSample(index: Int, info: MediaCodec.BufferInfo): Boolean {
         if (actualOutputFormat == null) {
             throw RuntimeException("Could not determine actual output format.")
         }
 
-        if (bufferInfo.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM != 0) {
+        if (info.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM != 0) {
             isFinished = true
-            bufferInfo.set(0, 0, 0, bufferInfo.flags)
+            info.set(0, 0, 0, info.flags)
         }
-        if (bufferInfo.flags and MediaCodec.BUFFER_FLAG_CODEC_CONFIG != 0) {
+        if (info.flags and MediaCodec.BUFFER_FLAG_CODEC_CONFIG != 0) {
             // SPS or PPS, which should be passed by MediaFormat.
-            encoder!!.releaseOutputBuffer(result, false)
-            return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY
+            encoder!!.releaseOutputBuffer(index, false)
+            return false
         }
 
-        if (muxCount == 1) {
-            muxer.writeSampleData(SAMPLE_TYPE, encoderBuffers!!.getOutputBuffer(result)!!, bufferInfo)
-        }
-        if (muxCount < timeScale) {
-            muxCount++
-        } else {
-            muxCount = 1
-        }
+        muxer.writeSampleData(SAMPLE_TYPE, encoderBuffers!!.getOutputBuffer(index)!!, info)
 
-        writtenPresentationTimeUs = bufferInfo.presentationTimeUs
-        encoder!!.releaseOutputBuffer(result, false)
-        return DRAIN_STATE_CONSUMED
+        writtenPresentationTimeUs = info.presentationTimeUs
+        encoder!!.releaseOutputBuffer(index, false)
+        return true
     }
 
     override fun release() {
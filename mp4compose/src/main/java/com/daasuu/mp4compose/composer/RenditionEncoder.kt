@@ -0,0 +1,137 @@
+package com.daasuu.mp4compose.composer
+
+import android.media.MediaCodec
+import android.media.MediaFormat
+
+import java.io.IOException
+import java.nio.ByteBuffer
+
+/**
+ * An extra video encoder of a [VideoComposer], fed with the frames it already decoded and composited (filter
+ * included) for its own output. Another rendition of the same video, i.e. a smaller one for feeds, then costs an
+ * encode only, not another decode and GL pass.
+ *
+ * Its window surface lives in the GL context of the main encoder surface (see [EncoderSurface]), so the composited
+ * frame texture can be drawn on it directly. It writes to its own [muxRender].
+ */
+internal class RenditionEncoder(
+    private val outputFormat: MediaFormat,
+    private val muxRender: MuxRender
+) : CodecEventLoop.Client {
+    private val bufferInfo = MediaCodec.BufferInfo()
+    private val width = outputFormat.getInteger(MediaFormat.KEY_WIDTH)
+    private val height = outputFormat.getInteger(MediaFormat.KEY_HEIGHT)
+    private var encoder: MediaCodec? = null
+    private var encoderSurface: EncoderSurface? = null
+    private var encoderStarted: Boolean = false
+    private var actualOutputFormat: MediaFormat? = null
+    var isFinished: Boolean = false
+        private set
+
+    /**
+     * Called by [VideoComposer.setUp] once [sharedSurface], the main encoder one, is set up.
+     */
+    fun setUp(sharedSurface: EncoderSurface, eventLoop: CodecEventLoop?) {
+        try {
+            encoder = MediaCodec.createEncoderByType(outputFormat.getString(MediaFormat.KEY_MIME)!!)
+        } catch (e: IOException) {
+            throw IllegalStateException(e)
+        }
+        eventLoop?.register(encoder!!, this)
+        encoder!!.configure(outputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE)
+        encoderSurface = EncoderSurface(encoder!!.createInputSurface(), sharedSurface)
+        encoder!!.start()
+        encoderStarted = true
+    }
+
+    /**
+     * Encodes the frame [decoderSurface] composited last. Leaves the rendition surface current.
+     *
+     * NOTE: blocks if the encoder input surface is full, like the main one.
+     */
+    fun renderFrame(decoderSurface: DecoderSurface, presentationTimeUs: Long) {
+        encoderSurface!!.makeCurrent()
+        decoderSurface.drawComposited(width, height, presentationTimeUs)
+        encoderSurface!!.setPresentationTime(presentationTimeUs * 1000)
+        encoderSurface!!.swapBuffers()
+    }
+
+    fun signalEndOfInputStream() {
+        encoder!!.signalEndOfInputStream()
+    }
+
+    /**
+     * Moves the encoded samples to the muxer, when the codecs are polled.
+     *
+     * @return false once there's nothing to drain for now.
+     */
+    fun drain(): Boolean {
+        if (isFinished) return false
+        val result = encoder!!.dequeueOutputBuffer(bufferInfo, 0)
+        @Suppress("DEPRECATION")
+        when (result) {
+            MediaCodec.INFO_TRY_AGAIN_LATER -> return false
+            MediaCodec.INFO_OUTPUT_FORMAT_CHANGED -> onEncoderOutputFormatChanged(encoder!!.outputFormat)
+            MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED -> {
+                // buffers are fetched by index
+            }
+            else -> if (result >= 0) {
+                writeEncodedSample(result, bufferInfo, encoder!!.getOutputBuffer(result))
+            }
+        }
+        return true
+    }
+
+    override fun onInputBufferAvailable(codec: MediaCodec, index: Int) {
+        // fed through its input surface
+    }
+
+    override fun onOutputBufferAvailable(codec: MediaCodec, index: Int, info: MediaCodec.BufferInfo) {
+        if (!isFinished) {
+            writeEncodedSample(index, info, codec.getOutputBuffer(index))
+        }
+    }
+
+    override fun onOutputFormatChanged(codec: MediaCodec, format: MediaFormat) {
+        onEncoderOutputFormatChanged(format)
+    }
+
+    /**
+     * Called by [VideoComposer.release], before the main encoder surface is released.
+     */
+    fun release() {
+        if (encoderSurface != null) {
+            encoderSurface!!.release()
+            encoderSurface = null
+        }
+        if (encoder != null) {
+            if (encoderStarted) encoder!!.stop()
+            encoder!!.release()
+            encoder = null
+        }
+    }
+
+    private fun onEncoderOutputFormatChanged(format: MediaFormat) {
+        if (actualOutputFormat != null) {
+            throw RuntimeException("Rendition output format changed twice.")
+        }
+        actualOutputFormat = format
+        muxRender.setOutputFormat(MuxRender.SampleType.VIDEO, format)
+        muxRender.onSetOutputFormat()
+    }
+
+    private fun writeEncodedSample(index: Int, info: MediaCodec.BufferInfo, encodedData: ByteBuffer?) {
+        if (actualOutputFormat == null) {
+            throw RuntimeException("Could not determine actual rendition output format.")
+        }
+        if (info.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM != 0) {
+            isFinished = true
+            info.set(0, 0, 0, info.flags)
+        }
+        // SPS or PPS are passed by MediaFormat
+        if (info.flags and MediaCodec.BUFFER_FLAG_CODEC_CONFIG == 0 && encodedData != null) {
+            muxRender.writeSampleData(MuxRender.SampleType.VIDEO, encodedData, info)
+        }
+        encoder!!.releaseOutputBuffer(index, false)
+    }
+}
@@ -0,0 +1,23 @@
+package com.daasuu.mp4compose.composer
+
+import android.media.MediaCodec
+
+/**
+ * The metadata of an encoded sample, as a [MediaCodec.BufferInfo] holds it. Kept as a plain value so that sample
+ * bookkeeping doesn't depend on the framework class, which is only converted to and from at the codec and muxer
+ * boundaries.
+ */
+internal data class SampleInfo(val offset: Int, val size: Int, val presentationTimeUs: Long, val flags: Int) {
+    /**
+     * Sets [bufferInfo] to this sample metadata.
+     */
+    fun toBufferInfo(bufferInfo: MediaCodec.BufferInfo = MediaCodec.BufferInfo()): MediaCodec.BufferInfo {
+        bufferInfo.set(offset, size, presentationTimeUs, flags)
+        return bufferInfo
+    }
+
+    companion object {
+        fun of(bufferInfo: MediaCodec.BufferInfo) =
+            SampleInfo(bufferInfo.offset, bufferInfo.size, bufferInfo.presentationTimeUs, bufferInfo.flags)
+    }
+}
@@ -0,0 +1,22 @@
+package com.daasuu.mp4compose.composer
+
+import android.media.MediaCodec
+import android.media.MediaFormat
+
+import java.nio.ByteBuffer
+
+/**
+ * The part of [android.media.MediaMuxer] [MuxRender] relies on, so encoded samples can go to another container
+ * writer, see [FragmentedSampleMuxer].
+ */
+internal interface SampleMuxer {
+    fun addTrack(format: MediaFormat): Int
+
+    fun start()
+
+    fun writeSampleData(trackIndex: Int, byteBuf: ByteBuffer, bufferInfo: MediaCodec.BufferInfo)
+
+    fun stop()
+
+    fun release()
+}
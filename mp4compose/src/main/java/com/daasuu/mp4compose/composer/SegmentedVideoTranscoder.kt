@@ -0,0 +1,287 @@
+package com.daasuu.mp4compose.composer
+
+import android.content.Context
+import android.media.MediaCodecList
+import android.media.MediaExtractor
+import android.media.MediaFormat
+import android.net.Uri
+import android.util.Log
+
+import com.daasuu.mp4compose.utils.DataSourceUtil
+import com.daasuu.mp4compose.utils.EncoderCapabilities
+import com.daasuu.mp4compose.utils.MediaInfo
+
+import java.io.File
+import java.util.TreeSet
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+
+/**
+ * Transcodes the video track of a source in keyframe aligned [Segment]s at once. Each segment runs on its own
+ * thread with its own extractor and [VideoComposer], so its own decoder, encoder, EGL context and filter. Encoded
+ * segments are spooled to temporary files (see [SpoolSampleMuxer]) and then written one after the other to the
+ * output track, the audio samples being interleaved along the way.
+ *
+ * Decoded frames keep their source timestamps, so time based filters (i.e. animated stickers) get the same
+ * presentation times as with a single pipeline.
+ *
+ * Segments start on sync samples: sources with open GOPs (frames referencing the previous GOP) may show artifacts
+ * on the first frames of a segment, camera recordings use closed GOPs though.
+ */
+internal class SegmentedVideoTranscoder(
+    private val context: Context,
+    private val sourceUri: Uri,
+    private val addedRequestHeaders: Map<String, String>?,
+    private val videoTrackIndex: Int,
+    private val segments: List<Segment>
+) {
+    /**
+     * The source frames presented from [startUs] (a sync sample time, [Long.MIN_VALUE] for the first segment)
+     * until [endUs] (the next segment start, [Long.MAX_VALUE] for the last one).
+     */
+    class Segment(val startUs: Long, val endUs: Long)
+
+    private inner class SegmentJob(
+        private val index: Int,
+        private val segment: Segment,
+        private val outputFormatFactory: () -> MediaFormat,
+        private val setUpComposer: (VideoComposer) -> Unit
+    ) : Callable<SpoolSampleMuxer> {
+        @Volatile
+        var writtenPresentationTimeUs = segment.startUs
+            private set
+
+        override fun call(): SpoolSampleMuxer {
+            val spool = SpoolSampleMuxer(File.createTempFile("segment$index-", ".spool", context.cacheDir))
+            val extractor = MediaExtractor()
+            var composer: VideoComposer? = null
+            try {
+                DataSourceUtil.setDataSource(
+                    context,
+                    sourceUri,
+                    mediaExtractor = extractor,
+                    addedRequestHeaders = addedRequestHeaders
+                )
+                composer = VideoComposer(extractor, videoTrackIndex, outputFormatFactory(), MuxRender(spool), 1f)
+                setUpComposer(composer)
+                composer.setSourceRange(segment.startUs, segment.endUs)
+
+                while (!composer.isFinished) {
+                    if (Thread.currentThread().isInterrupted) {
+                        throw InterruptedException("Segment $index interrupted")
+                    }
+                    if (!composer.stepPipeline()) {
+                        Thread.sleep(SLEEP_TO_WAIT_CODECS_MS)
+                    }
+                    writtenPresentationTimeUs = composer.writtenPresentationTimeUs
+                }
+                return spool
+            } catch (e: Exception) {
+                spool.release()
+                throw e
+            } finally {
+                try {
+                    composer?.release()
+                    extractor.release()
+                } catch (e: RuntimeException) {
+                    Log.e(TAG, "Could not release the pipeline of segment $index.", e)
+                }
+            }
+        }
+
+        /**
+         * How much of the segment is encoded, given the source lasts [durationUs].
+         */
+        fun progress(durationUs: Long): Double {
+            val startUs = Math.max(0L, segment.startUs)
+            val endUs = Math.min(durationUs, segment.endUs)
+            if (endUs <= startUs) {
+                return 1.0
+            }
+            return Math.max(0.0, Math.min(1.0, (writtenPresentationTimeUs - startUs).toDouble() / (endUs - startUs)))
+        }
+    }
+
+    /**
+     * Runs all segments, then writes them to [muxRender] in order, stepping [audioComposer] (a passthrough one,
+     * which doesn't need the pipeline to be driven otherwise) so that audio samples are interleaved.
+     *
+     * @param outputFormatFactory a new encoder format for each segment, they're configured concurrently.
+     * @param setUpComposer sets up each segment [VideoComposer], on the segment thread and with its own filter.
+     * @param isCanceled polled while waiting for segments, stops them all with an [InterruptedException].
+     */
+    fun transcode(
+        muxRender: MuxRender,
+        audioComposer: IAudioComposer?,
+        durationUs: Long,
+        outputFormatFactory: () -> MediaFormat,
+        setUpComposer: (VideoComposer) -> Unit,
+        progressCallback: Mp4ComposerEngine.ProgressCallback?,
+        isCanceled: () -> Boolean
+    ) {
+        val jobs = segments.mapIndexed { index, segment ->
+            SegmentJob(index, segment, outputFormatFactory, setUpComposer)
+        }
+        val executor = Executors.newFixedThreadPool(jobs.size)
+        val futures = jobs.map { executor.submit(it) }
+        var firstFormat: MediaFormat? = null
+        try {
+            for ((index, future) in futures.withIndex()) {
+                val spool = awaitSegment(future, jobs, durationUs, progressCallback, isCanceled)
+                try {
+                    val format = spool.format ?: throw IllegalStateException("Segment $index produced no video")
+                    val prefix = if (firstFormat == null) {
+                        firstFormat = format
+                        muxRender.setOutputFormat(MuxRender.SampleType.VIDEO, format)
+                        muxRender.onSetOutputFormat()
+                        null
+                    } else {
+                        SpoolSampleMuxer.inBandCodecConfig(firstFormat, format)
+                    }
+                    spool.replay(prefix) { buffer, info ->
+                        muxRender.writeSampleData(MuxRender.SampleType.VIDEO, buffer, info)
+                        stepAudio(audioComposer, info.presentationTimeUs)
+                    }
+                } finally {
+                    spool.release()
+                }
+            }
+            stepAudio(audioComposer, Long.MAX_VALUE)
+        } finally {
+            executor.shutdownNow()
+            // spools of segments that completed after a failure
+            for (future in futures) {
+                if (future.isDone && !future.isCancelled) {
+                    try {
+                        future.get().release()
+                    } catch (e: Exception) {
+                        // failed segments release their own spool
+                    }
+                }
+            }
+        }
+    }
+
+    private fun awaitSegment(
+        future: Future<SpoolSampleMuxer>,
+        jobs: List<SegmentJob>,
+        durationUs: Long,
+        progressCallback: Mp4ComposerEngine.ProgressCallback?,
+        isCanceled: () -> Boolean
+    ): SpoolSampleMuxer {
+        while (true) {
+            try {
+                return future.get(PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS)
+            } catch (e: TimeoutException) {
+                if (isCanceled()) {
+                    // the segment threads are interrupted on the way out
+                    throw InterruptedException("Segmented transcode canceled")
+                }
+                if (durationUs > 0) {
+                    progressCallback?.onProgress(jobs.sumOf { it.progress(durationUs) } / jobs.size)
+                }
+            } catch (e: ExecutionException) {
+                throw e.cause as? Exception ?: e
+            }
+        }
+    }
+
+    /**
+     * Writes audio samples up to [untilUs], so they end up next to the video samples of the same time.
+     */
+    private fun stepAudio(audioComposer: IAudioComposer?, untilUs: Long) {
+        if (audioComposer == null) {
+            return
+        }
+        while (!audioComposer.isFinished && audioComposer.writtenPresentationTimeUs <= untilUs) {
+            if (!audioComposer.stepPipeline()) {
+                break
+            }
+        }
+    }
+
+    companion object {
+        private val TAG = SegmentedVideoTranscoder::class.java.simpleName
+        private const val MIN_SEGMENT_DURATION_US = 5_000_000L
+        private const val SLEEP_TO_WAIT_CODECS_MS = 10L
+        private const val PROGRESS_INTERVAL_MS = 100L
+
+        /**
+         * Splits the video track of [mediaInfo] at sync samples into up to [maxSegments] segments of at least
+         * [MIN_SEGMENT_DURATION_US], fewer if the codecs can't run that many instances at once.
+         *
+         * @return an empty list when a single pipeline should be used.
+         */
+        fun planSegments(
+            context: Context,
+            uri: Uri,
+            addedRequestHeaders: Map<String, String>?,
+            mediaInfo: MediaInfo,
+            outputFormat: MediaFormat,
+            maxSegments: Int
+        ): List<Segment> {
+            val inputFormat = mediaInfo.trackFormats[mediaInfo.videoTrackIndex]
+            val count = minOf(
+                maxSegments,
+                (mediaInfo.durationUs / MIN_SEGMENT_DURATION_US).toInt(),
+                maxConcurrentInstances(context, inputFormat, outputFormat)
+            )
+            if (count < 2) {
+                return emptyList()
+            }
+
+            val boundaries = TreeSet<Long>()
+            val extractor = MediaExtractor()
+            try {
+                DataSourceUtil.setDataSource(
+                    context,
+                    uri,
+                    mediaExtractor = extractor,
+                    addedRequestHeaders = addedRequestHeaders
+                )
+                extractor.selectTrack(mediaInfo.videoTrackIndex)
+                for (i in 1 until count) {
+                    extractor.seekTo(mediaInfo.durationUs * i / count, MediaExtractor.SEEK_TO_PREVIOUS_SYNC)
+                    val syncTimeUs = extractor.sampleTime
+                    if (syncTimeUs > 0) {
+                        boundaries.add(syncTimeUs)
+                    }
+                }
+            } finally {
+                extractor.release()
+            }
+            if (boundaries.isEmpty()) {
+                // a single GOP
+                return emptyList()
+            }
+
+            val starts = listOf(Long.MIN_VALUE) + boundaries
+            val ends = boundaries.toList() + Long.MAX_VALUE
+            Log.d(TAG, "Transcoding in ${starts.size} segments starting at $boundaries us")
+            return starts.zip(ends) { start, end -> Segment(start, end) }
+        }
+
+        /**
+         * How many decoder / encoder pairs for these formats can run at once.
+         */
+        private fun maxConcurrentInstances(context: Context, inputFormat: MediaFormat, outputFormat: MediaFormat): Int {
+            val decoderInstances = MediaCodecList(MediaCodecList.REGULAR_CODECS).let { codecList ->
+                val mime = inputFormat.getString(MediaFormat.KEY_MIME)
+                val name = codecList.findDecoderForFormat(inputFormat)
+                codecList.codecInfos.firstOrNull { it.name == name }
+                    ?.getCapabilitiesForType(mime)?.maxSupportedInstances ?: 1
+            }
+            val encoderInstances = EncoderCapabilities.findEncoder(
+                context,
+                outputFormat.getString(MediaFormat.KEY_MIME)!!,
+                outputFormat.getInteger(MediaFormat.KEY_WIDTH),
+                outputFormat.getInteger(MediaFormat.KEY_HEIGHT)
+            )?.maxInstances ?: 1
+            return Math.min(decoderInstances, encoderInstances)
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.daasuu.mp4compose.composer
+
+import android.content.Context
+import android.media.MediaCodecInfo
+import android.media.MediaExtractor
+import android.media.MediaFormat
+import android.net.Uri
+import android.util.Log
+import android.util.Size
+
+import com.daasuu.mp4compose.FillMode
+import com.daasuu.mp4compose.Rotation
+import com.daasuu.mp4compose.filter.GlFilter
+import com.daasuu.mp4compose.utils.DataSourceUtil
+
+import java.io.File
+
+/**
+ * Plans the video side of a trim done by [Mp4Remuxer], so that only the GOPs the trim window cuts through get
+ * decoded and encoded again, the ones fully inside it being copied as they are:
+ *
+ *     source      |K.......|K.......|K.......|K.......|
+ *     window           [-----------------------]
+ *     output           [head][copied...........][tail]
+ *
+ * [head] runs from the window start to the first sync sample inside the window, [tail] from the last sync sample
+ * inside the window to its end. Both are re-encoded at the source size, codec and bitrate into a
+ * [SpoolSampleMuxer], with their encoder parameter sets sent in band when they don't match the source ones.
+ *
+ * Copied GOPs are expected to be closed (no frame referencing the previous GOP), which is what cameras produce.
+ */
+internal class SmartTrimmer(
+    private val context: Context,
+    private val sourceUri: Uri,
+    private val addedRequestHeaders: Map<String, String>?,
+    val videoTrackIndex: Int,
+    val trimStartUs: Long,
+    /**
+     * [Long.MAX_VALUE] to keep everything after [trimStartUs].
+     */
+    val trimEndUs: Long
+) {
+    /**
+     * The source frames presented from [startUs] until [endUs].
+     */
+    class Range(val startUs: Long, val endUs: Long)
+
+    var head: Range? = null
+        private set
+    var copied: Range? = null
+        private set
+    var tail: Range? = null
+        private set
+
+    /**
+     * Finds the sync samples bounding the copied GOPs, through [MediaExtractor] seeks.
+     */
+    fun plan() {
+        val extractor = MediaExtractor()
+        try {
+            DataSourceUtil.setDataSource(
+                context,
+                sourceUri,
+                mediaExtractor = extractor,
+                addedRequestHeaders = addedRequestHeaders
+            )
+            extractor.selectTrack(videoTrackIndex)
+            val format = extractor.getTrackFormat(videoTrackIndex)
+            val durationUs = if (format.containsKey(MediaFormat.KEY_DURATION)) {
+                format.getLong(MediaFormat.KEY_DURATION)
+            } else {
+                Long.MAX_VALUE
+            }
+            val toEnd = trimEndUs >= durationUs
+
+            extractor.seekTo(trimStartUs, MediaExtractor.SEEK_TO_NEXT_SYNC)
+            val firstSyncUs = extractor.sampleTime
+            if (firstSyncUs < 0 || firstSyncUs >= trimEndUs) {
+                // no GOP starts inside the window
+                head = Range(trimStartUs, trimEndUs)
+                return
+            }
+            if (firstSyncUs > trimStartUs) {
+                head = Range(trimStartUs, firstSyncUs)
+            }
+            if (toEnd) {
+                copied = Range(firstSyncUs, Long.MAX_VALUE)
+                return
+            }
+
+            extractor.seekTo(trimEndUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC)
+            val lastSyncUs = Math.max(firstSyncUs, extractor.sampleTime)
+            if (lastSyncUs >= trimEndUs) {
+                // the window ends right on a GOP boundary
+                copied = Range(firstSyncUs, trimEndUs)
+                return
+            }
+            if (lastSyncUs > firstSyncUs) {
+                copied = Range(firstSyncUs, lastSyncUs)
+            }
+            tail = Range(lastSyncUs, trimEndUs)
+        } finally {
+            extractor.release()
+            Log.d(
+                TAG,
+                "Trim $trimStartUs-$trimEndUs us: head ${head.describe()}, copied ${copied.describe()}, " +
+                    "tail ${tail.describe()}"
+            )
+        }
+    }
+
+    /**
+     * Decodes the GOPs [range] overlaps and encodes the frames presented inside it, like the source track
+     * [sourceFormat] describes. The caller owns (and has to release) the returned spool.
+     */
+    fun encode(range: Range, sourceFormat: MediaFormat): SpoolSampleMuxer {
+        val width = sourceFormat.getInteger(MediaFormat.KEY_WIDTH)
+        val height = sourceFormat.getInteger(MediaFormat.KEY_HEIGHT)
+        val outputFormat = MediaFormat.createVideoFormat(sourceFormat.getString(MediaFormat.KEY_MIME)!!, width, height)
+        outputFormat.setInteger(MediaFormat.KEY_BIT_RATE, sourceFormat.getIntegerOr(MediaFormat.KEY_BIT_RATE) {
+            (BITS_PER_PIXEL * DEFAULT_FRAME_RATE * width * height).toInt()
+        })
+        outputFormat.setInteger(MediaFormat.KEY_FRAME_RATE, sourceFormat.getIntegerOr(MediaFormat.KEY_FRAME_RATE) {
+            DEFAULT_FRAME_RATE
+        })
+        outputFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1)
+        outputFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface)
+
+        val spool = SpoolSampleMuxer(File.createTempFile("trim", ".spool", context.cacheDir))
+        val extractor = MediaExtractor()
+        var composer: VideoComposer? = null
+        try {
+            DataSourceUtil.setDataSource(
+                context,
+                sourceUri,
+                mediaExtractor = extractor,
+                addedRequestHeaders = addedRequestHeaders
+            )
+            // the decoder output isn't rotated (see VideoComposer.setUp), neither is the re-encoded one
+            val size = Size(width, height)
+            composer = VideoComposer(extractor, videoTrackIndex, outputFormat, MuxRender(spool), 1f)
+            composer.setUp(GlFilter(), Rotation.NORMAL, size, size, FillMode.PRESERVE_ASPECT_FIT, null, false, false)
+            composer.setSourceRange(range.startUs, range.endUs)
+
+            while (!composer.isFinished) {
+                if (Thread.currentThread().isInterrupted) {
+                    throw InterruptedException("Trim interrupted")
+                }
+                if (!composer.stepPipeline()) {
+                    Thread.sleep(SLEEP_TO_WAIT_CODECS_MS)
+                }
+            }
+            return spool
+        } catch (e: Exception) {
+            spool.release()
+            throw e
+        } finally {
+            try {
+                composer?.release()
+                extractor.release()
+            } catch (e: RuntimeException) {
+                Log.e(TAG, "Could not release the trim pipeline.", e)
+            }
+        }
+    }
+
+    private inline fun MediaFormat.getIntegerOr(key: String, default: () -> Int): Int {
+        return if (containsKey(key)) getInteger(key) else default()
+    }
+
+    private fun Range?.describe() = if (this == null) "none" else "$startUs-$endUs"
+
+    companion object {
+        private val TAG = SmartTrimmer::class.java.simpleName
+        private const val SLEEP_TO_WAIT_CODECS_MS = 10L
+        private const val DEFAULT_FRAME_RATE = 30
+        private const val BITS_PER_PIXEL = 0.25
+    }
+}
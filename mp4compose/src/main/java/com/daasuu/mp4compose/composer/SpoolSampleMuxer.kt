@@ -0,0 +1,122 @@
+package com.daasuu.mp4compose.composer
+
+import android.media.MediaCodec
+import android.media.MediaFormat
+import android.util.Log
+
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+
+/**
+ * Keeps the encoded samples of a single track in [file] instead of muxing them, so they can be [replay]ed into the
+ * actual output later (see [SegmentedVideoTranscoder]). Only the sample table is kept in memory.
+ */
+internal class SpoolSampleMuxer(private val file: File) : SampleMuxer {
+    private class Sample(val offset: Long, val size: Int, val presentationTimeUs: Long, val flags: Int)
+
+    private val channel = RandomAccessFile(file, "rw").channel
+    private val samples = ArrayList<Sample>()
+    private var writePosition = 0L
+    private var maxSampleSize = 0
+
+    var format: MediaFormat? = null
+        private set
+
+    override fun addTrack(format: MediaFormat): Int {
+        check(this.format == null) { "Only a single track can be spooled" }
+        this.format = format
+        return 0
+    }
+
+    override fun start() {
+        // nothing to write ahead of the samples
+    }
+
+    override fun writeSampleData(trackIndex: Int, byteBuf: ByteBuffer, bufferInfo: MediaCodec.BufferInfo) {
+        writeSample(byteBuf, SampleInfo.of(bufferInfo))
+    }
+
+    /**
+     * Spools the [info] bytes of [byteBuf]. Empty samples (i.e. end of stream markers) are skipped.
+     */
+    fun writeSample(byteBuf: ByteBuffer, info: SampleInfo) {
+        if (info.size == 0) {
+            // end of stream marker
+            return
+        }
+        val sample = byteBuf.duplicate()
+        sample.limit(info.offset + info.size)
+        sample.position(info.offset)
+        val offset = writePosition
+        while (sample.hasRemaining()) {
+            writePosition += channel.write(sample, writePosition)
+        }
+        samples.add(Sample(offset, info.size, info.presentationTimeUs, info.flags))
+        maxSampleSize = Math.max(maxSampleSize, info.size)
+    }
+
+    override fun stop() {
+        // the samples are kept until they've been replayed
+    }
+
+    override fun release() {
+        channel.close()
+        file.delete()
+    }
+
+    /**
+     * Hands every spooled sample, in order, to [sink]. [prefix] is prepended to the first one (i.e. in-band
+     * parameter sets).
+     */
+    fun replay(prefix: ByteArray?, sink: (ByteBuffer, MediaCodec.BufferInfo) -> Unit) {
+        val bufferInfo = MediaCodec.BufferInfo()
+        replaySamples(prefix) { buffer, info -> sink(buffer, info.toBufferInfo(bufferInfo)) }
+    }
+
+    /**
+     * Same as [replay], with the sample metadata as a [SampleInfo].
+     */
+    fun replaySamples(prefix: ByteArray?, sink: (ByteBuffer, SampleInfo) -> Unit) {
+        val buffer = ByteBuffer.allocateDirect(maxSampleSize + (prefix?.size ?: 0))
+        for ((index, sample) in samples.withIndex()) {
+            buffer.clear()
+            if (index == 0 && prefix != null) {
+                buffer.put(prefix)
+            }
+            buffer.limit(buffer.position() + sample.size)
+            var position = sample.offset
+            while (buffer.hasRemaining()) {
+                val read = channel.read(buffer, position)
+                check(read >= 0) { "Spooled sample truncated in $file" }
+                position += read
+            }
+            buffer.flip()
+            sink(buffer, SampleInfo(0, buffer.limit(), sample.presentationTimeUs, sample.flags))
+        }
+    }
+
+    companion object {
+        private val TAG = SpoolSampleMuxer::class.java.simpleName
+        private val CODEC_CONFIG_KEYS = listOf("csd-0", "csd-1")
+
+        /**
+         * Encoders configured the same way normally come up with the same parameter sets. When the samples of
+         * [format] end up in a track declared with [trackFormat] and they didn't, the parameter sets of [format]
+         * have to be sent in band, ahead of its first (key) frame.
+         *
+         * @return those parameter sets, or null when the track ones do.
+         */
+        fun inBandCodecConfig(trackFormat: MediaFormat, format: MediaFormat): ByteArray? {
+            val keys = CODEC_CONFIG_KEYS.filter { format.containsKey(it) }
+            if (keys.all { trackFormat.containsKey(it) && trackFormat.getByteBuffer(it) == format.getByteBuffer(it) }) {
+                return null
+            }
+            Log.d(TAG, "Parameter sets differ from the track ones, sending them in band")
+            return keys.map { key ->
+                val csd = format.getByteBuffer(key)!!.duplicate()
+                ByteArray(csd.remaining()).also { csd.get(it) }
+            }.fold(ByteArray(0)) { acc, bytes -> acc + bytes }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.daasuu.mp4compose.composer
+
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Runs the stages of a track pipeline concurrently, each on a thread of its own, instead of stepping them in
+ * lockstep: a stalled stage (i.e. a slow muxer write) then only holds up the others once what's between them is
+ * full, and throughput is bound by the slowest stage rather than the sum of them all.
+ *
+ * Stages hand their work over through bounded queues (or codecs, which have a fixed number of buffers), blocking
+ * when the next stage isn't keeping up. Stages are added upstream first: when the pipeline is canceled or a stage
+ * fails, they're stopped in that order, so a downstream stage keeps consuming until the ones feeding it are done
+ * and nothing stays blocked on a full queue or codec.
+ *
+ * A stage that doesn't stop within [stopTimeoutMs] (i.e. blocked in a driver call) is left running, see
+ * [isStopped].
+ */
+internal class StagedPipeline(private val name: String, private val stopTimeoutMs: Long = STOP_TIMEOUT_MS) {
+    private class Stage(
+        val name: String,
+        val onStart: () -> Unit,
+        val onStop: () -> Unit,
+        val step: () -> Boolean
+    ) {
+        var thread: Thread? = null
+    }
+
+    private val stages = ArrayList<Stage>()
+    private val failure = AtomicReference<Throwable>()
+
+    /**
+     * False while a stage thread is still running, after [run] returned or threw because it didn't stop in time.
+     * Whatever that stage uses (i.e. its GL context) can't be taken back then.
+     */
+    val isStopped: Boolean
+        get() = stages.none { it.thread?.isAlive == true }
+
+    /**
+     * Adds a stage calling [step] until it returns false, or its thread is interrupted. [onStart] and [onStop] are
+     * called on the stage thread before the first step and after the last one, failures included.
+     */
+    fun addStage(name: String, onStart: () -> Unit = {}, onStop: () -> Unit = {}, step: () -> Boolean) {
+        stages.add(Stage(name, onStart, onStop, step))
+    }
+
+    /**
+     * Runs all stages until they're done, calling [onPoll] on this thread every [pollIntervalMs] meanwhile. Returns
+     * early, once the stages are stopped, when [isCanceled]. The first stage failure stops the others and is
+     * rethrown.
+     */
+    fun run(isCanceled: () -> Boolean, pollIntervalMs: Long, onPoll: () -> Unit) {
+        check(stages.isNotEmpty()) { "No stage to run" }
+        for (stage in stages) {
+            stage.thread = Thread({ runStage(stage) }, "$name-${stage.name}").apply { start() }
+        }
+        try {
+            while (stages.any { it.thread!!.isAlive }) {
+                if (isCanceled() || failure.get() != null) {
+                    break
+                }
+                stages.first { it.thread!!.isAlive }.thread!!.join(pollIntervalMs)
+                onPoll()
+            }
+        } finally {
+            stop()
+        }
+        if (!isCanceled()) {
+            failure.get()?.let { throw it }
+        }
+    }
+
+    private fun runStage(stage: Stage) {
+        try {
+            stage.onStart()
+            try {
+                while (!Thread.currentThread().isInterrupted && stage.step()) {
+                    // next step
+                }
+            } finally {
+                stage.onStop()
+            }
+        } catch (e: Throwable) {
+            // rethrown by run(), failures of the stages stopped after it don't matter
+            failure.compareAndSet(null, e)
+        }
+    }
+
+    /**
+     * Interrupts the stages still running, upstream first, each one after the previous one is over.
+     */
+    private fun stop() {
+        for (stage in stages) {
+            val thread = stage.thread ?: continue
+            if (thread.isAlive) {
+                thread.interrupt()
+                // left running if it doesn't stop in time, see isStopped
+                thread.join(stopTimeoutMs)
+            }
+        }
+    }
+
+    companion object {
+        private const val STOP_TIMEOUT_MS = 5000L
+    }
+}
@@ -0,0 +1,90 @@
+package com.daasuu.mp4compose.composer
+
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.Matrix
+import android.graphics.Paint
+import android.opengl.GLES20
+import android.util.Size
+
+import com.daasuu.mp4compose.FillMode
+import com.daasuu.mp4compose.filter.GlFilter
+import com.daasuu.mp4compose.utils.EglUtil
+
+import android.opengl.GLES20.GL_COLOR_BUFFER_BIT
+import android.opengl.GLES20.GL_FRAMEBUFFER
+
+/**
+ * Renders a still background image, with the filter on top of it, onto the current EGL surface (typically an
+ * [EncoderSurface]).
+ *
+ * The image is fitted to the output resolution and uploaded as a texture once, so each output frame only costs
+ * a filter draw: no per-frame color conversion or copy into encoder input buffers.
+ */
+internal class StaticImageSurface(
+    bkgBitmap: Bitmap,
+    private var filter: GlFilter?,
+    private val outputResolution: Size,
+    fillMode: FillMode
+) {
+    private var texName: Int
+
+    init {
+        // the bitmap is not needed anymore once it's been uploaded
+        texName = EglUtil.loadTexture(fitToOutput(bkgBitmap, fillMode), EglUtil.NO_TEXTURE, true)
+        bkgBitmap.recycle()
+
+        filter!!.setup()
+        filter!!.setFrameSize(outputResolution.width, outputResolution.height)
+    }
+
+    /**
+     * Draws the background and the filter for [presentationTimeUs] onto the current EGL surface.
+     */
+    fun drawImage(presentationTimeUs: Long) {
+        GLES20.glBindFramebuffer(GL_FRAMEBUFFER, 0)
+        GLES20.glViewport(0, 0, outputResolution.width, outputResolution.height)
+        GLES20.glClearColor(
+            filter!!.clearColor[0],
+            filter!!.clearColor[1],
+            filter!!.clearColor[2],
+            filter!!.clearColor[3]
+        )
+        GLES20.glClear(GL_COLOR_BUFFER_BIT)
+        filter!!.draw(texName, null, presentationTimeUs)
+    }
+
+    fun release() {
+        GLES20.glDeleteTextures(1, intArrayOf(texName), 0)
+        texName = EglUtil.NO_TEXTURE
+        filter!!.release()
+        filter = null
+    }
+
+    /**
+     * Scales [bitmap] into an output sized bitmap according to [fillMode] (CUSTOM is treated as a fit), flipped
+     * vertically given the first bitmap row ends up at the bottom of the GL viewport.
+     */
+    private fun fitToOutput(bitmap: Bitmap, fillMode: FillMode): Bitmap {
+        val width = outputResolution.width
+        val height = outputResolution.height
+        val scaleX = width.toFloat() / bitmap.width
+        val scaleY = height.toFloat() / bitmap.height
+        val scale = if (fillMode == FillMode.PRESERVE_ASPECT_CROP) {
+            Math.max(scaleX, scaleY)
+        } else {
+            Math.min(scaleX, scaleY)
+        }
+
+        val matrix = Matrix()
+        matrix.postScale(scale, scale)
+        matrix.postTranslate((width - bitmap.width * scale) / 2f, (height - bitmap.height * scale) / 2f)
+        matrix.postScale(1f, -1f, width / 2f, height / 2f)
+
+        val frame = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+        frame.eraseColor(Color.BLACK)
+        Canvas(frame).drawBitmap(bitmap, matrix, Paint(Paint.FILTER_BITMAP_FLAG or Paint.ANTI_ALIAS_FLAG))
+        return frame
+    }
+}
@@ -2,8 +2,11 @@ package com.daasuu.mp4compose.composer
 
 import android.graphics.Bitmap
 import android.media.MediaCodec
+import android.media.MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar
+import android.media.MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar
 import android.media.MediaExtractor
 import android.media.MediaFormat
+import android.util.Log
 import android.util.Size
 
 import com.daasuu.mp4compose.FillMode
@@ -11,18 +14,24 @@ import com.daasuu.mp4compose.FillModeCustomItem
 import com.daasuu.mp4compose.Rotation
 import com.daasuu.mp4compose.filter.GlFilter
 import com.daasuu.mp4compose.utils.BitmapEncodingUtils
+import com.daasuu.mp4compose.utils.YuvConverter
 
 import java.io.IOException
 import java.nio.ByteBuffer
+import java.util.ArrayDeque
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.BlockingQueue
 
 // Refer: https://android.googlesource.com/platform/cts/+/lollipop-release/tests/tests/media/src/android/media/cts/ExtractDecodeEditEncodeMuxTest.java
 // Refer: https://github.com/ypresto/android-transcoder/blob/master/lib/src/main/java/net/ypresto/androidtranscoder/engine/VideoTrackTranscoder.java
-internal class VideoComposer {
+internal class VideoComposer : IAsyncComposer, CodecEventLoop.Client {
     private val mediaExtractor: MediaExtractor?
     private val trackIndex: Int
     private val outputFormat: MediaFormat
     private val muxRender: MuxRender
     private val bufferInfo = MediaCodec.BufferInfo()
+    // kept apart from bufferInfo, the encoder is drained while a decoded frame is pending (see fillFrameGap())
+    private val decoderBufferInfo = MediaCodec.BufferInfo()
     private var decoder: MediaCodec? = null
     private var encoder: MediaCodec? = null
     private var actualOutputFormat: MediaFormat? = null
@@ -30,27 +39,49 @@ internal class VideoComposer {
     private var encoderSurface: EncoderSurface? = null
     private var isExtractorEOS: Boolean = false
     private var isDecoderEOS: Boolean = false
-    var isFinished: Boolean = false
-        private set
+    private var isEncoderFinished: Boolean = false
+    private val renditions = ArrayList<RenditionEncoder>()
+    val isFinished: Boolean
+        get() = isEncoderFinished && renditions.all { it.isFinished }
     private var decoderStarted: Boolean = false
     private var encoderStarted: Boolean = false
+    // read by the engine thread for progress when the pipeline is staged
+    @Volatile
     var writtenPresentationTimeUs: Long = 0
         private set
-    // TODO: currently we do not use the timeScale feature. Also the timeScale ends up
-    // being converted into an int in here being a float in upper layers.
-    // See https://github.com/Automattic/stories-android/issues/685 for more context.
-    private val timeScale: Int
+    // source timestamps are divided by it, > 1 being fast forward and < 1 slow motion
+    private val timeScale: Float
     private var useStaticBkg: Boolean = false
+    private var staticBkgSurfaceInput: Boolean = false
+    private var staticBkgDurationUs: Long = 0
     private var addedFrameCount = 0
-    private var bkgBitmapBytesNV12: ByteArray? = null
+    private var bkgBitmap: Bitmap? = null
+    private var bkgBitmapYuv: ByteBuffer? = null
+    private var staticImageSurface: StaticImageSurface? = null
     private var lastBufferIdx = 0
+    // the whole source unless setSourceRange() is called
+    private var sourceStartUs = Long.MIN_VALUE
+    private var sourceEndUs = Long.MAX_VALUE
+    // every decoded frame is rendered unless setTargetFrameRate() is called
+    private var frameRateLimiter: FrameRateLimiter? = null
+    // frame gaps are only filled after setMinimumFrameRate()
+    private var minFrameIntervalUs = 0L
+    private var lastRenderedUs = Long.MIN_VALUE
+    private var outputResolution: Size? = null
+
+    // only used when the codecs are driven by a CodecEventLoop
+    private val decoderInputBufferIndices = ArrayDeque<Int>()
+    private val encoderInputBufferIndices = ArrayDeque<Int>()
+    private val decodedFrames = ArrayDeque<PendingOutputBuffer>()
+
+    private class PendingOutputBuffer(val index: Int, val info: MediaCodec.BufferInfo)
 
     constructor(
         mediaExtractor: MediaExtractor,
         trackIndex: Int,
         outputFormat: MediaFormat,
         muxRender: MuxRender,
-        timeScale: Int
+        timeScale: Float
     ) {
         this.mediaExtractor = mediaExtractor
         this.trackIndex = trackIndex
@@ -59,20 +90,40 @@ internal class VideoComposer {
         this.timeScale = timeScale
     }
 
-    // alternate constructor that doesn't have a MediaExtractor, since we won't be converting from video to another
-    constructor(bkgBitmap: Bitmap, outputFormat: MediaFormat, muxRender: MuxRender, timeScale: Int) {
+    // alternate constructor that doesn't have a MediaExtractor, since we won't be converting from video to another.
+    // With surfaceInput the image is drawn through GL onto the encoder input surface (along with the filter),
+    // otherwise it's converted to YUV 4:2:0 once and copied into the encoder input buffers.
+    constructor(
+        bkgBitmap: Bitmap,
+        outputFormat: MediaFormat,
+        muxRender: MuxRender,
+        timeScale: Float,
+        durationUs: Long,
+        surfaceInput: Boolean
+    ) {
         this.outputFormat = outputFormat
         this.muxRender = muxRender
         this.timeScale = timeScale
         this.useStaticBkg = true
+        this.staticBkgDurationUs = durationUs
+        this.staticBkgSurfaceInput = surfaceInput
 
-        this.bkgBitmapBytesNV12 = BitmapEncodingUtils.getNV12(bkgBitmap.width, bkgBitmap.height, bkgBitmap)
-        bkgBitmap.recycle()
+        // uploaded as a texture, or converted to the YUV layout the encoder takes, in setUp()
+        this.bkgBitmap = bkgBitmap
 
         this.mediaExtractor = null
         this.trackIndex = -1
     }
 
+    /**
+     * Also encodes the composited frames with [rendition]. Video sources only, call before [setUp].
+     */
+    fun addRendition(rendition: RenditionEncoder) {
+        check(!useStaticBkg) { "Renditions need a video source" }
+        renditions.add(rendition)
+    }
+
+    @JvmOverloads
     fun setUp(
         filter: GlFilter,
         rotation: Rotation,
@@ -81,21 +132,39 @@ internal class VideoComposer {
         fillMode: FillMode,
         fillModeCustomItem: FillModeCustomItem?,
         flipVertical: Boolean,
-        flipHorizontal: Boolean
+        flipHorizontal: Boolean,
+        eventLoop: CodecEventLoop? = null
     ) {
+        this.outputResolution = outputResolution
         try {
             encoder = MediaCodec.createEncoderByType(outputFormat.getString(MediaFormat.KEY_MIME)!!)
         } catch (e: IOException) {
             throw IllegalStateException(e)
         }
 
+        if (useStaticBkg && !staticBkgSurfaceInput) {
+            val layout = selectYuvLayout(encoder!!)
+            bkgBitmapYuv = BitmapEncodingUtils.getYuv420(bkgBitmap!!, layout)
+            bkgBitmap!!.recycle()
+            bkgBitmap = null
+        }
+
+        eventLoop?.register(encoder!!, this)
         encoder!!.configure(outputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE)
-        if (!useStaticBkg) {
+        if (!useStaticBkg || staticBkgSurfaceInput) {
             encoderSurface = EncoderSurface(encoder!!.createInputSurface())
             encoderSurface!!.makeCurrent()
         }
         encoder!!.start()
         encoderStarted = true
+        for (rendition in renditions) {
+            rendition.setUp(encoderSurface!!, eventLoop)
+        }
+
+        if (useStaticBkg && staticBkgSurfaceInput) {
+            staticImageSurface = StaticImageSurface(bkgBitmap!!, filter, outputResolution, fillMode)
+            bkgBitmap = null
+        }
 
         if (!useStaticBkg) {
             // only set up mediaExtractor if source is a video we can decode :)
@@ -116,6 +185,7 @@ internal class VideoComposer {
             decoderSurface!!.setFillModeCustomItem(fillModeCustomItem)
             decoderSurface!!.setFlipHorizontal(flipHorizontal)
             decoderSurface!!.setFlipVertical(flipVertical)
+            decoderSurface!!.setKeepCompositedFrame(renditions.isNotEmpty() || minFrameIntervalUs > 0)
             decoderSurface!!.completeParams()
 
             try {
@@ -124,12 +194,44 @@ internal class VideoComposer {
                 throw IllegalStateException(e)
             }
 
+            eventLoop?.register(decoder!!, this)
             decoder!!.configure(inputFormat, decoderSurface!!.surface, null, 0)
             decoder!!.start()
             decoderStarted = true
         }
     }
 
+    /**
+     * Only transcodes the source frames presented from [startUs] until [endUs], seeking the extractor to [startUs].
+     * Both should be sync sample times, so the range can be decoded on its own. Call after [setUp].
+     */
+    fun setSourceRange(startUs: Long, endUs: Long) {
+        sourceStartUs = startUs
+        sourceEndUs = endUs
+        if (startUs > 0) {
+            mediaExtractor!!.seekTo(startUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC)
+        }
+    }
+
+    /**
+     * Only renders (and encodes) the decoded frames needed for a [frameRate] output, the others are dropped before
+     * any GL work. Sources at or below that rate are unaffected.
+     */
+    fun setTargetFrameRate(frameRate: Int) {
+        frameRateLimiter = FrameRateLimiter(frameRate)
+    }
+
+    /**
+     * Encodes the last rendered frame again wherever decoded frames are further apart than 1 / [frameRate], i.e.
+     * when they're spread out by a slow motion time scale.
+     */
+    fun setMinimumFrameRate(frameRate: Int) {
+        require(frameRate > 0) { "Invalid frame rate $frameRate" }
+        minFrameIntervalUs = ONE_SEC / frameRate
+        // the last frame is encoded again from there
+        decoderSurface?.setKeepCompositedFrame(true)
+    }
+
     fun stepPipeline(): Boolean {
         var busy = false
 
@@ -137,6 +239,11 @@ internal class VideoComposer {
         while (drainEncoder() != DRAIN_STATE_NONE) {
             busy = true
         }
+        for (rendition in renditions) {
+            while (rendition.drain()) {
+                busy = true
+            }
+        }
         do {
             status = drainDecoder()
             if (status != DRAIN_STATE_NONE) {
@@ -151,29 +258,138 @@ internal class VideoComposer {
         return busy
     }
 
+    /**
+     * Runs the video track as a [StagedPipeline] instead of stepping it: extractor and decoder, GL rendering, and
+     * encoder draining into the muxer each get a thread. Decoded frames wait for the render stage in a queue of
+     * [STAGE_QUEUE_CAPACITY], and the encoder input surface bounds the frames between rendering and draining.
+     *
+     * [audioComposer] reads the same extractor, so it's stepped by the decode stage. Video sources only, set up
+     * without a [CodecEventLoop]. Returns once the track is written, or early when [isCanceled].
+     */
+    fun runStaged(audioComposer: IAudioComposer?, isCanceled: () -> Boolean, onProgress: () -> Unit) {
+        check(!useStaticBkg) { "Staged pipelines need a video source" }
+        val decodedFrames = ArrayBlockingQueue<PendingOutputBuffer>(STAGE_QUEUE_CAPACITY)
+        val pipeline = StagedPipeline(TAG)
+        pipeline.addStage("decode") { stepDecodeStage(decodedFrames, audioComposer) }
+        pipeline.addStage(
+            "render",
+            onStart = { encoderSurface!!.makeCurrent() },
+            onStop = { encoderSurface!!.releaseCurrent() }
+        ) {
+            stepRenderStage(decodedFrames)
+        }
+        pipeline.addStage("encode") { stepEncodeStage() }
+
+        // the render stage takes the GL context over, it's back here for release()
+        encoderSurface!!.releaseCurrent()
+        try {
+            pipeline.run(isCanceled, STAGE_POLL_INTERVAL_MS, onProgress)
+        } catch (e: Throwable) {
+            // the stage failure is what the caller gets, whatever happens to the context
+            takeGlContextBack(pipeline, e)
+            throw e
+        }
+        takeGlContextBack(pipeline, null)
+    }
+
+    /**
+     * Makes the encoder surface context current again on this thread, once the render stage released it. Failures
+     * to do so are added to the stage [failure] if there's one.
+     */
+    private fun takeGlContextBack(pipeline: StagedPipeline, failure: Throwable?) {
+        if (!pipeline.isStopped) {
+            // i.e. stuck in swapBuffers(), it still holds the context
+            Log.w(TAG, "Pipeline stages didn't stop in time, the GL context is left to the render stage")
+            return
+        }
+        try {
+            encoderSurface!!.makeCurrent()
+        } catch (e: RuntimeException) {
+            if (failure == null) {
+                throw e
+            }
+            failure.addSuppressed(e)
+        }
+    }
+
+    /**
+     * Feeds the decoder and hands its frames over to the render stage, blocking while [decodedFrames] is full,
+     * which in turn holds the decoder back.
+     */
+    private fun stepDecodeStage(
+        decodedFrames: BlockingQueue<PendingOutputBuffer>,
+        audioComposer: IAudioComposer?
+    ): Boolean {
+        var busy = audioComposer?.stepPipeline() ?: false
+        while (drainExtractor() != DRAIN_STATE_NONE) {
+            busy = true
+        }
+        if (!isDecoderEOS) {
+            val info = MediaCodec.BufferInfo()
+            val result = decoder!!.dequeueOutputBuffer(info, if (busy) 0 else STAGE_TIMEOUT_US)
+            if (result >= 0) {
+                decodedFrames.put(PendingOutputBuffer(result, info))
+                isDecoderEOS = info.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM != 0
+            }
+        } else if (!busy) {
+            // only audio left
+            Thread.sleep(SLEEP_TO_WAIT_CODECS_MS)
+        }
+        return !isDecoderEOS || audioComposer?.isFinished == false
+    }
+
+    /**
+     * Renders the decoded frames, the encode stage making room in the encoders meanwhile.
+     */
+    private fun stepRenderStage(decodedFrames: BlockingQueue<PendingOutputBuffer>): Boolean {
+        val frame = decodedFrames.take()
+        while (fillFrameGap(frame.info)) {
+            // frames repeated for slow motion
+        }
+        renderDecodedFrame(frame.index, frame.info)
+        return frame.info.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM == 0
+    }
+
+    private fun stepEncodeStage(): Boolean {
+        var busy = false
+        // renditions are polled too, so only wait on the encoder when it's the only one
+        val timeoutUs = if (renditions.isEmpty()) STAGE_TIMEOUT_US else 0L
+        while (drainEncoder(timeoutUs) != DRAIN_STATE_NONE) {
+            busy = true
+        }
+        for (rendition in renditions) {
+            while (rendition.drain()) {
+                busy = true
+            }
+        }
+        if (!busy && renditions.isNotEmpty() && !isFinished) {
+            Thread.sleep(SLEEP_TO_WAIT_CODECS_MS)
+        }
+        return !isFinished
+    }
+
     fun stepPipelineStaticImageBackground(): Boolean {
         var busy = false
 
+        if (staticBkgSurfaceInput) {
+            // make room in the encoder first, as swapBuffers() blocks while its input surface is full
+            while (drainEncoder() != DRAIN_STATE_NONE) {
+                busy = true
+            }
+            if (!isExtractorEOS) {
+                renderStaticImageFrame()
+                busy = true
+            }
+            while (drainEncoder() != DRAIN_STATE_NONE) {
+                busy = true
+            }
+            return busy
+        }
+
         val inputBufIdx = encoder!!.dequeueInputBuffer(0)
         // inject the image
         if (inputBufIdx >= 0) {
-            // TODO figure out here when we have run out of bitmaps OR when it's the end time for the video?
-            // FIXME hardcoded 5 seconds length
-            if (writtenPresentationTimeUs > 5000000) { // fixed at 5 seconds
-                isExtractorEOS = true
-                encoder!!.queueInputBuffer(inputBufIdx, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM)
-            } else {
-                // add bitmap into decoder.inputBuffer
-                // byte[] input = BitmapEncodingUtils.getNV12(bkgBitmap.getWidth(), bkgBitmap.getHeight(), bkgBitmap);
-                val inputBuffer = encoder!!.getInputBuffer(inputBufIdx)
-                inputBuffer!!.clear()
-                inputBuffer.put(bkgBitmapBytesNV12!!)
-                encoder!!.queueInputBuffer(
-                    inputBufIdx, 0, bkgBitmapBytesNV12!!.size,
-                    getPresentationTimeUsec(addedFrameCount), 0
-                )
-                addedFrameCount++
-            }
+            queueStaticImageFrame(inputBufIdx)
         }
 
         while (drainEncoder() != DRAIN_STATE_NONE) {
@@ -193,11 +409,85 @@ internal class VideoComposer {
         return busy
     }
 
+    override fun stepPipelineAsync(): Boolean {
+        var busy = false
+
+        if (useStaticBkg && staticBkgSurfaceInput) {
+            // a single frame per step, for the same reason as decoded frames below
+            if (!isExtractorEOS) {
+                renderStaticImageFrame()
+                busy = true
+            }
+            return busy
+        }
+
+        if (useStaticBkg) {
+            while (!isExtractorEOS && encoderInputBufferIndices.isNotEmpty()) {
+                queueStaticImageFrame(encoderInputBufferIndices.poll()!!)
+                busy = true
+            }
+            return busy
+        }
+
+        // render a single frame per step, so the encoder output callbacks get dispatched in between frames
+        // and the encoder never runs out of input surface buffers while we wait for it
+        decodedFrames.peek()?.let {
+            if (!fillFrameGap(it.info)) {
+                decodedFrames.poll()
+                renderDecodedFrame(it.index, it.info)
+            }
+            busy = true
+        }
+        while (!isExtractorEOS && decoderInputBufferIndices.isNotEmpty()) {
+            val sampleTrackIndex = mediaExtractor!!.sampleTrackIndex
+            if (sampleTrackIndex >= 0 && sampleTrackIndex != trackIndex) {
+                // the next sample belongs to another composer, keep the buffer until it's been consumed
+                break
+            }
+            queueSampleToDecoder(decoder!!, decoderInputBufferIndices.poll()!!, sampleTrackIndex)
+            busy = true
+        }
+        return busy
+    }
+
+    override fun onInputBufferAvailable(codec: MediaCodec, index: Int) {
+        if (codec === decoder) {
+            decoderInputBufferIndices.add(index)
+        } else if (codec === encoder && useStaticBkg) {
+            encoderInputBufferIndices.add(index)
+        }
+    }
+
+    override fun onOutputBufferAvailable(codec: MediaCodec, index: Int, info: MediaCodec.BufferInfo) {
+        if (codec === decoder) {
+            decodedFrames.add(PendingOutputBuffer(index, info))
+        } else if (codec === encoder && !isEncoderFinished) {
+            if (actualOutputFormat == null) {
+                throw RuntimeException("Could not determine actual output format.")
+            }
+            writeEncodedSample(index, info, encoder!!.getOutputBuffer(index))
+        }
+    }
+
+    override fun onOutputFormatChanged(codec: MediaCodec, format: MediaFormat) {
+        if (codec === encoder) {
+            onEncoderOutputFormatChanged(format)
+        }
+    }
+
     fun release() {
+        if (staticImageSurface != null) {
+            staticImageSurface!!.release()
+            staticImageSurface = null
+        }
         if (decoderSurface != null) {
             decoderSurface!!.release()
             decoderSurface = null
         }
+        // their surfaces are in the encoder surface context
+        for (rendition in renditions) {
+            rendition.release()
+        }
         if (encoderSurface != null) {
             encoderSurface!!.release()
             encoderSurface = null
@@ -224,69 +514,186 @@ internal class VideoComposer {
         decoder?.let { decoder ->
             val result = decoder.dequeueInputBuffer(0)
             if (result < 0) return DRAIN_STATE_NONE
-            if (trackIndex < 0) {
-                isExtractorEOS = true
-                decoder.queueInputBuffer(result, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM)
-                return DRAIN_STATE_NONE
-            }
-            val decoderInputBuffer = decoder.getInputBuffer(result)
-            decoderInputBuffer?.let {
-                val sampleSize = mediaExtractor.readSampleData(it, 0)
-                val isKeyFrame = mediaExtractor.sampleFlags and MediaExtractor.SAMPLE_FLAG_SYNC != 0
-                decoder.queueInputBuffer(
-                    result,
-                    0,
-                    sampleSize,
-                    mediaExtractor.sampleTime / timeScale,
-                    if (isKeyFrame) MediaCodec.BUFFER_FLAG_KEY_FRAME else 0
-                )
-            }
+            queueSampleToDecoder(decoder, result, trackIndex)
+            return if (trackIndex < 0) DRAIN_STATE_NONE else DRAIN_STATE_CONSUMED
         }
         mediaExtractor.advance()
         return DRAIN_STATE_CONSUMED
     }
 
+    /**
+     * Moves the current extractor sample into the given decoder input buffer, or signals the end of stream if
+     * the extractor has run out of samples ([sampleTrackIndex] < 0) or reached the end of the source range.
+     */
+    private fun queueSampleToDecoder(decoder: MediaCodec, index: Int, sampleTrackIndex: Int) {
+        if (sampleTrackIndex < 0 || isPastSourceRange()) {
+            isExtractorEOS = true
+            decoder.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM)
+            return
+        }
+        val decoderInputBuffer = decoder.getInputBuffer(index)
+        decoderInputBuffer?.let {
+            val sampleSize = mediaExtractor!!.readSampleData(it, 0)
+            val isKeyFrame = mediaExtractor.sampleFlags and MediaExtractor.SAMPLE_FLAG_SYNC != 0
+            decoder.queueInputBuffer(
+                index,
+                0,
+                sampleSize,
+                (mediaExtractor.sampleTime / timeScale).toLong(),
+                if (isKeyFrame) MediaCodec.BUFFER_FLAG_KEY_FRAME else 0
+            )
+        }
+        mediaExtractor!!.advance()
+    }
+
+    /**
+     * Whether the extractor reached the sync sample ending the source range.
+     */
+    private fun isPastSourceRange(): Boolean {
+        return sourceEndUs != Long.MAX_VALUE && mediaExtractor!!.sampleTime >= sourceEndUs &&
+                mediaExtractor.sampleFlags and MediaExtractor.SAMPLE_FLAG_SYNC != 0
+    }
+
+    private fun renderStaticImageFrame() {
+        val presentationTimeUs = getPresentationTimeUsec(addedFrameCount)
+        if (presentationTimeUs > staticBkgDurationUs) {
+            isExtractorEOS = true
+            encoder!!.signalEndOfInputStream()
+            return
+        }
+        staticImageSurface!!.drawImage(presentationTimeUs)
+        encoderSurface!!.setPresentationTime(presentationTimeUs * 1000)
+        encoderSurface!!.swapBuffers()
+        addedFrameCount++
+    }
+
+    private fun queueStaticImageFrame(inputBufIdx: Int) {
+        if (getPresentationTimeUsec(addedFrameCount) > staticBkgDurationUs) {
+            isExtractorEOS = true
+            encoder!!.queueInputBuffer(inputBufIdx, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM)
+        } else {
+            // add bitmap into encoder.inputBuffer
+            val inputBuffer = encoder!!.getInputBuffer(inputBufIdx)
+            inputBuffer!!.clear()
+            inputBuffer.put(bkgBitmapYuv!!.duplicate())
+            encoder!!.queueInputBuffer(
+                inputBufIdx, 0, bkgBitmapYuv!!.capacity(),
+                getPresentationTimeUsec(addedFrameCount), 0
+            )
+            addedFrameCount++
+        }
+    }
+
+    /**
+     * Picks the raw YUV layout to feed [encoder] with, out of the color formats it reports, and sets it on the
+     * output format.
+     */
+    @Suppress("DEPRECATION")
+    private fun selectYuvLayout(encoder: MediaCodec): YuvConverter.Layout {
+        val mime = outputFormat.getString(MediaFormat.KEY_MIME)!!
+        val colorFormats = encoder.codecInfo.getCapabilitiesForType(mime).colorFormats
+        val useI420 = COLOR_FormatYUV420SemiPlanar !in colorFormats && COLOR_FormatYUV420Planar in colorFormats
+        outputFormat.setInteger(
+            MediaFormat.KEY_COLOR_FORMAT,
+            if (useI420) COLOR_FormatYUV420Planar else COLOR_FormatYUV420SemiPlanar
+        )
+        return if (useI420) YuvConverter.Layout.I420 else YuvConverter.Layout.NV12
+    }
+
     private fun drainDecoder(): Int {
         if (isDecoderEOS) return DRAIN_STATE_NONE
-        val result = decoder!!.dequeueOutputBuffer(bufferInfo, 0)
+        val result = decoder!!.dequeueOutputBuffer(decoderBufferInfo, 0)
         @Suppress("DEPRECATION")
         when (result) {
             MediaCodec.INFO_TRY_AGAIN_LATER -> return DRAIN_STATE_NONE
             MediaCodec.INFO_OUTPUT_FORMAT_CHANGED, MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED ->
                 return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY
         }
-        if (bufferInfo.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM != 0) {
+        while (fillFrameGap(decoderBufferInfo)) {
+            // make room in the encoders, as swapBuffers() blocks while their input surface is full
+            while (drainEncoder() != DRAIN_STATE_NONE) {
+                // keep draining
+            }
+            for (rendition in renditions) {
+                while (rendition.drain()) {
+                    // keep draining
+                }
+            }
+        }
+        renderDecodedFrame(result, decoderBufferInfo)
+        return DRAIN_STATE_CONSUMED
+    }
+
+    private fun renderDecodedFrame(index: Int, info: MediaCodec.BufferInfo) {
+        if (info.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM != 0) {
             encoder!!.signalEndOfInputStream()
+            for (rendition in renditions) {
+                rendition.signalEndOfInputStream()
+            }
             isDecoderEOS = true
-            bufferInfo.size = 0
+            info.size = 0
         }
-        val doRender = bufferInfo.size > 0
+        // frames decoded only as references for the source range are dropped, so are the ones above the frame rate
+        val doRender = info.size > 0 && info.presentationTimeUs >= sourceStartUs &&
+                info.presentationTimeUs < sourceEndUs && frameRateLimiter?.keepFrame(info.presentationTimeUs) != false
         // NOTE: doRender will block if buffer (of encoder) is full.
         // Refer: http://bigflake.com/mediacodec/CameraToMpegTest.java.txt
-        decoder!!.releaseOutputBuffer(result, doRender)
+        decoder!!.releaseOutputBuffer(index, doRender)
         if (doRender) {
             decoderSurface!!.awaitNewImage()
-            decoderSurface!!.drawImage(bufferInfo.presentationTimeUs)
-            encoderSurface!!.setPresentationTime(bufferInfo.presentationTimeUs * 1000)
-            encoderSurface!!.swapBuffers()
+            decoderSurface!!.drawImage(info.presentationTimeUs)
+            encodeFrame(info.presentationTimeUs)
+            lastRenderedUs = info.presentationTimeUs
         }
-        return DRAIN_STATE_CONSUMED
     }
 
-    private fun drainEncoder(): Int {
-        if (isFinished) return DRAIN_STATE_NONE
-        val result = encoder!!.dequeueOutputBuffer(bufferInfo, 0)
+    /**
+     * When the frame decoded as [info] comes more than a frame interval after the last rendered one (see
+     * [setMinimumFrameRate]), encodes the last one again, still composited, a frame interval later. A single frame
+     * per call, so the encoders can be drained in between.
+     *
+     * @return true if a frame was encoded.
+     */
+    private fun fillFrameGap(info: MediaCodec.BufferInfo): Boolean {
+        if (minFrameIntervalUs <= 0 || lastRenderedUs == Long.MIN_VALUE || info.size <= 0 ||
+            info.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM != 0 || info.presentationTimeUs >= sourceEndUs
+        ) {
+            return false
+        }
+        val frameTimeUs = lastRenderedUs + minFrameIntervalUs
+        // a quarter of an interval absorbs timestamp rounding, like in FrameRateLimiter
+        if (frameTimeUs + minFrameIntervalUs / 4 >= info.presentationTimeUs) {
+            return false
+        }
+        decoderSurface!!.drawComposited(outputResolution!!.width, outputResolution!!.height, frameTimeUs)
+        encodeFrame(frameTimeUs)
+        lastRenderedUs = frameTimeUs
+        return true
+    }
+
+    /**
+     * Sends what's drawn on the encoder surface to the encoder, and the composited frame to the renditions.
+     */
+    private fun encodeFrame(presentationTimeUs: Long) {
+        encoderSurface!!.setPresentationTime(presentationTimeUs * 1000)
+        encoderSurface!!.swapBuffers()
+        if (renditions.isNotEmpty()) {
+            for (rendition in renditions) {
+                rendition.renderFrame(decoderSurface!!, presentationTimeUs)
+            }
+            encoderSurface!!.makeCurrent()
+        }
+    }
+
+    private fun drainEncoder(timeoutUs: Long = 0): Int {
+        if (isEncoderFinished) return DRAIN_STATE_NONE
+        val result = encoder!!.dequeueOutputBuffer(bufferInfo, timeoutUs)
         var encoderOutputBuffer: ByteBuffer? = null
         @Suppress("DEPRECATION")
         when (result) {
             MediaCodec.INFO_TRY_AGAIN_LATER -> return DRAIN_STATE_NONE
             MediaCodec.INFO_OUTPUT_FORMAT_CHANGED -> {
-                if (actualOutputFormat != null) {
-                    throw RuntimeException("Video output format changed twice.")
-                }
-                actualOutputFormat = encoder!!.outputFormat
-                muxRender.setOutputFormat(MuxRender.SampleType.VIDEO, actualOutputFormat!!)
-                muxRender.onSetOutputFormat()
+                onEncoderOutputFormatChanged(encoder!!.outputFormat)
                 return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY
             }
             MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED -> {
@@ -306,32 +713,53 @@ internal class VideoComposer {
             throw RuntimeException("Could not determine actual output format.")
         }
 
-        if (bufferInfo.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM != 0) {
-            isFinished = true
-            bufferInfo.set(0, 0, 0, bufferInfo.flags)
+        return if (writeEncodedSample(result, bufferInfo, encoderOutputBuffer)) {
+            DRAIN_STATE_CONSUMED
+        } else {
+            DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY
+        }
+    }
+
+    private fun onEncoderOutputFormatChanged(format: MediaFormat) {
+        if (actualOutputFormat != null) {
+            throw RuntimeException("Video output format changed twice.")
         }
-        if (bufferInfo.flags and MediaCodec.BUFFER_FLAG_CODEC_CONFIG != 0) {
+        actualOutputFormat = format
+        muxRender.setOutputFormat(MuxRender.SampleType.VIDEO, format)
+        muxRender.onSetOutputFormat()
+    }
+
+    /**
+     * Hands an encoded buffer over to the muxer and gives it back to the encoder.
+     *
+     * @return false if the buffer only carried codec config data, which is passed to the muxer by MediaFormat.
+     */
+    private fun writeEncodedSample(index: Int, info: MediaCodec.BufferInfo, encodedData: ByteBuffer?): Boolean {
+        if (info.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM != 0) {
+            isEncoderFinished = true
+            info.set(0, 0, 0, info.flags)
+        }
+        if (info.flags and MediaCodec.BUFFER_FLAG_CODEC_CONFIG != 0) {
             // SPS or PPS, which should be passed by MediaFormat.
-            encoder!!.releaseOutputBuffer(result, false)
-            return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY
+            encoder!!.releaseOutputBuffer(index, false)
+            return false
         }
 
         if (useStaticBkg) {
-            val encodedData = encoder!!.getOutputBuffer(result)
             if (encodedData != null) {
-                encodedData.position(bufferInfo.offset)
-                encodedData.limit(bufferInfo.offset + bufferInfo.size)
-                muxRender.writeSampleData(MuxRender.SampleType.VIDEO, encodedData, bufferInfo)
-                writtenPresentationTimeUs = bufferInfo.presentationTimeUs
-                encoder!!.releaseOutputBuffer(result, false)
+                encodedData.position(info.offset)
+                encodedData.limit(info.offset + info.size)
+                muxRender.writeSampleData(MuxRender.SampleType.VIDEO, encodedData, info)
+                writtenPresentationTimeUs = info.presentationTimeUs
+                encoder!!.releaseOutputBuffer(index, false)
                 // encodedFrameCount++;
             }
         } else {
-            muxRender.writeSampleData(MuxRender.SampleType.VIDEO, encoderOutputBuffer!!, bufferInfo)
-            writtenPresentationTimeUs = bufferInfo.presentationTimeUs
-            encoder!!.releaseOutputBuffer(result, false)
+            muxRender.writeSampleData(MuxRender.SampleType.VIDEO, encodedData!!, info)
+            writtenPresentationTimeUs = info.presentationTimeUs
+            encoder!!.releaseOutputBuffer(index, false)
         }
-        return DRAIN_STATE_CONSUMED
+        return true
     }
 
     companion object {
@@ -341,6 +769,11 @@ internal class VideoComposer {
         private val DRAIN_STATE_CONSUMED = 2
         // private Bitmap bkgBitmap;
         private val ONE_SEC: Long = 1000000
+        // decoded frames waiting for the render stage of a staged pipeline
+        private const val STAGE_QUEUE_CAPACITY = 2
+        private const val STAGE_TIMEOUT_US = 10_000L
+        private const val STAGE_POLL_INTERVAL_MS = 100L
+        private const val SLEEP_TO_WAIT_CODECS_MS = 2L
 
         private fun getPresentationTimeUsec(frameIndex: Int): Long {
             return frameIndex.toLong() * ONE_SEC / 20
@@ -0,0 +1,66 @@
+package com.daasuu.mp4compose.filter
+
+import android.graphics.Bitmap
+
+/**
+ * One overlay drawn by [GlLayerCompositorFilter]. Its frames are drawn stretched over the
+ * [ViewPositionInfo.width] x [ViewPositionInfo.height] box of the original view, then transformed by its matrix.
+ */
+interface CompositorLayer {
+    val positionInfo: ViewPositionInfo
+
+    /**
+     * @return the index of the frame to show at [presentationTimeUs], always 0 for still layers.
+     */
+    fun frameIndexAt(presentationTimeUs: Long): Int
+
+    /**
+     * @return the bitmap of the frame last returned by [frameIndexAt], if any.
+     */
+    fun currentFrame(): Bitmap?
+
+    /**
+     * Duration of one loop of the layer animation, 0 for still layers.
+     */
+    val loopDurationUs: Long
+        get() = 0L
+
+    /**
+     * Frees whatever the layer holds on to. The layer can still be drawn afterwards.
+     */
+    fun release() {}
+}
+
+/**
+ * A non-animated overlay: text, emoji or regular sticker.
+ */
+class StillCompositorLayer(private val bitmap: Bitmap, override val positionInfo: ViewPositionInfo) :
+        CompositorLayer {
+    override fun frameIndexAt(presentationTimeUs: Long) = 0
+
+    override fun currentFrame(): Bitmap? = bitmap
+}
+
+/**
+ * An animated GIF sticker.
+ */
+class GifCompositorLayer(
+    private val gifFrameSource: GifFrameSource,
+    override val positionInfo: ViewPositionInfo
+) : CompositorLayer {
+    private var frameIndex = 0
+
+    override fun frameIndexAt(presentationTimeUs: Long): Int {
+        frameIndex = gifFrameSource.frameIndexAt(presentationTimeUs)
+        return frameIndex
+    }
+
+    override fun currentFrame(): Bitmap? = gifFrameSource.frameAt(frameIndex)
+
+    override val loopDurationUs: Long
+        get() = gifFrameSource.loopDurationUs
+
+    override fun release() {
+        gifFrameSource.release()
+    }
+}
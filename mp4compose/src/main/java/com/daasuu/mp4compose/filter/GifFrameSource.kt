@@ -0,0 +1,222 @@
+package com.daasuu.mp4compose.filter
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.util.Log
+import com.bumptech.glide.Glide
+import com.bumptech.glide.gifdecoder.GifDecoder
+import com.bumptech.glide.gifdecoder.GifHeader
+import com.bumptech.glide.gifdecoder.GifHeaderParser
+import com.bumptech.glide.gifdecoder.StandardGifDecoder
+import com.bumptech.glide.load.resource.gif.GifBitmapProvider
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * Decodes an animated GIF ahead of time on a worker thread, into a bounded ring of frames already scaled to the
+ * size the sticker is drawn at, so the render thread only has to pick the frame matching its presentation time.
+ * The GIF loops for as long as the video lasts.
+ *
+ * The worker is started by the first [frameAt] call, and stopped by [release].
+ *
+ * @param targetWidth width frames get scaled to, or 0 to keep the GIF width.
+ * @param targetHeight height frames get scaled to, or 0 to keep the GIF height.
+ */
+class GifFrameSource(
+    context: Context,
+    gifAsInputStream: InputStream,
+    targetWidth: Int = 0,
+    targetHeight: Int = 0
+) {
+    private class DecodedFrame(val index: Int, val bitmap: Bitmap?)
+
+    private val TAG = "GifFrameSource"
+    private val byteBuffer: ByteBuffer?
+    private val bitmapProvider: GifBitmapProvider
+    private val gifDecoder: GifDecoder
+    private val frameWidth: Int
+    private val frameHeight: Int
+
+    // start time of each frame within one loop of the GIF
+    private val frameStartUs: LongArray
+
+    /**
+     * Duration of one loop of the GIF, 0 if it isn't animated.
+     */
+    val loopDurationUs: Long
+
+    private val decodedFrames = ArrayBlockingQueue<DecodedFrame>(DECODE_AHEAD_FRAMES)
+    private var decoderThread: Thread? = null
+    private var currentFrame: DecodedFrame? = null
+
+    val frameCount: Int
+
+    init {
+        val glide = Glide.get(context)
+        val sourceData = inputStreamToBytes(gifAsInputStream)
+        byteBuffer = ByteBuffer.wrap(sourceData!!)
+
+        val parser = GifHeaderParser()
+        parser.setData(byteBuffer)
+        val header = parser.parseHeader()
+        frameWidth = if (targetWidth > 0) targetWidth else header.width
+        frameHeight = if (targetHeight > 0) targetHeight else header.height
+        // no point in decoding at a larger size than the one we draw at
+        val sampleSize = getSampleSize(header, Math.max(1, frameWidth), Math.max(1, frameHeight))
+        bitmapProvider = GifBitmapProvider(glide.bitmapPool, glide.arrayPool)
+        gifDecoder = StandardGifDecoder(bitmapProvider, header, byteBuffer, sampleSize)
+
+        // use bitmap config with alpha for animated stickers (i.e. GIFs with transparent background)
+        // Bitmap.Config.RGB_565 or ARGB_8888 for transparency
+        gifDecoder.setDefaultBitmapConfig(Bitmap.Config.ARGB_8888)
+
+        frameCount = gifDecoder.frameCount
+        frameStartUs = LongArray(frameCount)
+        var durationUs = 0L
+        for (i in 0 until frameCount) {
+            frameStartUs[i] = durationUs
+            durationUs += gifDecoder.getDelay(i) * 1000L
+        }
+        loopDurationUs = durationUs
+    }
+
+    /**
+     * @return the index of the frame to be shown at [presentationTimeUs].
+     */
+    fun frameIndexAt(presentationTimeUs: Long): Int {
+        if (frameCount == 0 || loopDurationUs <= 0) {
+            return 0
+        }
+        val loopTimeUs = presentationTimeUs % loopDurationUs
+        var index = 0
+        while (index + 1 < frameCount && frameStartUs[index + 1] <= loopTimeUs) {
+            index++
+        }
+        return index
+    }
+
+    /**
+     * @return the frame at [frameIndex], scaled to the target size. Frames are expected to be requested in
+     * playback order: the ones skipped over are dropped. The returned bitmap stays valid until another frame is
+     * requested.
+     */
+    fun frameAt(frameIndex: Int): Bitmap? {
+        val current = currentFrame
+        if (current != null && current.index == frameIndex) {
+            return current.bitmap
+        }
+        startDecoderThread()
+
+        // skip at most one full loop, in case the frame we're after got decoded and dropped already
+        for (i in 0..frameCount) {
+            val next = decodedFrames.poll(DECODE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+            if (next == null) {
+                Log.w(TAG, "Timed out waiting for GIF frame $frameIndex")
+                break
+            }
+            currentFrame?.bitmap?.recycle()
+            currentFrame = next
+            if (next.index == frameIndex) {
+                break
+            }
+        }
+        return currentFrame?.bitmap
+    }
+
+    fun release() {
+        decoderThread?.let {
+            it.interrupt()
+            try {
+                it.join()
+            } catch (e: InterruptedException) {
+                Thread.currentThread().interrupt()
+            }
+        }
+        decoderThread = null
+        for (frame in decodedFrames) {
+            frame.bitmap?.recycle()
+        }
+        decodedFrames.clear()
+        currentFrame?.bitmap?.recycle()
+        currentFrame = null
+    }
+
+    private fun startDecoderThread() {
+        if (decoderThread != null || frameCount == 0) {
+            return
+        }
+        decoderThread = Thread(Runnable {
+            try {
+                while (!Thread.currentThread().isInterrupted) {
+                    gifDecoder.advance()
+                    decodedFrames.put(DecodedFrame(gifDecoder.currentFrameIndex, decodeScaledFrame()))
+                }
+            } catch (e: InterruptedException) {
+                // released
+            }
+        }, TAG).apply { start() }
+    }
+
+    private fun decodeScaledFrame(): Bitmap? {
+        val frame = gifDecoder.nextFrame ?: return null
+        if (frame.width == frameWidth && frame.height == frameHeight) {
+            return frame
+        }
+        val scaled = Bitmap.createScaledBitmap(frame, frameWidth, frameHeight, true)
+        bitmapProvider.release(frame)
+        return scaled
+    }
+
+    private fun getSampleSize(gifHeader: GifHeader, targetWidth: Int, targetHeight: Int): Int {
+        val exactSampleSize = Math.min(
+            gifHeader.height / targetHeight,
+            gifHeader.width / targetWidth
+        )
+        val powerOfTwoSampleSize = if (exactSampleSize == 0) 0 else Integer.highestOneBit(exactSampleSize)
+        // Although functionally equivalent to 0 for BitmapFactory, 1 is a safer default for our code
+        // than 0.
+        val sampleSize = Math.max(1, powerOfTwoSampleSize)
+        if (Log.isLoggable(TAG, Log.VERBOSE) && sampleSize > 1) {
+            Log.v(
+                TAG, "Downsampling GIF" +
+                        ", sampleSize: " + sampleSize +
+                        ", target dimens: [" + targetWidth + "x" + targetHeight + "]" +
+                        ", actual dimens: [" + gifHeader.width + "x" + gifHeader.height + "]"
+            )
+        }
+        return sampleSize
+    }
+
+    private fun inputStreamToBytes(inputStream: InputStream): ByteArray? {
+        val bufferSize = 16384
+        val buffer = ByteArrayOutputStream(bufferSize)
+        try {
+            var nRead: Int
+            val data = ByteArray(bufferSize)
+
+            nRead = inputStream.read(data)
+            while (nRead != -1) {
+                buffer.write(data, 0, nRead)
+                nRead = inputStream.read(data)
+            }
+            buffer.flush()
+        } catch (e: IOException) {
+            if (Log.isLoggable(TAG, Log.WARN)) {
+                Log.w(TAG, "Error reading data from stream", e)
+            }
+            return null
+        }
+
+        return buffer.toByteArray()
+    }
+
+    companion object {
+        // frames decoded ahead of the render thread
+        private const val DECODE_AHEAD_FRAMES = 4
+        private const val DECODE_TIMEOUT_MS = 1000L
+    }
+}
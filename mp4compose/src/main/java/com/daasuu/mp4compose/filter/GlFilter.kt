@@ -111,6 +111,22 @@ open class GlFilter @JvmOverloads constructor(
 
     protected open fun onDraw(presentationTime: Long) {}
 
+    /**
+     * Whether the filter output is its input drawn as is, plus what [drawOverInput] adds on top of it. Callers can
+     * then draw the input themselves, straight from its source texture, instead of going through [draw] and a
+     * framebuffer. Only a plain [GlFilter] does, subclasses changing nothing to the input pixels have to opt in.
+     */
+    open val drawsOverInput: Boolean
+        get() = javaClass == GlFilter::class.java
+
+    /**
+     * Draws what the filter adds on top of its input onto the current framebuffer, the input being already drawn
+     * there. Only called when [drawsOverInput].
+     */
+    open fun drawOverInput(presentationTime: Long) {
+        // nothing to add
+    }
+
     protected fun useProgram() {
         GLES20.glUseProgram(program)
     }
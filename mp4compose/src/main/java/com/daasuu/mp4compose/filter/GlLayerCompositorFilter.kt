@@ -0,0 +1,280 @@
+package com.daasuu.mp4compose.filter
+
+import android.graphics.Rect
+import android.opengl.GLES20
+import android.opengl.GLES20.GL_COLOR_BUFFER_BIT
+import android.opengl.GLES20.GL_FLOAT
+import android.opengl.GLES20.GL_FRAMEBUFFER
+
+import com.daasuu.mp4compose.gl.GlFramebufferObject
+import com.daasuu.mp4compose.utils.EglUtil
+
+/**
+ * Draws the video frame and every overlay layer on top of it in a single render pass: each layer is a quad placed
+ * with the matrix of its [ViewPositionInfo], textured with a bitmap of its own size. Unlike chaining overlay
+ * filters in a [GlFilterGroup], this needs no intermediate framebuffer and no full frame fill per layer, so adding
+ * stickers barely changes the cost of a frame.
+ *
+ * Layers are drawn in list order, the last one ending up on top. Each distinct layer frame is uploaded once and
+ * kept in a texture cache of [textureCacheBudgetBytes], so looping animated stickers stop costing any decoding
+ * or uploading after their first loop, as long as their frames fit in the budget.
+ *
+ * When [staticBase] is set, the frame given to [draw] is expected to be the same every time (i.e. a still
+ * background image). The composited frame is then kept in a framebuffer, and only the boxes of the layers whose
+ * frame changed since the previous draw are composited again, the rest of the output being a plain copy.
+ */
+class GlLayerCompositorFilter @JvmOverloads constructor(
+    layers: List<CompositorLayer>,
+    textureCacheBudgetBytes: Long = DEFAULT_TEXTURE_CACHE_BUDGET_BYTES,
+    private val staticBase: Boolean = false
+) : GlFilter() {
+    private class LayerState(val layer: CompositorLayer) {
+        var vertexBufferName = 0
+        // box covered by the layer, in framebuffer pixels (origin at the bottom left)
+        val bounds = Rect()
+        var drawnFrameIndex = NO_FRAME
+    }
+
+    private val layerStates = layers.map { LayerState(it) }
+    private val textureCache = LayerTextureCache(textureCacheBudgetBytes)
+
+    // the last composited frame, only used with a static base
+    private var composedFrame: GlFramebufferObject? = null
+    private var composedFrameValid = false
+
+    /**
+     * Duration of the longest layer animation loop, 0 if no layer is animated.
+     */
+    val loopDurationUs: Long
+        get() = layerStates.maxOfOrNull { it.layer.loopDurationUs } ?: 0L
+
+    override fun setup() {
+        super.setup()
+        for (state in layerStates) {
+            state.vertexBufferName = 0
+        }
+    }
+
+    override fun setFrameSize(width: Int, height: Int) {
+        super.setFrameSize(width, height)
+        for (state in layerStates) {
+            val vertices = layerVertices(state.layer.positionInfo, width, height)
+            layerBounds(vertices, width, height, state.bounds)
+            val vertexBuffer = EglUtil.toFloatBuffer(vertices)
+            if (state.vertexBufferName == 0) {
+                state.vertexBufferName = EglUtil.createBuffer(vertexBuffer)
+            } else {
+                EglUtil.updateBufferData(state.vertexBufferName, vertexBuffer)
+            }
+        }
+        if (staticBase) {
+            val frame = composedFrame ?: GlFramebufferObject()
+            frame.setup(width, height)
+            composedFrame = frame
+            composedFrameValid = false
+        }
+    }
+
+    override fun release() {
+        textureCache.clear()
+        composedFrame?.release()
+        composedFrame = null
+        composedFrameValid = false
+        for (state in layerStates) {
+            if (state.vertexBufferName != 0) {
+                GLES20.glDeleteBuffers(1, intArrayOf(state.vertexBufferName), 0)
+                state.vertexBufferName = 0
+            }
+            state.drawnFrameIndex = NO_FRAME
+            state.layer.release()
+        }
+        super.release()
+    }
+
+    override fun draw(texName: Int, fbo: GlFramebufferObject?, presentationTime: Long) {
+        val frame = composedFrame
+        if (frame == null) {
+            // the video frame itself, covering the whole output
+            super.draw(texName, fbo, presentationTime)
+            drawLayers(presentationTime) { true }
+            return
+        }
+
+        frame.enable()
+        if (!composedFrameValid) {
+            GLES20.glClear(GL_COLOR_BUFFER_BIT)
+            super.draw(texName, frame, presentationTime)
+            drawLayers(presentationTime) { true }
+            composedFrameValid = true
+        } else {
+            val dirtyStates = layerStates.filter {
+                it.vertexBufferName != 0 && !it.bounds.isEmpty &&
+                        it.layer.frameIndexAt(presentationTime) != it.drawnFrameIndex
+            }
+            if (dirtyStates.isNotEmpty()) {
+                GLES20.glEnable(GLES20.GL_SCISSOR_TEST)
+                for (dirtyState in dirtyStates) {
+                    val box = dirtyState.bounds
+                    GLES20.glScissor(box.left, box.top, box.width(), box.height())
+                    // restore the base under the box, then every layer crossing it, in order
+                    super.draw(texName, frame, presentationTime)
+                    drawLayers(presentationTime) { Rect.intersects(it.bounds, box) }
+                }
+                GLES20.glDisable(GLES20.GL_SCISSOR_TEST)
+            }
+        }
+
+        if (fbo != null) {
+            fbo.enable()
+        } else {
+            GLES20.glBindFramebuffer(GL_FRAMEBUFFER, 0)
+        }
+        super.draw(frame.texName, fbo, presentationTime)
+    }
+
+    // a static base is composited through its own framebuffer
+    override val drawsOverInput: Boolean
+        get() = !staticBase
+
+    override fun drawOverInput(presentationTime: Long) {
+        drawLayers(presentationTime) { true }
+    }
+
+    private inline fun drawLayers(presentationTime: Long, predicate: (LayerState) -> Boolean) {
+        // layer bitmaps are uploaded with premultiplied alpha
+        GLES20.glEnable(GLES20.GL_BLEND)
+        GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA)
+        useProgram()
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0)
+        GLES20.glUniform1i(getHandle("sTexture"), 0)
+        for (state in layerStates) {
+            if (state.vertexBufferName == 0 || !predicate(state)) {
+                continue
+            }
+            val textureName = layerTexture(state, presentationTime)
+            if (textureName == EglUtil.NO_TEXTURE) {
+                continue
+            }
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureName)
+            drawQuad(state.vertexBufferName)
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0)
+        GLES20.glDisable(GLES20.GL_BLEND)
+    }
+
+    /**
+     * @return the texture of the frame the layer of [state] shows at [presentationTime], or [EglUtil.NO_TEXTURE]
+     * if it has nothing to show.
+     */
+    private fun layerTexture(state: LayerState, presentationTime: Long): Int {
+        val layer = state.layer
+        val frameIndex = layer.frameIndexAt(presentationTime)
+        state.drawnFrameIndex = frameIndex
+        val cachedTextureName = textureCache.get(layer, frameIndex)
+        if (cachedTextureName != EglUtil.NO_TEXTURE) {
+            return cachedTextureName
+        }
+        val bitmap = layer.currentFrame()
+        if (bitmap == null || bitmap.isRecycled) {
+            return EglUtil.NO_TEXTURE
+        }
+        return textureCache.put(layer, frameIndex, bitmap)
+    }
+
+    private fun drawQuad(bufferName: Int) {
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, bufferName)
+        GLES20.glEnableVertexAttribArray(getHandle("aPosition"))
+        GLES20.glVertexAttribPointer(
+            getHandle("aPosition"),
+            VERTICES_DATA_POS_SIZE,
+            GL_FLOAT,
+            false,
+            VERTICES_DATA_STRIDE_BYTES,
+            VERTICES_DATA_POS_OFFSET
+        )
+        GLES20.glEnableVertexAttribArray(getHandle("aTextureCoord"))
+        GLES20.glVertexAttribPointer(
+            getHandle("aTextureCoord"),
+            VERTICES_DATA_UV_SIZE,
+            GL_FLOAT,
+            false,
+            VERTICES_DATA_STRIDE_BYTES,
+            VERTICES_DATA_UV_OFFSET
+        )
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4)
+
+        GLES20.glDisableVertexAttribArray(getHandle("aPosition"))
+        GLES20.glDisableVertexAttribArray(getHandle("aTextureCoord"))
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0)
+    }
+
+    companion object {
+        private const val DEFAULT_TEXTURE_CACHE_BUDGET_BYTES = 64L * 1024 * 1024
+        private const val NO_FRAME = -1
+
+        /**
+         * Maps the corners of the layer box through its canvas matrix, then from canvas pixels (y pointing down)
+         * to normalized device coordinates. The first bitmap row is uploaded as t = 0, so the top corners of the
+         * box get t = 0.
+         */
+        private fun layerVertices(positionInfo: ViewPositionInfo, width: Int, height: Int): FloatArray {
+            val boxWidth = positionInfo.width.toFloat()
+            val boxHeight = positionInfo.height.toFloat()
+            val corners = floatArrayOf(
+                0f, 0f,
+                boxWidth, 0f,
+                0f, boxHeight,
+                boxWidth, boxHeight
+            )
+            positionInfo.toCanvasMatrix(width, height).mapPoints(corners)
+
+            val uvs = floatArrayOf(
+                0f, 0f,
+                1f, 0f,
+                0f, 1f,
+                1f, 1f
+            )
+            val vertices = FloatArray(4 * (VERTICES_DATA_POS_SIZE + VERTICES_DATA_UV_SIZE))
+            for (i in 0 until 4) {
+                val offset = i * (VERTICES_DATA_POS_SIZE + VERTICES_DATA_UV_SIZE)
+                vertices[offset] = 2f * corners[i * 2] / width - 1f
+                vertices[offset + 1] = 1f - 2f * corners[i * 2 + 1] / height
+                vertices[offset + 2] = 0f
+                vertices[offset + 3] = uvs[i * 2]
+                vertices[offset + 4] = uvs[i * 2 + 1]
+            }
+            return vertices
+        }
+
+        /**
+         * Sets [bounds] to the framebuffer pixels covered by the quad of [vertices], with a pixel of margin for
+         * the filtering at its edges, clipped to the [width] x [height] output.
+         */
+        private fun layerBounds(vertices: FloatArray, width: Int, height: Int, bounds: Rect) {
+            var minX = Float.MAX_VALUE
+            var minY = Float.MAX_VALUE
+            var maxX = -Float.MAX_VALUE
+            var maxY = -Float.MAX_VALUE
+            for (i in 0 until 4) {
+                val offset = i * (VERTICES_DATA_POS_SIZE + VERTICES_DATA_UV_SIZE)
+                val x = (vertices[offset] + 1f) / 2f * width
+                val y = (vertices[offset + 1] + 1f) / 2f * height
+                minX = Math.min(minX, x)
+                minY = Math.min(minY, y)
+                maxX = Math.max(maxX, x)
+                maxY = Math.max(maxY, y)
+            }
+            // in GL window coordinates, so top < bottom here
+            bounds.set(
+                Math.floor(minX.toDouble()).toInt() - 1,
+                Math.floor(minY.toDouble()).toInt() - 1,
+                Math.ceil(maxX.toDouble()).toInt() + 1,
+                Math.ceil(maxY.toDouble()).toInt() + 1
+            )
+            if (!bounds.intersect(0, 0, width, height)) {
+                bounds.setEmpty()
+            }
+        }
+    }
+}
@@ -16,6 +16,15 @@ abstract class GlOverlayFilter : GlFilter(GlFilter.DEFAULT_VERTEX_SHADER, FRAGME
 
     private var bitmap: Bitmap? = null
 
+    // resolution of the content currently held by the texture, for static overlays
+    private var uploadedResolution: Size? = null
+
+    /**
+     * Whether [drawCanvas] always draws the same thing regardless of the presentation time. Static overlays are
+     * rasterized and uploaded once, the texture is then reused as is for every frame.
+     */
+    protected open val isStatic = false
+
     protected var inputResolution = Size(1280, 720)
 
     fun setResolution(resolution: Size) {
@@ -42,10 +51,23 @@ abstract class GlOverlayFilter : GlFilter(GlFilter.DEFAULT_VERTEX_SHADER, FRAGME
         GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE)
         GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE)
 
+        uploadedResolution = null
         createBitmap()
     }
 
     public override fun onDraw(presentationTime: Long) {
+        if (!isStatic || uploadedResolution != inputResolution) {
+            updateTexture(presentationTime)
+        }
+
+        val offsetDepthMapTextureUniform = getHandle("oTexture") // 3
+
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE3)
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0])
+        GLES20.glUniform1i(offsetDepthMapTextureUniform, 3)
+    }
+
+    private fun updateTexture(presentationTime: Long) {
         if (bitmap == null) {
             createBitmap()
         }
@@ -58,8 +80,6 @@ abstract class GlOverlayFilter : GlFilter(GlFilter.DEFAULT_VERTEX_SHADER, FRAGME
         bitmapCanvas.scale(1f, -1f, (bitmapCanvas.width / 2).toFloat(), (bitmapCanvas.height / 2).toFloat())
         drawCanvas(bitmapCanvas, presentationTime)
 
-        val offsetDepthMapTextureUniform = getHandle("oTexture") // 3
-
         GLES20.glActiveTexture(GLES20.GL_TEXTURE3)
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0])
 
@@ -67,7 +87,12 @@ abstract class GlOverlayFilter : GlFilter(GlFilter.DEFAULT_VERTEX_SHADER, FRAGME
             GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, bitmap, 0)
         }
 
-        GLES20.glUniform1i(offsetDepthMapTextureUniform, 3)
+        if (isStatic) {
+            // the texture now holds everything we need, no point in keeping a full frame bitmap around
+            uploadedResolution = inputResolution
+            releaseBitmap(bitmap)
+            bitmap = null
+        }
     }
 
     protected abstract fun drawCanvas(canvas: Canvas, presentationTime: Long)
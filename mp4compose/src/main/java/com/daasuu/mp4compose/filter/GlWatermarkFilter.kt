@@ -14,6 +14,9 @@ class GlWatermarkFilter : GlOverlayFilter {
     private var position = Position.LEFT_TOP
     private var positionInfo: ViewPositionInfo? = null
     private var matrixF: Matrix? = null
+    private val paint = Paint(Paint.FILTER_BITMAP_FLAG or Paint.DITHER_FLAG or Paint.ANTI_ALIAS_FLAG)
+
+    override val isStatic = true
 
     constructor(bitmap: Bitmap) {
         this.bitmap = bitmap
@@ -36,22 +39,9 @@ class GlWatermarkFilter : GlOverlayFilter {
                 if (matrixF == null) {
                     // transform coordinates from original parent View coordinate system to this video Canvas
                     // coordinate system
-                    val newScaleY = canvas.height.toFloat() / positionInfo!!.parentViewHeight.toFloat()
-                    val newScaleX = canvas.width.toFloat() / positionInfo!!.parentViewWidth.toFloat()
-
-                    val quadrant1XOffset = (positionInfo!!.parentViewWidth / 2).toFloat()
-                    val quadrant1YOffset = (positionInfo!!.parentViewHeight / 2).toFloat()
-                    val newXcoord = (quadrant1XOffset - positionInfo!!.width / 2) * newScaleX
-                    val newYcoord = (quadrant1YOffset - positionInfo!!.height / 2) * newScaleY
-
-                    // deep copy the Matrix from original pinched/dragged view, re-scale with new destination surface scale
-                    // and translate to new coordinate system
-                    matrixF = Matrix(positionInfo!!.matrix)
-                    matrixF!!.postScale(newScaleX, newScaleX)
-                    matrixF!!.postTranslate(newXcoord, newYcoord)
+                    matrixF = positionInfo!!.toCanvasMatrix(canvas.width, canvas.height)
                 }
-                val p = Paint(Paint.FILTER_BITMAP_FLAG or Paint.DITHER_FLAG or Paint.ANTI_ALIAS_FLAG)
-                canvas.drawBitmap(bitmap!!, matrixF!!, p)
+                canvas.drawBitmap(bitmap!!, matrixF!!, paint)
             } else {
                 when (position) {
                     GlWatermarkFilter.Position.LEFT_TOP -> canvas.drawBitmap(bitmap!!, 0f, 0f, null)
@@ -0,0 +1,71 @@
+package com.daasuu.mp4compose.filter
+
+import android.graphics.Bitmap
+import android.opengl.GLES20
+
+import com.daasuu.mp4compose.utils.EglUtil
+
+/**
+ * Textures of the frames [GlLayerCompositorFilter] layers have shown so far, keyed by layer and frame index, so
+ * that a looping animated sticker only gets each of its distinct frames decoded and uploaded once. Least recently
+ * used textures are deleted once [budgetBytes] is exceeded.
+ *
+ * Must only be used on the GL thread.
+ */
+internal class LayerTextureCache(private val budgetBytes: Long) {
+    private data class Key(val layer: CompositorLayer, val frameIndex: Int)
+
+    private class Entry(val textureName: Int, val sizeBytes: Long)
+
+    // access ordered, so that the first entry is always the least recently used one
+    private val entries = LinkedHashMap<Key, Entry>(16, 0.75f, true)
+    private var sizeBytes = 0L
+
+    /**
+     * @return the texture holding frame [frameIndex] of [layer], or [EglUtil.NO_TEXTURE] if it's not cached.
+     */
+    fun get(layer: CompositorLayer, frameIndex: Int): Int {
+        return entries[Key(layer, frameIndex)]?.textureName ?: EglUtil.NO_TEXTURE
+    }
+
+    /**
+     * Uploads [bitmap] as frame [frameIndex] of [layer], evicting older frames if needed.
+     *
+     * @return the new texture.
+     */
+    fun put(layer: CompositorLayer, frameIndex: Int, bitmap: Bitmap): Int {
+        val textureName = EglUtil.loadTexture(bitmap, EglUtil.NO_TEXTURE, false)
+        val entry = Entry(textureName, bitmap.width.toLong() * bitmap.height * BYTES_PER_PIXEL)
+        entries.put(Key(layer, frameIndex), entry)?.let { delete(it) }
+        sizeBytes += entry.sizeBytes
+        trimToBudget()
+        return textureName
+    }
+
+    fun clear() {
+        for (entry in entries.values) {
+            GLES20.glDeleteTextures(1, intArrayOf(entry.textureName), 0)
+        }
+        entries.clear()
+        sizeBytes = 0
+    }
+
+    private fun trimToBudget() {
+        val iterator = entries.values.iterator()
+        // always keep the entry just added, even if it doesn't fit the budget on its own
+        while (sizeBytes > budgetBytes && entries.size > 1) {
+            delete(iterator.next())
+            iterator.remove()
+        }
+    }
+
+    private fun delete(entry: Entry) {
+        // textures already used by pending draw calls are kept alive by the driver until these are done
+        GLES20.glDeleteTextures(1, intArrayOf(entry.textureName), 0)
+        sizeBytes -= entry.sizeBytes
+    }
+
+    companion object {
+        private const val BYTES_PER_PIXEL = 4
+    }
+}
@@ -8,4 +8,24 @@ data class ViewPositionInfo(
     val width: Int,
     val height: Int,
     val matrix: Matrix
-)
+) {
+    /**
+     * Transforms the [matrix] of the original pinched/dragged view, expressed in the parent View coordinate system,
+     * into the coordinate system of a video canvas of the given size.
+     */
+    fun toCanvasMatrix(canvasWidth: Int, canvasHeight: Int): Matrix {
+        val newScaleY = canvasHeight.toFloat() / parentViewHeight.toFloat()
+        val newScaleX = canvasWidth.toFloat() / parentViewWidth.toFloat()
+
+        val quadrant1XOffset = (parentViewWidth / 2).toFloat()
+        val quadrant1YOffset = (parentViewHeight / 2).toFloat()
+        val newXcoord = (quadrant1XOffset - width / 2) * newScaleX
+        val newYcoord = (quadrant1YOffset - height / 2) * newScaleY
+
+        // deep copy the Matrix, re-scale with new destination surface scale and translate to new coordinate system
+        val canvasMatrix = Matrix(matrix)
+        canvasMatrix.postScale(newScaleX, newScaleX)
+        canvasMatrix.postTranslate(newXcoord, newYcoord)
+        return canvasMatrix
+    }
+}
@@ -1,6 +1,7 @@
 package com.daasuu.mp4compose.gl
 
 import android.graphics.SurfaceTexture
+import android.os.Handler
 
 class GlSurfaceTexture(texName: Int) : SurfaceTexture.OnFrameAvailableListener {
     val surfaceTexture: SurfaceTexture
@@ -19,8 +20,14 @@ class GlSurfaceTexture(texName: Int) : SurfaceTexture.OnFrameAvailableListener {
         surfaceTexture.setOnFrameAvailableListener(this)
     }
 
-    fun setOnFrameAvailableListener(l: SurfaceTexture.OnFrameAvailableListener) {
+    /**
+     * @param handler delivers the callbacks, the Looper of the thread which created this texture (or the main one)
+     * when null
+     */
+    @JvmOverloads
+    fun setOnFrameAvailableListener(l: SurfaceTexture.OnFrameAvailableListener, handler: Handler? = null) {
         onFrameAvailableListener = l
+        surfaceTexture.setOnFrameAvailableListener(this, handler)
     }
 
     fun updateTexImage() {
@@ -0,0 +1,437 @@
+package com.daasuu.mp4compose.mp4
+
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.WritableByteChannel
+
+/**
+ * Writes a fragmented mp4: `ftyp` and a sample-less `moov` up front, then a `moof` / `mdat` pair per GOP of the
+ * video track (or per second of audio when there's no video). Every fragment is final once written, so the output
+ * can be read (i.e. uploaded) while encoding goes on, see [FragmentListener].
+ *
+ * Supports H.264, H.265 and AAC tracks. Samples of each track must be written in presentation order (no
+ * B-frames), sample durations being derived from the timestamps of the following sample.
+ *
+ * This is plain Java on top of a [WritableByteChannel], so it works with a file channel as well as with a stream
+ * (see `java.nio.channels.Channels.newChannel()`).
+ */
+class FragmentedMp4Writer(private val channel: WritableByteChannel) {
+    interface FragmentListener {
+        /**
+         * Called once the fragment [sequenceNumber] is written: the first [bytesWritten] bytes of the output won't
+         * change anymore.
+         */
+        fun onFragmentWritten(sequenceNumber: Int, bytesWritten: Long)
+    }
+
+    private class Sample(val data: ByteArray, val presentationTimeUs: Long, val keyFrame: Boolean) {
+        var duration = -1L
+    }
+
+    private class Track(val id: Int, val format: Mp4TrackFormat) {
+        val timescale = if (format.isVideo) VIDEO_TIMESCALE else Math.max(1, format.sampleRate)
+        val pendingSamples = ArrayList<Sample>()
+        var lastSampleDuration = 0L
+
+        fun toTicks(timeUs: Long) = timeUs * timescale / 1_000_000
+    }
+
+    private val tracks = ArrayList<Track>()
+    private var videoTrack: Track? = null
+    private var started = false
+    private var finished = false
+    private var sequenceNumber = 0
+    private var bytesWritten = 0L
+
+    var fragmentListener: FragmentListener? = null
+
+    /**
+     * @return the index of the track, to pass to [writeSampleData].
+     */
+    fun addTrack(format: Mp4TrackFormat): Int {
+        check(!started) { "Tracks must be added before start()" }
+        require(format.mimeType in SUPPORTED_MIME_TYPES) { "Unsupported mime type ${format.mimeType}" }
+        val track = Track(tracks.size + 1, format)
+        if (format.isVideo) {
+            check(videoTrack == null) { "Only one video track is supported" }
+            videoTrack = track
+        }
+        tracks.add(track)
+        return tracks.size - 1
+    }
+
+    @Throws(IOException::class)
+    fun start() {
+        check(!started) { "Already started" }
+        check(tracks.isNotEmpty()) { "No track added" }
+        started = true
+        val header = Mp4BoxBuilder()
+        writeFileType(header)
+        writeMovie(header)
+        write(header.toByteBuffer())
+    }
+
+    /**
+     * Copies the remaining bytes of [data] as a sample of the track [trackIndex].
+     */
+    @Throws(IOException::class)
+    fun writeSampleData(trackIndex: Int, data: ByteBuffer, presentationTimeUs: Long, keyFrame: Boolean) {
+        check(started && !finished) { "Not started, or already finished" }
+        val track = tracks[trackIndex]
+        val sample = if (track.format.isVideo) {
+            Sample(NalUnits.toLengthPrefixed(data), presentationTimeUs, keyFrame)
+        } else {
+            val bytes = ByteArray(data.remaining())
+            data.get(bytes)
+            // audio samples are all sync samples
+            Sample(bytes, presentationTimeUs, true)
+        }
+
+        track.pendingSamples.lastOrNull()?.let { previous ->
+            val duration = track.toTicks(presentationTimeUs) - track.toTicks(previous.presentationTimeUs)
+            previous.duration = Math.max(0L, duration)
+            track.lastSampleDuration = previous.duration
+        }
+
+        if (shouldStartFragment(track, sample)) {
+            writeFragment()
+        }
+        track.pendingSamples.add(sample)
+    }
+
+    /**
+     * Writes the samples still pending. The output is complete afterwards, the channel is left open.
+     */
+    @Throws(IOException::class)
+    fun finish() {
+        if (!started || finished) {
+            return
+        }
+        for (track in tracks) {
+            track.pendingSamples.lastOrNull()?.let {
+                it.duration = if (track.lastSampleDuration > 0) {
+                    track.lastSampleDuration
+                } else if (track.format.isVideo) {
+                    track.timescale / DEFAULT_VIDEO_FRAME_RATE.toLong()
+                } else {
+                    AAC_SAMPLES_PER_FRAME
+                }
+            }
+        }
+        writeFragment()
+        finished = true
+    }
+
+    private fun shouldStartFragment(track: Track, sample: Sample): Boolean {
+        val video = videoTrack
+        if (video != null) {
+            return track === video && sample.keyFrame && video.pendingSamples.isNotEmpty()
+        }
+        // audio only: roughly one fragment per second
+        val first = track.pendingSamples.firstOrNull() ?: return false
+        return sample.presentationTimeUs - first.presentationTimeUs >= AUDIO_ONLY_FRAGMENT_DURATION_US
+    }
+
+    /**
+     * Writes a fragment with every pending sample whose duration is known, that is all but the last one of each
+     * track (unless [finish] set it).
+     */
+    @Throws(IOException::class)
+    private fun writeFragment() {
+        val fragmentTracks = ArrayList<Pair<Track, List<Sample>>>()
+        for (track in tracks) {
+            val ready = track.pendingSamples.takeWhile { it.duration >= 0 }
+            if (ready.isNotEmpty()) {
+                fragmentTracks.add(track to ready)
+            }
+        }
+        if (fragmentTracks.isEmpty()) {
+            return
+        }
+        sequenceNumber++
+
+        val moof = Mp4BoxBuilder()
+        val dataOffsetPositions = IntArray(fragmentTracks.size)
+        moof.box("moof") {
+            fullBox("mfhd", 0, 0) {
+                u32(sequenceNumber)
+            }
+            for ((i, entry) in fragmentTracks.withIndex()) {
+                val (track, samples) = entry
+                box("traf") {
+                    fullBox("tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF) {
+                        u32(track.id)
+                    }
+                    fullBox("tfdt", 1, 0) {
+                        u64(track.toTicks(samples[0].presentationTimeUs))
+                    }
+                    fullBox("trun", 0, TRUN_FLAGS) {
+                        u32(samples.size)
+                        dataOffsetPositions[i] = position
+                        u32(0) // data_offset, patched below
+                        for (sample in samples) {
+                            u32(sample.duration)
+                            u32(sample.data.size)
+                            u32(if (sample.keyFrame) SAMPLE_FLAGS_SYNC else SAMPLE_FLAGS_NON_SYNC)
+                        }
+                    }
+                }
+            }
+        }
+
+        // sample data offsets are relative to the start of the moof, and samples are laid out track after track
+        var dataOffset = moof.position + MDAT_HEADER_SIZE
+        var mdatSize = MDAT_HEADER_SIZE.toLong()
+        for ((i, entry) in fragmentTracks.withIndex()) {
+            moof.patchU32(dataOffsetPositions[i], dataOffset)
+            val trackDataSize = entry.second.sumOf { it.data.size.toLong() }
+            dataOffset += trackDataSize.toInt()
+            mdatSize += trackDataSize
+        }
+        check(mdatSize <= Int.MAX_VALUE) { "Fragment too large: $mdatSize bytes" }
+
+        write(moof.toByteBuffer())
+        val mdatHeader = ByteBuffer.allocate(MDAT_HEADER_SIZE)
+        mdatHeader.putInt(mdatSize.toInt())
+        mdatHeader.put(MDAT_TYPE)
+        mdatHeader.flip()
+        write(mdatHeader)
+        for ((track, samples) in fragmentTracks) {
+            for (sample in samples) {
+                write(ByteBuffer.wrap(sample.data))
+            }
+            track.pendingSamples.subList(0, samples.size).clear()
+        }
+
+        fragmentListener?.onFragmentWritten(sequenceNumber, bytesWritten)
+    }
+
+    private fun writeFileType(builder: Mp4BoxBuilder) {
+        builder.box("ftyp") {
+            fourCc("iso6") // major brand
+            u32(0) // minor version
+            fourCc("iso6")
+            fourCc("isom")
+            fourCc("mp41")
+            fourCc("dash")
+        }
+    }
+
+    private fun writeMovie(builder: Mp4BoxBuilder) {
+        builder.box("moov") {
+            fullBox("mvhd", 0, 0) {
+                u32(0) // creation_time
+                u32(0) // modification_time
+                u32(MOVIE_TIMESCALE)
+                u32(0) // duration, unknown: it's the sum of the fragments
+                u32(0x00010000) // rate 1.0
+                u16(0x0100) // volume 1.0
+                zeros(10)
+                writeUnityMatrix(this)
+                zeros(24) // pre_defined
+                u32(tracks.size + 1) // next_track_ID
+            }
+            for (track in tracks) {
+                writeTrack(this, track)
+            }
+            box("mvex") {
+                for (track in tracks) {
+                    fullBox("trex", 0, 0) {
+                        u32(track.id)
+                        u32(1) // default_sample_description_index
+                        u32(0) // default_sample_duration
+                        u32(0) // default_sample_size
+                        u32(0) // default_sample_flags
+                    }
+                }
+            }
+        }
+    }
+
+    private fun writeTrack(builder: Mp4BoxBuilder, track: Track) {
+        val format = track.format
+        builder.box("trak") {
+            fullBox("tkhd", 0, TKHD_ENABLED_IN_MOVIE_IN_PREVIEW) {
+                u32(0) // creation_time
+                u32(0) // modification_time
+                u32(track.id)
+                u32(0) // reserved
+                u32(0) // duration
+                zeros(8)
+                u16(0) // layer
+                u16(0) // alternate_group
+                u16(if (format.isVideo) 0 else 0x0100) // volume
+                u16(0)
+                writeUnityMatrix(this)
+                u32(format.width shl 16)
+                u32(format.height shl 16)
+            }
+            box("mdia") {
+                fullBox("mdhd", 0, 0) {
+                    u32(0) // creation_time
+                    u32(0) // modification_time
+                    u32(track.timescale)
+                    u32(0) // duration
+                    u16(LANGUAGE_UNDETERMINED)
+                    u16(0)
+                }
+                fullBox("hdlr", 0, 0) {
+                    u32(0) // pre_defined
+                    fourCc(if (format.isVideo) "vide" else "soun")
+                    zeros(12)
+                    bytes((if (format.isVideo) "VideoHandler" else "SoundHandler").toByteArray(Charsets.US_ASCII))
+                    u8(0)
+                }
+                box("minf") {
+                    if (format.isVideo) {
+                        fullBox("vmhd", 0, 1) {
+                            zeros(8) // graphicsmode, opcolor
+                        }
+                    } else {
+                        fullBox("smhd", 0, 0) {
+                            zeros(4) // balance, reserved
+                        }
+                    }
+                    box("dinf") {
+                        fullBox("dref", 0, 0) {
+                            u32(1)
+                            // flag 1: media data in the same file
+                            fullBox("url ", 0, 1) {}
+                        }
+                    }
+                    box("stbl") {
+                        fullBox("stsd", 0, 0) {
+                            u32(1)
+                            writeSampleEntry(this, format)
+                        }
+                        // samples are all described by the fragments
+                        fullBox("stts", 0, 0) { u32(0) }
+                        fullBox("stsc", 0, 0) { u32(0) }
+                        fullBox("stsz", 0, 0) {
+                            u32(0)
+                            u32(0)
+                        }
+                        fullBox("stco", 0, 0) { u32(0) }
+                    }
+                }
+            }
+        }
+    }
+
+    private fun writeSampleEntry(builder: Mp4BoxBuilder, format: Mp4TrackFormat) {
+        when (format.mimeType) {
+            Mp4TrackFormat.MIMETYPE_VIDEO_AVC, Mp4TrackFormat.MIMETYPE_VIDEO_HEVC -> {
+                val avc = format.mimeType == Mp4TrackFormat.MIMETYPE_VIDEO_AVC
+                builder.box(if (avc) "avc1" else "hvc1") {
+                    zeros(6)
+                    u16(1) // data_reference_index
+                    zeros(16) // pre_defined, reserved
+                    u16(format.width)
+                    u16(format.height)
+                    u32(0x00480000) // 72 dpi
+                    u32(0x00480000)
+                    u32(0) // reserved
+                    u16(1) // frame_count
+                    zeros(32) // compressorname
+                    u16(0x0018) // depth
+                    u16(0xFFFF) // pre_defined
+                    if (avc) {
+                        box("avcC") { bytes(NalUnits.avcDecoderConfigurationRecord(format.codecSpecificData)) }
+                    } else {
+                        box("hvcC") { bytes(NalUnits.hevcDecoderConfigurationRecord(format.codecSpecificData)) }
+                    }
+                }
+            }
+            Mp4TrackFormat.MIMETYPE_AUDIO_AAC -> {
+                builder.box("mp4a") {
+                    zeros(6)
+                    u16(1) // data_reference_index
+                    zeros(8)
+                    u16(format.channelCount)
+                    u16(16) // samplesize
+                    u16(0)
+                    u16(0)
+                    u32(format.sampleRate shl 16)
+                    fullBox("esds", 0, 0) {
+                        writeElementaryStreamDescriptor(this, format.codecSpecificData.firstOrNull() ?: ByteArray(0))
+                    }
+                }
+            }
+        }
+    }
+
+    private fun writeElementaryStreamDescriptor(builder: Mp4BoxBuilder, audioSpecificConfig: ByteArray) {
+        // descriptor sizes including their tag and (single byte) length
+        val decoderSpecificInfoSize = 2 + audioSpecificConfig.size
+        val decoderConfigSize = 2 + 13 + decoderSpecificInfoSize
+        val slConfigSize = 3
+        val esSize = 2 + 3 + decoderConfigSize + slConfigSize
+        require(esSize - 2 < 128) { "AudioSpecificConfig too large" }
+        builder.apply {
+            u8(ES_DESCRIPTOR_TAG)
+            u8(esSize - 2)
+            u16(0) // ES_ID
+            u8(0) // flags
+            u8(DECODER_CONFIG_DESCRIPTOR_TAG)
+            u8(decoderConfigSize - 2)
+            u8(OBJECT_TYPE_AAC)
+            u8(STREAM_TYPE_AUDIO)
+            u24(0) // bufferSizeDB
+            u32(0) // maxBitrate
+            u32(0) // avgBitrate
+            u8(DECODER_SPECIFIC_INFO_TAG)
+            u8(audioSpecificConfig.size)
+            bytes(audioSpecificConfig)
+            u8(SL_CONFIG_DESCRIPTOR_TAG)
+            u8(1)
+            u8(2) // predefined: reserved for use in mp4 files
+        }
+    }
+
+    private fun writeUnityMatrix(builder: Mp4BoxBuilder) {
+        builder.u32(0x00010000).u32(0).u32(0)
+        builder.u32(0).u32(0x00010000).u32(0)
+        builder.u32(0).u32(0).u32(0x40000000)
+    }
+
+    @Throws(IOException::class)
+    private fun write(buffer: ByteBuffer) {
+        while (buffer.hasRemaining()) {
+            bytesWritten += channel.write(buffer)
+        }
+    }
+
+    companion object {
+        private val SUPPORTED_MIME_TYPES = setOf(
+            Mp4TrackFormat.MIMETYPE_VIDEO_AVC,
+            Mp4TrackFormat.MIMETYPE_VIDEO_HEVC,
+            Mp4TrackFormat.MIMETYPE_AUDIO_AAC
+        )
+        private const val MOVIE_TIMESCALE = 1000
+        private const val VIDEO_TIMESCALE = 90000
+        private const val DEFAULT_VIDEO_FRAME_RATE = 30
+        private const val AAC_SAMPLES_PER_FRAME = 1024L
+        private const val AUDIO_ONLY_FRAGMENT_DURATION_US = 1_000_000L
+        private const val LANGUAGE_UNDETERMINED = 0x55C4 // "und"
+
+        private const val TKHD_ENABLED_IN_MOVIE_IN_PREVIEW = 0x000007
+        private const val TFHD_DEFAULT_BASE_IS_MOOF = 0x020000
+        // data-offset, sample-duration, sample-size and sample-flags present
+        private const val TRUN_FLAGS = 0x000001 or 0x000100 or 0x000200 or 0x000400
+        // sample_depends_on = 2 (does not depend on others)
+        private const val SAMPLE_FLAGS_SYNC = 0x02000000
+        // sample_depends_on = 1, sample_is_non_sync_sample = 1
+        private const val SAMPLE_FLAGS_NON_SYNC = 0x01010000
+
+        private const val MDAT_HEADER_SIZE = 8
+        private val MDAT_TYPE = "mdat".toByteArray(Charsets.US_ASCII)
+
+        private const val ES_DESCRIPTOR_TAG = 0x03
+        private const val DECODER_CONFIG_DESCRIPTOR_TAG = 0x04
+        private const val DECODER_SPECIFIC_INFO_TAG = 0x05
+        private const val SL_CONFIG_DESCRIPTOR_TAG = 0x06
+        private const val OBJECT_TYPE_AAC = 0x40
+        // streamType 5 (audio) << 2, upStream 0, reserved 1
+        private const val STREAM_TYPE_AUDIO = 0x15
+    }
+}
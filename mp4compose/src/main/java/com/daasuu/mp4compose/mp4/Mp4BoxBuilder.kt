@@ -0,0 +1,121 @@
+package com.daasuu.mp4compose.mp4
+
+import java.nio.ByteBuffer
+
+/**
+ * Serializes ISO-BMFF boxes into a growable big endian buffer. Box sizes are patched in when a box is closed, so
+ * nested boxes can be written in a single pass:
+ *
+ *     builder.box("moov") {
+ *         fullBox("mvhd", version = 0, flags = 0) { ... }
+ *     }
+ */
+internal class Mp4BoxBuilder(initialCapacity: Int = 1024) {
+    private var buffer = ByteBuffer.allocate(initialCapacity)
+    private val openBoxes = ArrayList<Int>()
+
+    val position: Int
+        get() = buffer.position()
+
+    inline fun box(type: String, content: Mp4BoxBuilder.() -> Unit): Mp4BoxBuilder {
+        startBox(type)
+        content()
+        endBox()
+        return this
+    }
+
+    inline fun fullBox(type: String, version: Int, flags: Int, content: Mp4BoxBuilder.() -> Unit): Mp4BoxBuilder {
+        startBox(type)
+        u8(version)
+        u24(flags)
+        content()
+        endBox()
+        return this
+    }
+
+    fun startBox(type: String) {
+        openBoxes.add(position)
+        u32(0)
+        fourCc(type)
+    }
+
+    fun endBox() {
+        val start = openBoxes.removeAt(openBoxes.size - 1)
+        buffer.putInt(start, position - start)
+    }
+
+    fun u8(value: Int): Mp4BoxBuilder {
+        ensureCapacity(1).put(value.toByte())
+        return this
+    }
+
+    fun u16(value: Int): Mp4BoxBuilder {
+        ensureCapacity(2).putShort(value.toShort())
+        return this
+    }
+
+    fun u24(value: Int): Mp4BoxBuilder {
+        u8(value ushr 16)
+        return u16(value)
+    }
+
+    fun u32(value: Int): Mp4BoxBuilder {
+        ensureCapacity(4).putInt(value)
+        return this
+    }
+
+    fun u32(value: Long): Mp4BoxBuilder {
+        return u32(value.toInt())
+    }
+
+    fun u64(value: Long): Mp4BoxBuilder {
+        ensureCapacity(8).putLong(value)
+        return this
+    }
+
+    fun fourCc(type: String): Mp4BoxBuilder {
+        require(type.length == 4) { "Not a four character code: $type" }
+        for (c in type) {
+            u8(c.code)
+        }
+        return this
+    }
+
+    fun bytes(bytes: ByteArray): Mp4BoxBuilder {
+        ensureCapacity(bytes.size).put(bytes)
+        return this
+    }
+
+    fun zeros(count: Int): Mp4BoxBuilder {
+        ensureCapacity(count)
+        repeat(count) { buffer.put(0) }
+        return this
+    }
+
+    /**
+     * Overwrites the 32 bits at [offset], i.e. a field whose value is only known once later boxes are written.
+     */
+    fun patchU32(offset: Int, value: Int) {
+        buffer.putInt(offset, value)
+    }
+
+    /**
+     * @return the bytes written so far, ready to be read. Must not be called with boxes still open.
+     */
+    fun toByteBuffer(): ByteBuffer {
+        check(openBoxes.isEmpty()) { "${openBoxes.size} boxes not closed" }
+        val result = buffer.duplicate()
+        result.flip()
+        return result
+    }
+
+    private fun ensureCapacity(count: Int): ByteBuffer {
+        if (buffer.remaining() < count) {
+            val grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + count))
+            buffer.flip()
+            grown.put(buffer)
+            buffer = grown
+        }
+        return buffer
+    }
+}
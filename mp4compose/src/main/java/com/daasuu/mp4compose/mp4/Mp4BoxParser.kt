@@ -0,0 +1,305 @@
+package com.daasuu.mp4compose.mp4
+
+import java.io.EOFException
+import java.io.IOException
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * Reads track and sample table metadata straight from the boxes of an mp4 file, without going through the platform
+ * media framework: only the box headers and `moov` are read, `mdat` is skipped over. That's much cheaper than
+ * [android.media.MediaMetadataRetriever] for large local files, and works off device.
+ *
+ *     val info = FileInputStream(path).channel.use { Mp4BoxParser.parse(it) }
+ *     val keyFrameTimesUs = info.videoTrack?.syncSampleTimesUs()
+ *
+ * Malformed or truncated files throw an [IOException].
+ */
+object Mp4BoxParser {
+    private abstract class Input {
+        abstract fun read(buffer: ByteArray, offset: Int, length: Int): Int
+
+        abstract fun skip(count: Long)
+
+        /**
+         * @return false if the input ended before the first byte.
+         */
+        fun readFully(buffer: ByteArray, offset: Int, length: Int): Boolean {
+            var done = 0
+            while (done < length) {
+                val read = read(buffer, offset + done, length - done)
+                if (read < 0) {
+                    if (done == 0) {
+                        return false
+                    }
+                    throw EOFException("Box truncated")
+                }
+                done += read
+            }
+            return true
+        }
+    }
+
+    private class TrackBuilder {
+        var trackId = 0
+        var handlerType = ""
+        var codec: String? = null
+        var timescale = 0L
+        var duration = 0L
+        var width = 0
+        var height = 0
+        var rotation = 0
+        var sampleCount = 0
+        var syncSamples: IntArray? = null
+        var timeToSampleCounts = IntArray(0)
+        var timeToSampleDeltas = LongArray(0)
+    }
+
+    private const val BOX_HEADER_SIZE = 8
+    private const val MAX_MOOV_SIZE = 64 * 1024 * 1024
+    private const val FIXED_16_16_ONE = 0x10000
+
+    @JvmStatic
+    @Throws(IOException::class)
+    fun parse(channel: FileChannel): Mp4MovieInfo {
+        return parse(object : Input() {
+            override fun read(buffer: ByteArray, offset: Int, length: Int): Int {
+                return channel.read(ByteBuffer.wrap(buffer, offset, length))
+            }
+
+            override fun skip(count: Long) {
+                channel.position(channel.position() + count)
+            }
+        })
+    }
+
+    /**
+     * Same as parsing a [FileChannel], except that what's in front of `moov` has to be read through to be skipped.
+     */
+    @JvmStatic
+    @Throws(IOException::class)
+    fun parse(inputStream: InputStream): Mp4MovieInfo {
+        return parse(object : Input() {
+            private val skipBuffer = ByteArray(8192)
+
+            override fun read(buffer: ByteArray, offset: Int, length: Int): Int {
+                return inputStream.read(buffer, offset, length)
+            }
+
+            override fun skip(count: Long) {
+                var remaining = count
+                while (remaining > 0) {
+                    val skipped = inputStream.skip(remaining)
+                    if (skipped > 0) {
+                        remaining -= skipped
+                    } else {
+                        // skip() may give up before the end of the stream, read() tells for sure
+                        val length = Math.min(remaining, skipBuffer.size.toLong()).toInt()
+                        val read = inputStream.read(skipBuffer, 0, length)
+                        if (read < 0) {
+                            return
+                        }
+                        remaining -= read
+                    }
+                }
+            }
+        })
+    }
+
+    private fun parse(input: Input): Mp4MovieInfo {
+        val header = ByteArray(BOX_HEADER_SIZE * 2)
+        val headerBuffer = ByteBuffer.wrap(header)
+        while (input.readFully(header, 0, BOX_HEADER_SIZE)) {
+            var size = headerBuffer.getInt(0).toLong() and 0xFFFFFFFFL
+            val type = String(header, 4, 4, Charsets.US_ASCII)
+            var headerSize = BOX_HEADER_SIZE
+            if (size == 1L) {
+                if (!input.readFully(header, BOX_HEADER_SIZE, BOX_HEADER_SIZE)) {
+                    throw EOFException("$type box truncated")
+                }
+                size = headerBuffer.getLong(BOX_HEADER_SIZE)
+                headerSize += BOX_HEADER_SIZE
+            } else if (size == 0L) {
+                // the last box, running to the end of the file
+                if (type != "moov") {
+                    break
+                }
+                throw IOException("moov box of unknown size")
+            }
+            if (size < headerSize) {
+                throw IOException("Invalid $type box size: $size")
+            }
+
+            if (type == "moov") {
+                if (size - headerSize > MAX_MOOV_SIZE) {
+                    throw IOException("moov box too large: $size")
+                }
+                val moov = ByteArray((size - headerSize).toInt())
+                if (!input.readFully(moov, 0, moov.size) && moov.isNotEmpty()) {
+                    throw EOFException("moov box truncated")
+                }
+                try {
+                    return parseMoov(ByteBuffer.wrap(moov))
+                } catch (e: IndexOutOfBoundsException) {
+                    // a box too short for its fields
+                    throw IOException("Malformed moov box", e)
+                }
+            }
+            input.skip(size - headerSize)
+        }
+        throw IOException("No moov box found")
+    }
+
+    /**
+     * Calls [action] with the type and content bounds of each box between [start] and [end] of [buffer].
+     */
+    private inline fun forEachBox(
+        buffer: ByteBuffer,
+        start: Int,
+        end: Int,
+        action: (type: String, contentStart: Int, contentEnd: Int) -> Unit
+    ) {
+        var position = start
+        while (position + BOX_HEADER_SIZE <= end) {
+            var size = buffer.getInt(position).toLong() and 0xFFFFFFFFL
+            val type = String(buffer.array(), position + 4, 4, Charsets.US_ASCII)
+            var headerSize = BOX_HEADER_SIZE
+            if (size == 1L) {
+                if (position + BOX_HEADER_SIZE * 2 > end) {
+                    throw IOException("$type box truncated")
+                }
+                size = buffer.getLong(position + BOX_HEADER_SIZE)
+                headerSize += BOX_HEADER_SIZE
+            } else if (size == 0L) {
+                size = (end - position).toLong()
+            }
+            if (size < headerSize || size > end - position) {
+                throw IOException("Invalid $type box at $position: size $size")
+            }
+            action(type, position + headerSize, position + size.toInt())
+            position += size.toInt()
+        }
+    }
+
+    private fun parseMoov(moov: ByteBuffer): Mp4MovieInfo {
+        var timescale = 0L
+        var duration = 0L
+        val tracks = ArrayList<Mp4TrackInfo>()
+        forEachBox(moov, 0, moov.limit()) { type, start, end ->
+            when (type) {
+                "mvhd" -> {
+                    // creation and modification times come first, 64 bit wide in version 1
+                    if (moov.get(start).toInt() == 1) {
+                        timescale = moov.u32(start + 20)
+                        duration = moov.getLong(start + 24)
+                    } else {
+                        timescale = moov.u32(start + 12)
+                        duration = moov.u32(start + 16)
+                    }
+                }
+                "trak" -> tracks.add(parseTrak(moov, start, end))
+            }
+        }
+
+        val durationUs = if (duration > 0 && timescale > 0 && duration != 0xFFFFFFFFL) {
+            duration * 1_000_000L / timescale
+        } else {
+            tracks.maxOfOrNull { it.durationUs } ?: 0L
+        }
+        return Mp4MovieInfo(durationUs, timescale, tracks)
+    }
+
+    private fun parseTrak(moov: ByteBuffer, start: Int, end: Int): Mp4TrackInfo {
+        val track = TrackBuilder()
+        parseContainer(moov, start, end, track)
+        val durationUs = if (track.timescale > 0) track.duration * 1_000_000L / track.timescale else 0L
+        return Mp4TrackInfo(
+            track.trackId,
+            track.handlerType,
+            track.codec,
+            track.timescale,
+            durationUs,
+            track.width,
+            track.height,
+            track.rotation,
+            track.sampleCount,
+            track.syncSamples,
+            track.timeToSampleCounts,
+            track.timeToSampleDeltas
+        )
+    }
+
+    private fun parseContainer(moov: ByteBuffer, start: Int, end: Int, track: TrackBuilder) {
+        forEachBox(moov, start, end) { type, contentStart, contentEnd ->
+            when (type) {
+                "mdia", "minf", "stbl" -> parseContainer(moov, contentStart, contentEnd, track)
+                "tkhd" -> parseTkhd(moov, contentStart, track)
+                "mdhd" -> {
+                    if (moov.get(contentStart).toInt() == 1) {
+                        track.timescale = moov.u32(contentStart + 20)
+                        track.duration = moov.getLong(contentStart + 24)
+                    } else {
+                        track.timescale = moov.u32(contentStart + 12)
+                        track.duration = moov.u32(contentStart + 16)
+                    }
+                }
+                // full box header, then pre_defined
+                "hdlr" -> track.handlerType = fourCc(moov, contentStart + 8)
+                // full box header and entry count, then the first sample entry box
+                "stsd" -> if (moov.getInt(contentStart + 4) > 0) {
+                    track.codec = fourCc(moov, contentStart + 12)
+                }
+                // full box header, sample size, then sample count
+                "stsz" -> track.sampleCount = moov.getInt(contentStart + 8)
+                // full box header, reserved and field size, then sample count
+                "stz2" -> track.sampleCount = moov.getInt(contentStart + 8)
+                "stss" -> {
+                    val count = checkedCount(moov, contentStart + 4, 4, contentEnd)
+                    track.syncSamples = IntArray(count) { moov.getInt(contentStart + 8 + it * 4) }
+                }
+                "stts" -> {
+                    val count = checkedCount(moov, contentStart + 4, 8, contentEnd)
+                    track.timeToSampleCounts = IntArray(count) { moov.getInt(contentStart + 8 + it * 8) }
+                    track.timeToSampleDeltas = LongArray(count) { moov.u32(contentStart + 12 + it * 8) }
+                }
+            }
+        }
+    }
+
+    private fun parseTkhd(moov: ByteBuffer, start: Int, track: TrackBuilder) {
+        val version = moov.get(start).toInt()
+        // creation and modification times are 64 bit wide in version 1
+        val timesSize = if (version == 1) 16 else 8
+        track.trackId = moov.getInt(start + 4 + timesSize)
+        // track id, reserved and duration, then reserved, layer, alternate group, volume and reserved
+        val matrix = start + 4 + timesSize + 8 + (if (version == 1) 8 else 4) + 16
+        val a = moov.getInt(matrix)
+        val b = moov.getInt(matrix + 4)
+        track.rotation = rotationOf(a, b)
+        track.width = moov.getInt(matrix + 36) / FIXED_16_16_ONE
+        track.height = moov.getInt(matrix + 40) / FIXED_16_16_ONE
+    }
+
+    /**
+     * The rotation of a `tkhd` matrix given its first row (a, b), as 16.16 fixed point values.
+     */
+    private fun rotationOf(a: Int, b: Int): Int {
+        val degrees = Math.toDegrees(Math.atan2(b.toDouble(), a.toDouble()))
+        return ((Math.round(degrees / 90.0) * 90 % 360 + 360) % 360).toInt()
+    }
+
+    private fun checkedCount(buffer: ByteBuffer, offset: Int, entrySize: Int, end: Int): Int {
+        val count = buffer.getInt(offset)
+        if (count < 0 || count > (end - offset - 4) / entrySize) {
+            throw IOException("Invalid entry count: $count")
+        }
+        return count
+    }
+
+    private fun fourCc(buffer: ByteBuffer, offset: Int): String {
+        return String(buffer.array(), offset, 4, Charsets.US_ASCII)
+    }
+
+    private fun ByteBuffer.u32(offset: Int): Long = getInt(offset).toLong() and 0xFFFFFFFFL
+}
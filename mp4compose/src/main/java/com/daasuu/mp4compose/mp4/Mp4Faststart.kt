@@ -0,0 +1,227 @@
+package com.daasuu.mp4compose.mp4
+
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * Moves the `moov` box of an mp4 file in front of its `mdat`, in place, so it can be played while it's still being
+ * downloaded ("faststart"). [android.media.MediaMuxer] only knows the sample tables once all samples are written,
+ * so it puts `moov` at the end of the file.
+ *
+ * If the muxer left a `free` box in front of `mdat` that can hold `moov`, it's written there and nothing else
+ * moves. Otherwise the media data is shifted towards the end of the file by the size of `moov`, one memory mapped
+ * window at a time, and the `stco` / `co64` chunk offsets are rewritten accordingly: memory use is bounded by the
+ * size of `moov` plus a small copy buffer, whatever the size of the file.
+ *
+ * The file is modified in place: if this throws, it should be considered corrupt.
+ */
+object Mp4Faststart {
+    private class Box(val type: String, val offset: Long, val size: Long) {
+        val end: Long
+            get() = offset + size
+    }
+
+    private const val BOX_HEADER_SIZE = 8
+    private const val LARGE_BOX_HEADER_SIZE = 16
+    private const val MAX_MOOV_SIZE = 64 * 1024 * 1024
+    private const val MAX_STCO_OFFSET = 0xFFFFFFFFL
+    private const val WINDOW_SIZE = 32L * 1024 * 1024
+    private const val COPY_CHUNK_SIZE = 256 * 1024
+    private val CONTAINER_BOXES = setOf("moov", "trak", "mdia", "minf", "stbl")
+
+    /**
+     * Relocates `moov` in front of `mdat` in the file at [path].
+     *
+     * @return false if there was nothing to do (`moov` already first, fragmented file) or `moov` couldn't be moved
+     * without growing it (32 bit chunk offsets going past 4GB), in which case the file is left untouched.
+     */
+    @JvmStatic
+    @Throws(IOException::class)
+    fun process(path: String): Boolean {
+        return process(File(path), WINDOW_SIZE)
+    }
+
+    @Throws(IOException::class)
+    internal fun process(file: File, windowSize: Long): Boolean {
+        RandomAccessFile(file, "rw").use { randomAccessFile ->
+            val channel = randomAccessFile.channel
+            val boxes = readTopLevelBoxes(channel)
+            val moov = boxes.firstOrNull { it.type == "moov" } ?: throw IOException("No moov box in $file")
+            val firstMdatIndex = boxes.indexOfFirst { it.type == "mdat" }
+            if (firstMdatIndex < 0 || boxes.any { it.type == "moof" } || moov.offset < boxes[firstMdatIndex].offset) {
+                return false
+            }
+            if (moov.size > MAX_MOOV_SIZE) {
+                throw IOException("moov box too large: ${moov.size}")
+            }
+
+            val moovData = ByteBuffer.allocate(moov.size.toInt())
+            readFully(channel, moovData, moov.offset)
+            moovData.rewind()
+
+            val reserved = boxes.getOrNull(firstMdatIndex - 1)
+            if (reserved != null && reserved.type == "free" && canHold(reserved.size, moov.size)) {
+                // chunk offsets stay valid, mdat doesn't move
+                writeFully(channel, moovData, reserved.offset)
+                if (reserved.size > moov.size) {
+                    writeFully(channel, freeBoxHeader(reserved.size - moov.size), reserved.offset + moov.size)
+                }
+                if (moov.end == channel.size()) {
+                    channel.truncate(moov.offset)
+                } else {
+                    writeFully(channel, ByteBuffer.wrap("free".toByteArray(Charsets.US_ASCII)), moov.offset + 4)
+                }
+            } else {
+                val insertOffset = boxes[firstMdatIndex].offset
+                if (!shiftChunkOffsets(moovData, 0, moovData.limit(), moov.size)) {
+                    return false
+                }
+                // what sits between mdat and moov ends up exactly where moov ended, boxes after moov stay put
+                shiftForward(channel, insertOffset, moov.offset, moov.size.toInt(), windowSize)
+                writeFully(channel, moovData, insertOffset)
+            }
+            channel.force(false)
+        }
+        return true
+    }
+
+    private fun readTopLevelBoxes(channel: FileChannel): List<Box> {
+        val boxes = ArrayList<Box>()
+        val header = ByteBuffer.allocate(LARGE_BOX_HEADER_SIZE)
+        val fileSize = channel.size()
+        var position = 0L
+        while (position + BOX_HEADER_SIZE <= fileSize) {
+            header.clear()
+            header.limit(BOX_HEADER_SIZE)
+            readFully(channel, header, position)
+            var size = header.getInt(0).toLong() and 0xFFFFFFFFL
+            val type = String(header.array(), 4, 4, Charsets.US_ASCII)
+            var headerSize = BOX_HEADER_SIZE
+            if (size == 1L) {
+                header.limit(LARGE_BOX_HEADER_SIZE)
+                readFully(channel, header, position + BOX_HEADER_SIZE)
+                size = header.getLong(BOX_HEADER_SIZE)
+                headerSize = LARGE_BOX_HEADER_SIZE
+            } else if (size == 0L) {
+                size = fileSize - position
+            }
+            if (size < headerSize || position + size > fileSize) {
+                throw IOException("Invalid $type box at $position: size $size, file size $fileSize")
+            }
+            boxes.add(Box(type, position, size))
+            position += size
+        }
+        return boxes
+    }
+
+    /**
+     * Adds [delta] to every chunk offset found in the boxes between [start] and [end] of [data].
+     *
+     * @return false if a 32 bit offset would overflow.
+     */
+    private fun shiftChunkOffsets(data: ByteBuffer, start: Int, end: Int, delta: Long): Boolean {
+        var position = start
+        while (position + BOX_HEADER_SIZE <= end) {
+            var size = data.getInt(position).toLong() and 0xFFFFFFFFL
+            val type = String(data.array(), position + 4, 4, Charsets.US_ASCII)
+            var headerSize = BOX_HEADER_SIZE
+            if (size == 1L) {
+                size = data.getLong(position + BOX_HEADER_SIZE)
+                headerSize = LARGE_BOX_HEADER_SIZE
+            } else if (size == 0L) {
+                size = (end - position).toLong()
+            }
+            if (size < headerSize || position + size > end) {
+                throw IOException("Invalid $type box in moov at $position: size $size")
+            }
+            val boxEnd = position + size.toInt()
+            // skip the version and flags of the full boxes
+            val entries = position + headerSize + 4
+            when (type) {
+                in CONTAINER_BOXES -> if (!shiftChunkOffsets(data, position + headerSize, boxEnd, delta)) {
+                    return false
+                }
+                "stco" -> {
+                    val count = data.getInt(entries)
+                    for (i in 0 until count) {
+                        val index = entries + 4 + i * 4
+                        val offset = (data.getInt(index).toLong() and 0xFFFFFFFFL) + delta
+                        if (offset > MAX_STCO_OFFSET) {
+                            return false
+                        }
+                        data.putInt(index, offset.toInt())
+                    }
+                }
+                "co64" -> {
+                    val count = data.getInt(entries)
+                    for (i in 0 until count) {
+                        val index = entries + 4 + i * 8
+                        data.putLong(index, data.getLong(index) + delta)
+                    }
+                }
+            }
+            position = boxEnd
+        }
+        return true
+    }
+
+    /**
+     * Moves the bytes between [start] and [end] [distance] bytes forward, starting from the end so nothing gets
+     * overwritten before it's been copied. Each window maps both the bytes to move and their destination.
+     */
+    private fun shiftForward(channel: FileChannel, start: Long, end: Long, distance: Int, windowSize: Long) {
+        val chunk = ByteArray(Math.min(COPY_CHUNK_SIZE.toLong(), windowSize).toInt())
+        var windowEnd = end
+        while (windowEnd > start) {
+            val length = Math.min(windowSize, windowEnd - start).toInt()
+            val windowStart = windowEnd - length
+            val window = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, length.toLong() + distance)
+            var chunkEnd = length
+            while (chunkEnd > 0) {
+                val count = Math.min(chunk.size, chunkEnd)
+                val from = chunkEnd - count
+                window.position(from)
+                window.get(chunk, 0, count)
+                window.position(from + distance)
+                window.put(chunk, 0, count)
+                chunkEnd = from
+            }
+            window.force()
+            windowEnd = windowStart
+        }
+    }
+
+    private fun canHold(freeSize: Long, moovSize: Long): Boolean {
+        // any space left over has to fit another free box
+        return freeSize == moovSize || freeSize >= moovSize + BOX_HEADER_SIZE
+    }
+
+    private fun freeBoxHeader(size: Long): ByteBuffer {
+        val header = ByteBuffer.allocate(BOX_HEADER_SIZE)
+        header.putInt(size.toInt())
+        header.put("free".toByteArray(Charsets.US_ASCII))
+        header.flip()
+        return header
+    }
+
+    private fun readFully(channel: FileChannel, buffer: ByteBuffer, position: Long) {
+        var offset = position
+        while (buffer.hasRemaining()) {
+            val read = channel.read(buffer, offset)
+            if (read < 0) {
+                throw IOException("Unexpected end of file at $offset")
+            }
+            offset += read
+        }
+    }
+
+    private fun writeFully(channel: FileChannel, buffer: ByteBuffer, position: Long) {
+        var offset = position
+        while (buffer.hasRemaining()) {
+            offset += channel.write(buffer, offset)
+        }
+    }
+}
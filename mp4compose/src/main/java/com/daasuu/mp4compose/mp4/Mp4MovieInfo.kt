@@ -0,0 +1,103 @@
+package com.daasuu.mp4compose.mp4
+
+/**
+ * What [Mp4BoxParser] read from the `moov` box of an mp4 file.
+ */
+class Mp4MovieInfo(
+    /**
+     * From `mvhd`, or the longest track when `mvhd` has no duration (i.e. fragmented files).
+     */
+    val durationUs: Long,
+    val timescale: Long,
+    val tracks: List<Mp4TrackInfo>
+) {
+    val videoTrack: Mp4TrackInfo?
+        get() = tracks.firstOrNull { it.isVideo }
+
+    val audioTrack: Mp4TrackInfo?
+        get() = tracks.firstOrNull { it.isAudio }
+}
+
+/**
+ * A `trak` box. Sample numbers are 1 based, like in the sample tables.
+ *
+ * Fragmented files only declare their tracks in `moov`, their samples are in `moof` boxes which are not read: they
+ * show up with no samples.
+ */
+class Mp4TrackInfo internal constructor(
+    val trackId: Int,
+    /**
+     * The `hdlr` handler type, i.e. "vide" or "soun".
+     */
+    val handlerType: String,
+    /**
+     * The type of the first sample entry, i.e. "avc1", "hvc1" or "mp4a". Null if there's no sample description.
+     */
+    val codec: String?,
+    val timescale: Long,
+    val durationUs: Long,
+    /**
+     * Presentation size from `tkhd`, before [rotation].
+     */
+    val width: Int,
+    val height: Int,
+    /**
+     * Clockwise rotation in degrees (0, 90, 180 or 270), from the `tkhd` matrix.
+     */
+    val rotation: Int,
+    val sampleCount: Int,
+    /**
+     * Sync sample numbers from `stss`, in increasing order. Null when there's no `stss`: every sample is a sync
+     * sample then.
+     */
+    val syncSamples: IntArray?,
+    private val timeToSampleCounts: IntArray,
+    private val timeToSampleDeltas: LongArray
+) {
+    val isVideo: Boolean
+        get() = handlerType == HANDLER_VIDEO
+
+    val isAudio: Boolean
+        get() = handlerType == HANDLER_SOUND
+
+    fun isSyncSample(sampleNumber: Int): Boolean {
+        return syncSamples?.let { it.binarySearch(sampleNumber) >= 0 } ?: (sampleNumber in 1..sampleCount)
+    }
+
+    /**
+     * Decoding time of [sampleNumber] from `stts`, which is also its presentation time unless the track has
+     * composition offsets.
+     */
+    fun sampleTimeUs(sampleNumber: Int): Long {
+        require(sampleNumber in 1..sampleCount) { "No sample $sampleNumber in track $trackId" }
+        var remaining = sampleNumber - 1L
+        var time = 0L
+        for (i in timeToSampleCounts.indices) {
+            val count = timeToSampleCounts[i].toLong() and 0xFFFFFFFFL
+            if (remaining < count) {
+                return toUs(time + remaining * timeToSampleDeltas[i])
+            }
+            time += count * timeToSampleDeltas[i]
+            remaining -= count
+        }
+        // stts covering fewer samples than stsz, the last delta is the best guess
+        return toUs(time + remaining * (timeToSampleDeltas.lastOrNull() ?: 0L))
+    }
+
+    /**
+     * Decoding times of the sync samples, i.e. where a trim can start without re-encoding.
+     */
+    fun syncSampleTimesUs(): LongArray {
+        val samples = syncSamples ?: IntArray(sampleCount) { it + 1 }
+        return LongArray(samples.size) { sampleTimeUs(samples[it]) }
+    }
+
+    private fun toUs(time: Long): Long {
+        return if (timescale > 0) time * 1_000_000L / timescale else 0L
+    }
+
+    companion object {
+        const val HANDLER_VIDEO = "vide"
+        const val HANDLER_SOUND = "soun"
+    }
+}
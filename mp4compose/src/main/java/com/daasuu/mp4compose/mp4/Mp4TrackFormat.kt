@@ -0,0 +1,35 @@
+package com.daasuu.mp4compose.mp4
+
+/**
+ * What the pure Java mp4 writers need to know about a track, without depending on `android.media.MediaFormat`.
+ *
+ * [codecSpecificData] is taken as MediaCodec outputs it: Annex-B parameter sets for video ("csd-0", "csd-1"),
+ * the AudioSpecificConfig for AAC.
+ */
+class Mp4TrackFormat private constructor(
+    val mimeType: String,
+    val width: Int,
+    val height: Int,
+    val sampleRate: Int,
+    val channelCount: Int,
+    val codecSpecificData: List<ByteArray>
+) {
+    val isVideo: Boolean
+        get() = mimeType.startsWith("video/")
+
+    companion object {
+        const val MIMETYPE_VIDEO_AVC = "video/avc"
+        const val MIMETYPE_VIDEO_HEVC = "video/hevc"
+        const val MIMETYPE_AUDIO_AAC = "audio/mp4a-latm"
+
+        @JvmStatic
+        fun video(mimeType: String, width: Int, height: Int, codecSpecificData: List<ByteArray>): Mp4TrackFormat {
+            return Mp4TrackFormat(mimeType, width, height, 0, 0, codecSpecificData)
+        }
+
+        @JvmStatic
+        fun audio(mimeType: String, sampleRate: Int, channelCount: Int, codecSpecificData: ByteArray): Mp4TrackFormat {
+            return Mp4TrackFormat(mimeType, 0, 0, sampleRate, channelCount, listOf(codecSpecificData))
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.daasuu.mp4compose.mp4
+
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+
+/**
+ * H.264 / H.265 bitstream helpers: MediaCodec outputs Annex-B (start code delimited) NAL units, while mp4 samples
+ * hold length prefixed ones and parameter sets go in the sample description.
+ */
+internal object NalUnits {
+    private const val AVC_NAL_TYPE_SPS = 7
+    private const val AVC_NAL_TYPE_PPS = 8
+    private const val HEVC_NAL_TYPE_VPS = 32
+    private const val HEVC_NAL_TYPE_SPS = 33
+    private const val HEVC_NAL_TYPE_PPS = 34
+    // nal header (2) + sps_video_parameter_set_id / max_sub_layers / temporal_id_nesting (1) + general ptl (12)
+    private const val HEVC_SPS_PROFILE_TIER_LEVEL_END = 15
+
+    fun isAnnexB(data: ByteArray, offset: Int = 0, length: Int = data.size - offset): Boolean {
+        return startCodeLength(data, offset, offset + length) > 0
+    }
+
+    /**
+     * @return the NAL units of the Annex-B [data], without start codes (and trailing zeros).
+     */
+    fun split(data: ByteArray, offset: Int = 0, length: Int = data.size - offset): List<ByteArray> {
+        val end = offset + length
+        val units = ArrayList<ByteArray>()
+        var unitStart = -1
+        var i = offset
+        while (i < end) {
+            val startCodeLength = startCodeLength(data, i, end)
+            if (startCodeLength > 0) {
+                if (unitStart >= 0) {
+                    addUnit(units, data, unitStart, i)
+                }
+                i += startCodeLength
+                unitStart = i
+            } else {
+                i++
+            }
+        }
+        if (unitStart >= 0) {
+            addUnit(units, data, unitStart, end)
+        } else if (length > 0) {
+            // no start code at all, take it as a single unit
+            units.add(data.copyOfRange(offset, end))
+        }
+        return units
+    }
+
+    /**
+     * Copies the remaining bytes of [sample] as 4 byte length prefixed NAL units, or as they are if they aren't in
+     * Annex-B format.
+     */
+    fun toLengthPrefixed(sample: ByteBuffer): ByteArray {
+        val data = ByteArray(sample.remaining())
+        sample.get(data)
+        if (!isAnnexB(data)) {
+            return data
+        }
+        val units = split(data)
+        val result = ByteArray(units.sumOf { it.size + 4 })
+        val out = ByteBuffer.wrap(result)
+        for (unit in units) {
+            out.putInt(unit.size)
+            out.put(unit)
+        }
+        return result
+    }
+
+    /**
+     * @return the payload of an `avcC` box, for the SPS and PPS found in [codecSpecificData].
+     */
+    fun avcDecoderConfigurationRecord(codecSpecificData: List<ByteArray>): ByteArray {
+        val units = codecSpecificData.flatMap { split(it) }
+        val spsList = units.filter { it.isNotEmpty() && it[0].toInt() and 0x1F == AVC_NAL_TYPE_SPS }
+        val ppsList = units.filter { it.isNotEmpty() && it[0].toInt() and 0x1F == AVC_NAL_TYPE_PPS }
+        require(spsList.isNotEmpty() && spsList[0].size >= 4) { "No SPS in the AVC codec specific data" }
+        val sps = spsList[0]
+
+        val out = ByteArrayOutputStream()
+        out.write(1) // configurationVersion
+        out.write(sps[1].toInt()) // AVCProfileIndication
+        out.write(sps[2].toInt()) // profile_compatibility
+        out.write(sps[3].toInt()) // AVCLevelIndication
+        out.write(0xFC or 3) // reserved + lengthSizeMinusOne
+        out.write(0xE0 or spsList.size)
+        for (unit in spsList) {
+            writeWithU16Length(out, unit)
+        }
+        out.write(ppsList.size)
+        for (unit in ppsList) {
+            writeWithU16Length(out, unit)
+        }
+        return out.toByteArray()
+    }
+
+    /**
+     * @return the payload of an `hvcC` box, for the VPS, SPS and PPS found in [codecSpecificData]. Chroma format
+     * and bit depths are declared as 4:2:0 8 bits, which is what MediaCodec encoders produce from surfaces.
+     */
+    fun hevcDecoderConfigurationRecord(codecSpecificData: List<ByteArray>): ByteArray {
+        val units = codecSpecificData.flatMap { split(it) }.filter { it.size >= 2 }
+        val arrays = listOf(HEVC_NAL_TYPE_VPS, HEVC_NAL_TYPE_SPS, HEVC_NAL_TYPE_PPS).map { type ->
+            type to units.filter { hevcNalType(it) == type }
+        }.filter { it.second.isNotEmpty() }
+        val sps = units.firstOrNull { hevcNalType(it) == HEVC_NAL_TYPE_SPS }
+        requireNotNull(sps) { "No SPS in the HEVC codec specific data" }
+        val spsHead = unescape(sps, HEVC_SPS_PROFILE_TIER_LEVEL_END)
+        require(spsHead.size >= HEVC_SPS_PROFILE_TIER_LEVEL_END) { "SPS too short" }
+        val maxSubLayersMinus1 = spsHead[2].toInt() shr 1 and 0x07
+        val temporalIdNested = spsHead[2].toInt() and 0x01
+
+        val out = ByteArrayOutputStream()
+        out.write(1) // configurationVersion
+        // general profile space / tier / profile idc, compatibility flags, constraint flags and level idc
+        out.write(spsHead, 3, 12)
+        out.write(0xF0) // reserved + min_spatial_segmentation_idc
+        out.write(0x00)
+        out.write(0xFC) // reserved + parallelismType
+        out.write(0xFC or 1) // reserved + chroma_format_idc (4:2:0)
+        out.write(0xF8) // reserved + bit_depth_luma_minus8
+        out.write(0xF8) // reserved + bit_depth_chroma_minus8
+        out.write(0x00) // avgFrameRate
+        out.write(0x00)
+        // constantFrameRate, numTemporalLayers, temporalIdNested, lengthSizeMinusOne
+        out.write(((maxSubLayersMinus1 + 1) shl 3) or (temporalIdNested shl 2) or 3)
+        out.write(arrays.size)
+        for ((type, typeUnits) in arrays) {
+            out.write(0x80 or type) // array_completeness
+            out.write(typeUnits.size shr 8)
+            out.write(typeUnits.size)
+            for (unit in typeUnits) {
+                writeWithU16Length(out, unit)
+            }
+        }
+        return out.toByteArray()
+    }
+
+    private fun hevcNalType(unit: ByteArray) = unit[0].toInt() shr 1 and 0x3F
+
+    /**
+     * @return the first [count] bytes of [unit] with emulation prevention bytes removed.
+     */
+    private fun unescape(unit: ByteArray, count: Int): ByteArray {
+        val out = ByteArrayOutputStream(count)
+        var zeros = 0
+        for (b in unit) {
+            if (out.size() == count) {
+                break
+            }
+            val value = b.toInt() and 0xFF
+            if (zeros >= 2 && value == 3) {
+                zeros = 0
+                continue
+            }
+            zeros = if (value == 0) zeros + 1 else 0
+            out.write(value)
+        }
+        return out.toByteArray()
+    }
+
+    private fun startCodeLength(data: ByteArray, offset: Int, end: Int): Int {
+        if (offset + 3 <= end && data[offset].toInt() == 0 && data[offset + 1].toInt() == 0) {
+            if (data[offset + 2].toInt() == 1) {
+                return 3
+            }
+            if (offset + 4 <= end && data[offset + 2].toInt() == 0 && data[offset + 3].toInt() == 1) {
+                return 4
+            }
+        }
+        return 0
+    }
+
+    private fun addUnit(units: MutableList<ByteArray>, data: ByteArray, start: Int, end: Int) {
+        var unitEnd = end
+        while (unitEnd > start && data[unitEnd - 1].toInt() == 0) {
+            unitEnd--
+        }
+        if (unitEnd > start) {
+            units.add(data.copyOfRange(start, unitEnd))
+        }
+    }
+
+    private fun writeWithU16Length(out: ByteArrayOutputStream, unit: ByteArray) {
+        out.write(unit.size shr 8)
+        out.write(unit.size)
+        out.write(unit)
+    }
+}
@@ -1,19 +1,35 @@
 package com.daasuu.mp4compose.utils
 
 import android.graphics.Bitmap
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
 
 object BitmapEncodingUtils {
     // read more on https://wiki.videolan.org/YUV
     fun getNV12(inputWidth: Int, inputHeight: Int, scaled: Bitmap): ByteArray {
         val argb = IntArray(inputWidth * inputHeight)
         scaled.getPixels(argb, 0, inputWidth, 0, 0, inputWidth, inputHeight)
-        val yuv = ByteArray(inputWidth * inputHeight * 3 / 2)
-        encodeYUV420SP(yuv, argb, inputWidth, inputHeight)
+        val yuv = ByteArray(YuvConverter.getBufferSize(inputWidth, inputHeight))
+        YuvConverter.convert(argb, inputWidth, inputWidth, inputHeight, YuvConverter.Layout.NV12, ByteBuffer.wrap(yuv))
         scaled.recycle()
         return yuv
     }
 
-    // encodes bitmap in YUV 4:2:0 format
+    /**
+     * Converts [bitmap] to YUV 4:2:0 with the given [layout], into a direct buffer ready to be copied into encoder
+     * input buffers.
+     */
+    fun getYuv420(bitmap: Bitmap, layout: YuvConverter.Layout): ByteBuffer {
+        val width = bitmap.width
+        val height = bitmap.height
+        val argb = IntArray(width * height)
+        bitmap.getPixels(argb, 0, width, 0, 0, width, height)
+        val yuv = ByteBuffer.allocateDirect(YuvConverter.getBufferSize(width, height)).order(ByteOrder.nativeOrder())
+        YuvConverter.convert(argb, width, width, height, layout, yuv)
+        return yuv
+    }
+
+    // encodes bitmap in YUV 4:2:0 format, on a single thread. See YuvConverter for the multi-core version
     fun encodeYUV420SP(yuv420sp: ByteArray, argb: IntArray, width: Int, height: Int) {
         var yIndex = 0
         var uvIndex = width * height
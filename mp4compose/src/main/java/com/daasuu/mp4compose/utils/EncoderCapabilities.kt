@@ -0,0 +1,330 @@
+package com.daasuu.mp4compose.utils
+
+import android.content.Context
+import android.media.MediaCodecInfo
+import android.media.MediaCodecList
+import android.os.Build
+import android.util.Log
+import android.util.Size
+import org.json.JSONArray
+import org.json.JSONException
+import org.json.JSONObject
+
+/**
+ * A video width and height. Unlike [Size], it's a plain value, so the size selection doesn't depend on the
+ * framework.
+ */
+data class VideoSize(val width: Int, val height: Int) {
+    fun toSize() = Size(width, height)
+
+    /**
+     * The same size, in the other orientation.
+     */
+    fun swapped() = VideoSize(height, width)
+
+    override fun toString() = "${width}x$height"
+
+    companion object {
+        /**
+         * Reads a size written by [toString].
+         */
+        @JvmStatic
+        fun parse(string: String): VideoSize {
+            val separator = string.indexOf('x')
+            require(separator > 0) { "Invalid size $string" }
+            return VideoSize(string.substring(0, separator).toInt(), string.substring(separator + 1).toInt())
+        }
+    }
+}
+
+/**
+ * What a video encoder of the device can take, as probed by [EncoderCapabilities]. Sizes are the coded ones.
+ */
+data class EncoderProfile(
+    val name: String,
+    val mimeType: String,
+    val isHardware: Boolean,
+    val widthAlignment: Int,
+    val heightAlignment: Int,
+    val minWidth: Int,
+    val maxWidth: Int,
+    val minHeight: Int,
+    val maxHeight: Int,
+    val minBitrate: Int,
+    val maxBitrate: Int,
+    /**
+     * [MediaCodecInfo.CodecProfileLevel] profiles.
+     */
+    val profiles: List<Int>,
+    val maxInstances: Int,
+    val colorFormats: List<Int>,
+    /**
+     * The common video sizes (both orientations) the encoder confirmed it supports, see
+     * [EncoderCapabilities.STANDARD_SIZES].
+     */
+    val verifiedSizes: List<VideoSize>
+) {
+    /**
+     * Standard sizes are answered exactly. Other sizes are checked against the ranges and alignments, and can't be
+     * larger than the largest verified size: encoders also have area and macroblock rate limits which aren't kept.
+     */
+    fun isSizeSupported(width: Int, height: Int): Boolean {
+        if (verifiedSizes.any { it.width == width && it.height == height }) {
+            return true
+        }
+        val maxVerifiedArea = verifiedSizes.maxOfOrNull { it.width.toLong() * it.height } ?: 0L
+        return width in minWidth..maxWidth && height in minHeight..maxHeight &&
+                width % widthAlignment == 0 && height % heightAlignment == 0 &&
+                width.toLong() * height <= maxVerifiedArea
+    }
+
+    fun isBitrateSupported(bitrate: Int): Boolean {
+        return bitrate in minBitrate..maxBitrate
+    }
+
+    internal fun toJson(): JSONObject {
+        return JSONObject()
+            .put("name", name)
+            .put("mimeType", mimeType)
+            .put("isHardware", isHardware)
+            .put("widthAlignment", widthAlignment)
+            .put("heightAlignment", heightAlignment)
+            .put("minWidth", minWidth)
+            .put("maxWidth", maxWidth)
+            .put("minHeight", minHeight)
+            .put("maxHeight", maxHeight)
+            .put("minBitrate", minBitrate)
+            .put("maxBitrate", maxBitrate)
+            .put("profiles", JSONArray(profiles))
+            .put("maxInstances", maxInstances)
+            .put("colorFormats", JSONArray(colorFormats))
+            .put("verifiedSizes", JSONArray(verifiedSizes.map { it.toString() }))
+    }
+
+    internal companion object {
+        @Throws(JSONException::class)
+        fun fromJson(json: JSONObject): EncoderProfile {
+            return EncoderProfile(
+                json.getString("name"),
+                json.getString("mimeType"),
+                json.getBoolean("isHardware"),
+                json.getInt("widthAlignment"),
+                json.getInt("heightAlignment"),
+                json.getInt("minWidth"),
+                json.getInt("maxWidth"),
+                json.getInt("minHeight"),
+                json.getInt("maxHeight"),
+                json.getInt("minBitrate"),
+                json.getInt("maxBitrate"),
+                json.getJSONArray("profiles").toIntList(),
+                json.getInt("maxInstances"),
+                json.getJSONArray("colorFormats").toIntList(),
+                json.getJSONArray("verifiedSizes").let { sizes ->
+                    List(sizes.length()) { VideoSize.parse(sizes.getString(it)) }
+                }
+            )
+        }
+
+        private fun JSONArray.toIntList(): List<Int> = List(length()) { getInt(it) }
+    }
+}
+
+/**
+ * Registry of the video encoders of the device, so codec and output size can be picked up front instead of by
+ * walking [MediaCodecList] on each export, or by finding out through a failed `configure()`.
+ *
+ * Encoders are probed once per OS build: with a context the result is kept in shared preferences, tagged with
+ * [Build.FINGERPRINT], and only probed again after a system update. Without a context it's only kept in memory.
+ * Encoders are listed in [MediaCodecList] order, which is the platform preference order.
+ */
+object EncoderCapabilities {
+    private val TAG = EncoderCapabilities::class.java.simpleName
+    private const val PREFERENCES_NAME = "mp4compose_encoder_capabilities"
+    private const val KEY_FINGERPRINT = "fingerprint"
+    private const val KEY_ENCODERS = "encoders"
+    // bump when EncoderProfile changes, so older entries get probed again
+    private const val FORMAT_VERSION = 1
+
+    /**
+     * Common portrait video sizes, largest first. Landscape ones are the same, swapped.
+     */
+    @JvmField
+    val STANDARD_SIZES = listOf(
+        VideoSize(2160, 3840),
+        VideoSize(1440, 2560),
+        VideoSize(1080, 1920),
+        VideoSize(720, 1280),
+        VideoSize(480, 720),
+        VideoSize(240, 320)
+    )
+
+    @Volatile
+    private var encoders: List<EncoderProfile>? = null
+
+    /**
+     * All video encoders, probed on the first call only.
+     */
+    @JvmStatic
+    fun getEncoders(context: Context?): List<EncoderProfile> {
+        encoders?.let { return it }
+        synchronized(this) {
+            encoders?.let { return it }
+            val loaded = context?.let { load(it) } ?: probe().also { probed ->
+                context?.let { save(it, probed) }
+            }
+            encoders = loaded
+            return loaded
+        }
+    }
+
+    /**
+     * The preferred encoder for [mimeType] at the given size, null if there's none.
+     *
+     * @param bitrate also checked when positive.
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun findEncoder(
+        context: Context?,
+        mimeType: String,
+        width: Int,
+        height: Int,
+        bitrate: Int = 0
+    ): EncoderProfile? {
+        return getEncoders(context).firstOrNull {
+            it.mimeType.equals(mimeType, ignoreCase = true) && it.isSizeSupported(width, height) &&
+                    (bitrate <= 0 || it.isBitrateSupported(bitrate))
+        }
+    }
+
+    /**
+     * The first of [mimeTypes] an encoder supports at the given size (and [bitrate] when positive), null if none is.
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun selectMimeType(
+        context: Context?,
+        mimeTypes: List<String>,
+        width: Int,
+        height: Int,
+        bitrate: Int = 0
+    ): String? {
+        return mimeTypes.firstOrNull { findEncoder(context, it, width, height, bitrate) != null }
+    }
+
+    /**
+     * The largest of the [STANDARD_SIZES], in the orientation of the requested size, that fits in it and that an
+     * encoder for [mimeType] supports. Null if none does.
+     */
+    @JvmStatic
+    fun bestOutputSize(context: Context?, mimeType: String, requestedWidth: Int, requestedHeight: Int): Size? {
+        return bestOutputSize(getEncoders(context), mimeType, requestedWidth, requestedHeight)?.toSize()
+    }
+
+    internal fun bestOutputSize(
+        encoders: List<EncoderProfile>,
+        mimeType: String,
+        requestedWidth: Int,
+        requestedHeight: Int
+    ): VideoSize? {
+        val portrait = requestedHeight >= requestedWidth
+        return STANDARD_SIZES
+            .map { if (portrait) it else it.swapped() }
+            .filter { it.width <= requestedWidth && it.height <= requestedHeight }
+            .firstOrNull { size ->
+                encoders.any {
+                    it.mimeType.equals(mimeType, ignoreCase = true) && it.isSizeSupported(size.width, size.height)
+                }
+            }
+    }
+
+    /**
+     * Drops what's known about the encoders, in memory and persisted.
+     */
+    @JvmStatic
+    fun invalidate(context: Context?) {
+        synchronized(this) {
+            encoders = null
+            context?.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE)?.edit()?.clear()?.apply()
+        }
+    }
+
+    private fun load(context: Context): List<EncoderProfile>? {
+        val preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE)
+        if (preferences.getString(KEY_FINGERPRINT, null) != fingerprint()) {
+            return null
+        }
+        return try {
+            val json = JSONArray(preferences.getString(KEY_ENCODERS, null) ?: return null)
+            List(json.length()) { EncoderProfile.fromJson(json.getJSONObject(it)) }
+        } catch (e: JSONException) {
+            Log.e(TAG, "Discarding unreadable encoder capabilities", e)
+            null
+        }
+    }
+
+    private fun save(context: Context, encoders: List<EncoderProfile>) {
+        context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE).edit()
+            .putString(KEY_FINGERPRINT, fingerprint())
+            .putString(KEY_ENCODERS, JSONArray(encoders.map { it.toJson() }).toString())
+            .apply()
+    }
+
+    private fun fingerprint() = "$FORMAT_VERSION/${Build.FINGERPRINT}"
+
+    private fun probe(): List<EncoderProfile> {
+        val start = System.currentTimeMillis()
+        val profiles = ArrayList<EncoderProfile>()
+        for (codecInfo in MediaCodecList(MediaCodecList.REGULAR_CODECS).codecInfos) {
+            if (!codecInfo.isEncoder) {
+                continue
+            }
+            for (mimeType in codecInfo.supportedTypes) {
+                if (!mimeType.startsWith("video/")) {
+                    continue
+                }
+                try {
+                    profiles.add(probe(codecInfo, mimeType))
+                } catch (e: RuntimeException) {
+                    // some vendor codecs throw on capability queries, they're not worth using then
+                    Log.e(TAG, "Can't probe ${codecInfo.name} for $mimeType", e)
+                }
+            }
+        }
+        Log.d(TAG, "Probed ${profiles.size} video encoders in ${System.currentTimeMillis() - start} ms")
+        return profiles
+    }
+
+    private fun probe(codecInfo: MediaCodecInfo, mimeType: String): EncoderProfile {
+        val capabilities = codecInfo.getCapabilitiesForType(mimeType)
+        val video = capabilities.videoCapabilities
+        val verifiedSizes = STANDARD_SIZES.flatMap { listOf(it, it.swapped()) }
+            .filter { video.isSizeSupported(it.width, it.height) }
+        return EncoderProfile(
+            codecInfo.name,
+            mimeType,
+            isHardware(codecInfo),
+            video.widthAlignment,
+            video.heightAlignment,
+            video.supportedWidths.lower,
+            video.supportedWidths.upper,
+            video.supportedHeights.lower,
+            video.supportedHeights.upper,
+            video.bitrateRange.lower,
+            video.bitrateRange.upper,
+            capabilities.profileLevels.map { it.profile }.distinct(),
+            capabilities.maxSupportedInstances,
+            capabilities.colorFormats.toList(),
+            verifiedSizes
+        )
+    }
+
+    private fun isHardware(codecInfo: MediaCodecInfo): Boolean {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return codecInfo.isHardwareAccelerated
+        }
+        val name = codecInfo.name
+        return !name.startsWith("omx.google.", ignoreCase = true) &&
+                !name.startsWith("c2.android.", ignoreCase = true)
+    }
+}
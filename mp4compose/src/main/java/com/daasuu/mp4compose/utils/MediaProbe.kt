@@ -0,0 +1,148 @@
+package com.daasuu.mp4compose.utils
+
+import android.content.ContentResolver
+import android.content.Context
+import android.media.MediaExtractor
+import android.media.MediaFormat
+import android.net.Uri
+import android.provider.MediaStore
+import android.provider.OpenableColumns
+import android.util.Log
+import android.util.LruCache
+import java.io.File
+import java.io.IOException
+
+/**
+ * What [MediaProbe] found out about a media source. Dimensions are the coded ones, [rotation] tells how the video
+ * is meant to be displayed.
+ *
+ * [trackFormats] are shared by everyone probing the same source, they must not be modified.
+ */
+data class MediaInfo(
+    val durationUs: Long,
+    val width: Int,
+    val height: Int,
+    val rotation: Int,
+    val videoTrackIndex: Int,
+    val audioTrackIndex: Int,
+    val trackFormats: List<MediaFormat>
+) {
+    val hasVideo: Boolean
+        get() = videoTrackIndex >= 0
+
+    val hasAudio: Boolean
+        get() = audioTrackIndex >= 0
+}
+
+/**
+ * Reads duration, dimensions, rotation and track formats of a media source in a single [MediaExtractor] pass, and
+ * keeps the results in an LRU cache so the picker, the player and the composer don't each open the source again
+ * (which is slow for content:// and network sources).
+ *
+ * Entries are keyed by the uri plus the size and modification time of the source when they can be found (local
+ * files and content providers), so a source that gets rewritten is probed again.
+ */
+object MediaProbe {
+    private data class CacheKey(val uri: String, val size: Long, val lastModified: Long)
+
+    private val TAG = MediaProbe::class.java.simpleName
+    private const val MAX_CACHED_SOURCES = 64
+    private const val UNKNOWN = -1L
+    private const val VIDEO_PREFIX = "video/"
+    private const val AUDIO_PREFIX = "audio/"
+
+    private val cache = LruCache<CacheKey, MediaInfo>(MAX_CACHED_SOURCES)
+
+    /**
+     * @throws IOException if the source can't be read, failures are not cached.
+     */
+    @JvmStatic
+    @JvmOverloads
+    @Throws(IOException::class)
+    fun probe(context: Context, uri: Uri, addedRequestHeaders: Map<String, String>? = null): MediaInfo {
+        val key = cacheKey(context, uri)
+        cache.get(key)?.let { return it }
+
+        val info = read(context, uri, addedRequestHeaders)
+        cache.put(key, info)
+        return info
+    }
+
+    /**
+     * Forgets everything probed about [uri], i.e. after overwriting it in a way its size and modification time
+     * might not reflect.
+     */
+    @JvmStatic
+    fun invalidate(uri: Uri) {
+        val uriString = uri.toString()
+        cache.snapshot().keys.filter { it.uri == uriString }.forEach { cache.remove(it) }
+    }
+
+    private fun read(context: Context, uri: Uri, addedRequestHeaders: Map<String, String>?): MediaInfo {
+        val extractor = MediaExtractor()
+        try {
+            DataSourceUtil.setDataSource(
+                context,
+                uri,
+                mediaExtractor = extractor,
+                addedRequestHeaders = addedRequestHeaders
+            )
+
+            val trackFormats = (0 until extractor.trackCount).map { extractor.getTrackFormat(it) }
+            val videoTrackIndex = trackFormats.indexOfFirst { it.mime().startsWith(VIDEO_PREFIX) }
+            val audioTrackIndex = trackFormats.indexOfFirst { it.mime().startsWith(AUDIO_PREFIX) }
+            val videoFormat = trackFormats.getOrNull(videoTrackIndex)
+            val durationUs = trackFormats
+                .filter { it.containsKey(MediaFormat.KEY_DURATION) }
+                .maxOfOrNull { it.getLong(MediaFormat.KEY_DURATION) } ?: UNKNOWN
+
+            return MediaInfo(
+                durationUs = durationUs,
+                width = videoFormat.intOrZero(MediaFormat.KEY_WIDTH),
+                height = videoFormat.intOrZero(MediaFormat.KEY_HEIGHT),
+                rotation = videoFormat.intOrZero(MediaFormat.KEY_ROTATION),
+                videoTrackIndex = videoTrackIndex,
+                audioTrackIndex = audioTrackIndex,
+                trackFormats = trackFormats
+            )
+        } finally {
+            extractor.release()
+        }
+    }
+
+    private fun cacheKey(context: Context, uri: Uri): CacheKey {
+        var size = UNKNOWN
+        var lastModified = UNKNOWN
+        when (uri.scheme) {
+            null, ContentResolver.SCHEME_FILE -> uri.path?.let { File(it) }?.let {
+                size = it.length()
+                lastModified = it.lastModified()
+            }
+            ContentResolver.SCHEME_CONTENT -> try {
+                context.contentResolver.query(uri, null, null, null, null)?.use { cursor ->
+                    if (cursor.moveToFirst()) {
+                        val sizeColumn = cursor.getColumnIndex(OpenableColumns.SIZE)
+                        val modifiedColumn = cursor.getColumnIndex(MediaStore.MediaColumns.DATE_MODIFIED)
+                        if (sizeColumn >= 0 && !cursor.isNull(sizeColumn)) {
+                            size = cursor.getLong(sizeColumn)
+                        }
+                        if (modifiedColumn >= 0 && !cursor.isNull(modifiedColumn)) {
+                            lastModified = cursor.getLong(modifiedColumn)
+                        }
+                    }
+                }
+            } catch (e: RuntimeException) {
+                // some providers only answer openFile(), the uri alone will have to do
+                Log.w(TAG, "Can't query $uri", e)
+            }
+            // network sources are keyed by their url only
+        }
+        return CacheKey(uri.toString(), size, lastModified)
+    }
+
+    private fun MediaFormat.mime(): String = getString(MediaFormat.KEY_MIME) ?: ""
+
+    private fun MediaFormat?.intOrZero(key: String): Int {
+        return if (this != null && containsKey(key)) getInteger(key) else 0
+    }
+}
@@ -0,0 +1,156 @@
+package com.daasuu.mp4compose.utils
+
+import java.nio.ByteBuffer
+import java.util.stream.IntStream
+
+/**
+ * Converts ARGB pixels to YUV 4:2:0, writing straight into a [ByteBuffer] (i.e. an encoder input buffer).
+ *
+ * Rows are processed two at a time (one chroma row per pair), and pairs are split across all cores. Chroma is
+ * sampled from the top left pixel of each 2x2 block, like [BitmapEncodingUtils.encodeYUV420SP] does.
+ *
+ * This is plain Java, so it can be tested and benchmarked off device.
+ */
+object YuvConverter {
+    enum class Layout {
+        /**
+         * Y plane followed by interleaved U/V samples, i.e. COLOR_FormatYUV420SemiPlanar.
+         */
+        NV12,
+
+        /**
+         * Y plane followed by the U plane and the V plane, i.e. COLOR_FormatYUV420Planar.
+         */
+        I420
+    }
+
+    // rows handed over to each task, small enough to balance the load across cores
+    private const val MIN_ROW_PAIRS_PER_TASK = 16
+
+    fun getBufferSize(width: Int, height: Int): Int {
+        return width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2)
+    }
+
+    /**
+     * Converts the [width] x [height] pixels of [argb] (rows [stride] apart) into [out], starting at its current
+     * position. The position of [out] is left untouched.
+     *
+     * @param parallel whether to split the work across cores, only worth it for large frames.
+     */
+    @JvmOverloads
+    fun convert(
+        argb: IntArray,
+        stride: Int,
+        width: Int,
+        height: Int,
+        layout: Layout,
+        out: ByteBuffer,
+        parallel: Boolean = true
+    ) {
+        val required = getBufferSize(width, height)
+        if (out.remaining() < required) {
+            throw IllegalArgumentException("Output buffer too small: ${out.remaining()} < $required")
+        }
+        if (argb.size < stride * (height - 1) + width) {
+            throw IllegalArgumentException("Not enough pixels for a $width x $height frame")
+        }
+
+        val base = out.position()
+        val rowPairs = (height + 1) / 2
+        val tasks = if (parallel) {
+            Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), rowPairs / MIN_ROW_PAIRS_PER_TASK))
+        } else {
+            1
+        }
+        if (tasks == 1) {
+            convertRowPairs(argb, stride, width, height, layout, out, base, 0, rowPairs)
+            return
+        }
+
+        val pairsPerTask = (rowPairs + tasks - 1) / tasks
+        IntStream.range(0, tasks).parallel().forEach { task ->
+            val firstPair = task * pairsPerTask
+            val lastPair = Math.min(rowPairs, firstPair + pairsPerTask)
+            if (firstPair < lastPair) {
+                // absolute puts only, but keep each task on its own view of the buffer anyway
+                convertRowPairs(argb, stride, width, height, layout, out.duplicate(), base, firstPair, lastPair)
+            }
+        }
+    }
+
+    private fun convertRowPairs(
+        argb: IntArray,
+        stride: Int,
+        width: Int,
+        height: Int,
+        layout: Layout,
+        out: ByteBuffer,
+        base: Int,
+        firstPair: Int,
+        lastPair: Int
+    ) {
+        val chromaWidth = (width + 1) / 2
+        val chromaPlaneSize = chromaWidth * ((height + 1) / 2)
+        val chromaBase = base + width * height
+
+        for (pair in firstPair until lastPair) {
+            val row = pair * 2
+            writeLumaRow(argb, row * stride, width, out, base + row * width)
+            if (row + 1 < height) {
+                writeLumaRow(argb, (row + 1) * stride, width, out, base + (row + 1) * width)
+            }
+
+            var pixelIndex = row * stride
+            when (layout) {
+                Layout.NV12 -> {
+                    var uvIndex = chromaBase + pair * chromaWidth * 2
+                    for (x in 0 until chromaWidth) {
+                        val color = argb[pixelIndex]
+                        out.put(uvIndex++, chromaU(color))
+                        out.put(uvIndex++, chromaV(color))
+                        pixelIndex += 2
+                    }
+                }
+                Layout.I420 -> {
+                    var uIndex = chromaBase + pair * chromaWidth
+                    var vIndex = uIndex + chromaPlaneSize
+                    for (x in 0 until chromaWidth) {
+                        val color = argb[pixelIndex]
+                        out.put(uIndex++, chromaU(color))
+                        out.put(vIndex++, chromaV(color))
+                        pixelIndex += 2
+                    }
+                }
+            }
+        }
+    }
+
+    private fun writeLumaRow(argb: IntArray, rowOffset: Int, width: Int, out: ByteBuffer, outOffset: Int) {
+        for (x in 0 until width) {
+            val color = argb[rowOffset + x]
+            val r = color shr 16 and 0xFF
+            val g = color shr 8 and 0xFF
+            val b = color and 0xFF
+            // always within [0, 255] for these coefficients
+            out.put(outOffset + x, (r * 77 + g * 150 + b * 29 + 128 shr 8).toByte())
+        }
+    }
+
+    private fun chromaU(color: Int): Byte {
+        val r = color shr 16 and 0xFF
+        val g = color shr 8 and 0xFF
+        val b = color and 0xFF
+        return clamp((r * -43 - g * 84 + b * 127 + 128 shr 8) + 128)
+    }
+
+    private fun chromaV(color: Int): Byte {
+        val r = color shr 16 and 0xFF
+        val g = color shr 8 and 0xFF
+        val b = color and 0xFF
+        return clamp((r * 127 - g * 106 - b * 21 + 128 shr 8) + 128)
+    }
+
+    private fun clamp(value: Int): Byte {
+        return (if (value < 0) 0 else if (value > 255) 255 else value).toByte()
+    }
+}
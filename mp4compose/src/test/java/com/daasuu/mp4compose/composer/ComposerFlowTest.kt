@@ -0,0 +1,103 @@
+package com.daasuu.mp4compose.composer
+
+import android.util.Size
+import com.daasuu.mp4compose.FillMode
+import com.daasuu.mp4compose.filter.GlFilter
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Test
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class ComposerFlowTest {
+    /**
+     * Reports [progressSteps] from its own thread, then calls [finish], unless canceled first.
+     */
+    private class FakeComposer(
+        private val progressSteps: List<Double>,
+        private val finish: (Listener) -> Unit
+    ) : ComposerInterface {
+        private lateinit var listener: Listener
+        val canceled = CountDownLatch(1)
+        var started = false
+
+        override fun size(size: Size) = this
+        override fun fillMode(fillMode: FillMode) = this
+        override fun filter(filter: GlFilter?) = this
+        override fun mute(mute: Boolean) = this
+
+        override fun listener(listener: Listener): ComposerInterface {
+            this.listener = listener
+            return this
+        }
+
+        override fun start(): ComposerInterface {
+            started = true
+            Thread {
+                listener.onStart()
+                for (progress in progressSteps) {
+                    if (canceled.await(1, TimeUnit.MILLISECONDS)) {
+                        listener.onCanceled()
+                        return@Thread
+                    }
+                    listener.onProgress(progress)
+                }
+                finish(listener)
+            }.start()
+            return this
+        }
+
+        override fun cancel() {
+            canceled.countDown()
+        }
+    }
+
+    @Test
+    fun `emits progress until completion`() = runBlocking {
+        val composer = FakeComposer(listOf(0.25, 0.5, 1.0)) { it.onCompleted() }
+        val flow = composer.progressFlow()
+        assertFalse(composer.started)
+
+        assertEquals(listOf(0.25, 0.5, 1.0), flow.toList())
+        assertEquals(1L, composer.canceled.count)
+    }
+
+    @Test
+    fun `throws the composer failure`() = runBlocking {
+        val failure = IllegalStateException("encoder failed")
+        val composer = FakeComposer(listOf(0.5)) { it.onFailed(failure) }
+
+        try {
+            composer.progressFlow().toList()
+            fail("Failure not thrown")
+        } catch (e: IllegalStateException) {
+            assertEquals(failure.message, e.message)
+        }
+    }
+
+    @Test
+    fun `cancels the composer when the collector goes away`() = runBlocking {
+        val composer = FakeComposer(List(1000) { it / 1000.0 }) { it.onCompleted() }
+
+        // first() stops collecting after the first progress
+        composer.progressFlow().first()
+
+        assertTrue(composer.canceled.await(1, TimeUnit.SECONDS))
+    }
+
+    @Test(expected = CancellationException::class)
+    fun `throws when the composer is canceled elsewhere`() = runBlocking {
+        val composer = FakeComposer(listOf(0.5, 1.0)) { it.onCompleted() }
+        composer.cancel()
+
+        composer.progressFlow().toList()
+        Unit
+    }
+}
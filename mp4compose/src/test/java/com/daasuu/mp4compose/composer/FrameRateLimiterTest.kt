@@ -0,0 +1,40 @@
+package com.daasuu.mp4compose.composer
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class FrameRateLimiterTest {
+    // presentation times of frameCount frames at fps, rounded down like encoders do
+    private fun frames(fps: Int, frameCount: Int, startUs: Long = 0) =
+        List(frameCount) { startUs + it * 1_000_000L / fps }
+
+    private fun FrameRateLimiter.keep(frames: List<Long>) = frames.filter { keepFrame(it) }
+
+    @Test
+    fun `halves a 60 fps source to 30 fps`() {
+        val kept = FrameRateLimiter(30).keep(frames(60, 120))
+
+        assertEquals(60, kept.size)
+        assertEquals(frames(60, 120).filterIndexed { index, _ -> index % 2 == 0 }, kept)
+    }
+
+    @Test
+    fun `keeps every frame of a source at or below the target rate`() {
+        assertEquals(90, FrameRateLimiter(30).keep(frames(30, 90)).size)
+        assertEquals(50, FrameRateLimiter(30).keep(frames(25, 50)).size)
+    }
+
+    @Test
+    fun `reduces to a rate that isn't a divisor of the source one`() {
+        // 2 seconds of 30 fps down to 24 fps
+        assertEquals(48, FrameRateLimiter(24).keep(frames(30, 60)).size)
+    }
+
+    @Test
+    fun `restarts after a gap in the source`() {
+        val limiter = FrameRateLimiter(30)
+        val kept = limiter.keep(frames(60, 4) + frames(60, 4, startUs = 1_000_000L))
+
+        assertEquals(listOf(0L, 33_333L, 1_000_000L, 1_033_333L), kept)
+    }
+}
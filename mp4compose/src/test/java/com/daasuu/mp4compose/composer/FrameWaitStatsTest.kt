@@ -0,0 +1,23 @@
+package com.daasuu.mp4compose.composer
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class FrameWaitStatsTest {
+    @Test
+    fun `sums up frame waits`() {
+        val stats = FrameWaitStats()
+        listOf(2_000_000L, 4_000_000L, 90_000_000L).forEach { stats.record(it) }
+
+        assertEquals(3, stats.frameCount)
+        assertEquals(32_000_000L, stats.averageWaitNs)
+        assertEquals(90_000_000L, stats.maxWaitNs)
+        assertEquals(1, stats.slowFrameCount)
+        assertEquals("3 frames waited 32000 us on average, 90000 us at most, 1 over 66 ms", stats.toString())
+    }
+
+    @Test
+    fun `has no average without frames`() {
+        assertEquals(0L, FrameWaitStats().averageWaitNs)
+    }
+}
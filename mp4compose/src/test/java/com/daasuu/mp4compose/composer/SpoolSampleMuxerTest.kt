@@ -0,0 +1,74 @@
+package com.daasuu.mp4compose.composer
+
+import android.media.MediaCodec
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.nio.ByteBuffer
+
+class SpoolSampleMuxerTest {
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private fun SpoolSampleMuxer.write(bytes: ByteArray, offset: Int, presentationTimeUs: Long, flags: Int) {
+        writeSample(ByteBuffer.wrap(bytes), SampleInfo(offset, bytes.size - offset, presentationTimeUs, flags))
+    }
+
+    private fun SpoolSampleMuxer.replayAll(prefix: ByteArray?): List<Triple<ByteArray, Long, Int>> {
+        val replayed = ArrayList<Triple<ByteArray, Long, Int>>()
+        replaySamples(prefix) { buffer, info ->
+            val bytes = ByteArray(info.size)
+            buffer.position(info.offset)
+            buffer.get(bytes)
+            replayed.add(Triple(bytes, info.presentationTimeUs, info.flags))
+        }
+        return replayed
+    }
+
+    @Test
+    fun `replays samples in order`() {
+        val spool = SpoolSampleMuxer(folder.newFile())
+        spool.write(byteArrayOf(9, 1, 2, 3), 1, 0L, MediaCodec.BUFFER_FLAG_KEY_FRAME)
+        spool.write(byteArrayOf(4, 5), 0, 33_333L, 0)
+        // end of stream
+        spool.write(ByteArray(0), 0, 0L, MediaCodec.BUFFER_FLAG_END_OF_STREAM)
+
+        val replayed = spool.replayAll(null)
+
+        assertEquals(2, replayed.size)
+        assertArrayEquals(byteArrayOf(1, 2, 3), replayed[0].first)
+        assertEquals(0L, replayed[0].second)
+        assertEquals(MediaCodec.BUFFER_FLAG_KEY_FRAME, replayed[0].third)
+        assertArrayEquals(byteArrayOf(4, 5), replayed[1].first)
+        assertEquals(33_333L, replayed[1].second)
+        spool.release()
+    }
+
+    @Test
+    fun `prepends the prefix to the first sample only`() {
+        val spool = SpoolSampleMuxer(folder.newFile())
+        spool.write(byteArrayOf(1, 2, 3), 0, 0L, MediaCodec.BUFFER_FLAG_KEY_FRAME)
+        spool.write(byteArrayOf(4), 0, 33_333L, 0)
+
+        val replayed = spool.replayAll(byteArrayOf(0, 0, 0, 1, 0x67))
+
+        assertArrayEquals(byteArrayOf(0, 0, 0, 1, 0x67, 1, 2, 3), replayed[0].first)
+        assertArrayEquals(byteArrayOf(4), replayed[1].first)
+        spool.release()
+    }
+
+    @Test
+    fun `deletes its file when released`() {
+        val file = folder.newFile()
+        val spool = SpoolSampleMuxer(file)
+        spool.write(byteArrayOf(1), 0, 0L, 0)
+
+        spool.release()
+
+        assertFalse(file.exists())
+    }
+}
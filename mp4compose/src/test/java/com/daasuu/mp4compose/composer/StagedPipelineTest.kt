@@ -0,0 +1,195 @@
+package com.daasuu.mp4compose.composer
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Test
+
+import java.util.Collections
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class StagedPipelineTest {
+    /**
+     * Stands for a codec: [bufferCount] frames at most in flight, queuing blocks when they're all taken, and each
+     * frame takes [latencyMs] to come out.
+     */
+    private class FakeCodec(bufferCount: Int, private val latencyMs: Long) {
+        private val buffers = ArrayBlockingQueue<Int>(bufferCount)
+
+        fun queue(frame: Int) = buffers.put(frame)
+
+        fun dequeue(timeoutMs: Long): Int? {
+            val frame = buffers.poll(timeoutMs, TimeUnit.MILLISECONDS) ?: return null
+            Thread.sleep(latencyMs)
+            return frame
+        }
+    }
+
+    /**
+     * The VideoComposer stages: decoder feed, rendering into the encoder, encoder draining into a muxer, the
+     * decoded frames being handed over through a queue of [queueCapacity].
+     */
+    private class FakeTranscode(
+        private val frameCount: Int,
+        decodeMs: Long,
+        private val renderMs: Long,
+        encodeMs: Long,
+        private val muxMs: Long,
+        queueCapacity: Int = 2
+    ) {
+        val decoder = FakeCodec(4, decodeMs)
+        val encoder = FakeCodec(4, encodeMs)
+        val decodedFrames = ArrayBlockingQueue<Int>(queueCapacity)
+        val muxed: MutableList<Int> = Collections.synchronizedList(ArrayList<Int>())
+        private var fed = 0
+        private var decoded = 0
+
+        fun addStagesTo(pipeline: StagedPipeline) {
+            pipeline.addStage("decode") {
+                if (fed < frameCount) {
+                    decoder.queue(fed++)
+                }
+                decoder.dequeue(1)?.let {
+                    decodedFrames.put(it)
+                    decoded++
+                }
+                decoded < frameCount
+            }
+            pipeline.addStage("render") {
+                val frame = decodedFrames.take()
+                Thread.sleep(renderMs)
+                encoder.queue(frame)
+                frame < frameCount - 1
+            }
+            pipeline.addStage("encode") {
+                encoder.dequeue(1)?.let {
+                    Thread.sleep(muxMs)
+                    muxed.add(it)
+                }
+                muxed.size < frameCount
+            }
+        }
+    }
+
+    @Test
+    fun `runs at about the pace of the slowest stage`() {
+        val transcode = FakeTranscode(frameCount = 30, decodeMs = 4, renderMs = 4, encodeMs = 4, muxMs = 12)
+        val pipeline = StagedPipeline("test")
+        transcode.addStagesTo(pipeline)
+
+        val start = System.currentTimeMillis()
+        pipeline.run({ false }, 10) { }
+        val elapsedMs = System.currentTimeMillis() - start
+
+        assertEquals(List(30) { it }, transcode.muxed)
+        // 30 * 24 ms when stepped in lockstep, 30 * 16 ms (encode and mux) with stages
+        assertTrue("Took $elapsedMs ms", elapsedMs < 30 * 20)
+    }
+
+    @Test
+    fun `holds upstream stages back while a stage is stalled`() {
+        val inFlight = AtomicInteger()
+        var maxInFlight = 0
+        val queue = ArrayBlockingQueue<Int>(2)
+        var produced = 0
+        var consumed = 0
+        val pipeline = StagedPipeline("test")
+        pipeline.addStage("produce") {
+            queue.put(produced++)
+            maxInFlight = Math.max(maxInFlight, inFlight.incrementAndGet())
+            produced < 20
+        }
+        pipeline.addStage("consume") {
+            queue.take()
+            Thread.sleep(5)
+            inFlight.decrementAndGet()
+            ++consumed < 20
+        }
+
+        pipeline.run({ false }, 10) { }
+
+        assertEquals(20, consumed)
+        // the queued frames, plus the one put as the consumer takes another
+        assertTrue("$maxInFlight frames in flight", maxInFlight <= 3)
+    }
+
+    @Test
+    fun `stops the other stages and throws the first failure`() {
+        val failure = IllegalStateException("render failed")
+        val stopped = Collections.synchronizedList(ArrayList<String>())
+        val queue = ArrayBlockingQueue<Int>(2)
+        val pipeline = StagedPipeline("test")
+        pipeline.addStage("decode", onStop = { stopped.add("decode") }) {
+            // blocked on the full queue once the render stage fails
+            queue.put(0)
+            true
+        }
+        pipeline.addStage("render", onStop = { stopped.add("render") }) {
+            queue.take()
+            throw failure
+        }
+        pipeline.addStage("encode", onStop = { stopped.add("encode") }) {
+            Thread.sleep(1)
+            true
+        }
+
+        try {
+            pipeline.run({ false }, 10) { }
+            fail("Failure not thrown")
+        } catch (e: IllegalStateException) {
+            assertEquals(failure, e)
+        }
+        assertEquals(setOf("decode", "render", "encode"), stopped.toSet())
+    }
+
+    @Test
+    fun `stops upstream stages first when canceled`() {
+        val stopped = Collections.synchronizedList(ArrayList<String>())
+        val pipeline = StagedPipeline("test")
+        for (name in listOf("decode", "render", "encode")) {
+            pipeline.addStage(name, onStop = { stopped.add(name) }) {
+                Thread.sleep(1)
+                true
+            }
+        }
+        var polls = 0
+
+        pipeline.run({ polls >= 3 }, 10) { polls++ }
+
+        assertEquals(3, polls)
+        assertEquals(listOf("decode", "render", "encode"), stopped)
+    }
+
+    @Test
+    fun `throws the stage failure even if another stage doesn't stop`() {
+        val failure = IllegalStateException("render failed")
+        val release = CountDownLatch(1)
+        val pipeline = StagedPipeline("test", stopTimeoutMs = 50)
+        pipeline.addStage("render") {
+            // i.e. stuck in a driver call, interrupts don't get it out
+            while (release.count > 0) {
+                try {
+                    release.await()
+                } catch (e: InterruptedException) {
+                    // still stuck
+                }
+            }
+            false
+        }
+        pipeline.addStage("encode") { throw failure }
+
+        try {
+            pipeline.run({ false }, 10) { }
+            fail("Failure not thrown")
+        } catch (e: IllegalStateException) {
+            assertEquals(failure, e)
+        }
+        assertFalse(pipeline.isStopped)
+
+        release.countDown()
+    }
+}
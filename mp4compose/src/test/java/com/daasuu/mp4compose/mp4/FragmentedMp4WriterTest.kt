@@ -0,0 +1,188 @@
+package com.daasuu.mp4compose.mp4
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+
+class FragmentedMp4WriterTest {
+    private class Box(val type: String, val offset: Int, val size: Int)
+
+    private val sps = byteArrayOf(0x67, 0x42, 0xC0.toByte(), 0x1E, 0x11, 0x22)
+    private val pps = byteArrayOf(0x68, 0xCE.toByte(), 0x3C, 0x80.toByte())
+    private val audioSpecificConfig = byteArrayOf(0x12, 0x10)
+
+    private fun videoFormat() = Mp4TrackFormat.video(
+        Mp4TrackFormat.MIMETYPE_VIDEO_AVC,
+        320,
+        240,
+        listOf(byteArrayOf(0, 0, 0, 1) + sps, byteArrayOf(0, 0, 0, 1) + pps)
+    )
+
+    private fun audioFormat() = Mp4TrackFormat.audio(Mp4TrackFormat.MIMETYPE_AUDIO_AAC, 44100, 2, audioSpecificConfig)
+
+    // an Annex-B access unit made of two NAL units, tagged with the frame number
+    private fun videoSample(frame: Int): ByteArray {
+        val type = if (frame % FRAMES_PER_GOP == 0) 0x65 else 0x41
+        return byteArrayOf(
+            0, 0, 0, 1, type.toByte(), frame.toByte(), 0x7F,
+            0, 0, 1, 0x06, frame.toByte(), 0x80.toByte()
+        )
+    }
+
+    private fun writeMovie(listener: FragmentedMp4Writer.FragmentListener? = null): ByteArray {
+        val out = ByteArrayOutputStream()
+        val writer = FragmentedMp4Writer(Channels.newChannel(out))
+        writer.fragmentListener = listener
+        val videoTrack = writer.addTrack(videoFormat())
+        val audioTrack = writer.addTrack(audioFormat())
+        writer.start()
+        var audioTimeUs = 0L
+        for (frame in 0 until GOPS * FRAMES_PER_GOP) {
+            val timeUs = frame * FRAME_DURATION_US
+            while (audioTimeUs <= timeUs) {
+                writer.writeSampleData(audioTrack, ByteBuffer.wrap(ByteArray(10) { 0x21 }), audioTimeUs, false)
+                audioTimeUs += AUDIO_FRAME_DURATION_US
+            }
+            writer.writeSampleData(videoTrack, ByteBuffer.wrap(videoSample(frame)), timeUs, frame % FRAMES_PER_GOP == 0)
+        }
+        writer.finish()
+        return out.toByteArray()
+    }
+
+    private fun readBoxes(data: ByteArray, offset: Int = 0, end: Int = data.size): List<Box> {
+        val buffer = ByteBuffer.wrap(data)
+        val boxes = ArrayList<Box>()
+        var position = offset
+        while (position + 8 <= end) {
+            val size = buffer.getInt(position)
+            val type = String(data, position + 4, 4, Charsets.US_ASCII)
+            boxes.add(Box(type, position, size))
+            position += size
+        }
+        assertEquals(end, position)
+        return boxes
+    }
+
+    private fun children(data: ByteArray, box: Box, headerSize: Int = 8) =
+            readBoxes(data, box.offset + headerSize, box.offset + box.size)
+
+    private fun child(data: ByteArray, box: Box, type: String) = children(data, box).first { it.type == type }
+
+    @Test
+    fun `writes one fragment per GOP after the movie header`() {
+        val data = writeMovie()
+
+        val types = readBoxes(data).map { it.type }
+        val expected = listOf("ftyp", "moov") + (0 until GOPS).flatMap { listOf("moof", "mdat") }
+        assertEquals(expected, types)
+    }
+
+    @Test
+    fun `declares the tracks in the movie header`() {
+        val data = writeMovie()
+        val moov = readBoxes(data)[1]
+
+        val moovChildren = children(data, moov).map { it.type }
+        assertEquals(listOf("mvhd", "trak", "trak", "mvex"), moovChildren)
+
+        val videoTrak = children(data, moov)[1]
+        val stbl = child(data, child(data, child(data, videoTrak, "mdia"), "minf"), "stbl")
+        val stsd = child(data, stbl, "stsd")
+        // full box header + entry count
+        val avc1 = readBoxes(data, stsd.offset + 16, stsd.offset + stsd.size)[0]
+        assertEquals("avc1", avc1.type)
+        // sample entry fields take 78 bytes after the box header
+        val avcC = readBoxes(data, avc1.offset + 86, avc1.offset + avc1.size)[0]
+        assertEquals("avcC", avcC.type)
+        val record = data.copyOfRange(avcC.offset + 8, avcC.offset + avcC.size)
+        assertArrayEquals(
+            byteArrayOf(1, 0x42, 0xC0.toByte(), 0x1E, 0xFF.toByte(), 0xE1.toByte(), 0, sps.size.toByte()) +
+                    sps + byteArrayOf(1, 0, pps.size.toByte()) + pps,
+            record
+        )
+    }
+
+    @Test
+    fun `fragments hold length prefixed samples with their durations`() {
+        val data = writeMovie()
+        val boxes = readBoxes(data)
+
+        for (gop in 0 until GOPS) {
+            val moof = boxes[2 + gop * 2]
+            val videoTraf = children(data, moof)[1]
+            val tfdt = child(data, videoTraf, "tfdt")
+            assertEquals(gop * FRAMES_PER_GOP * FRAME_DURATION_TICKS, ByteBuffer.wrap(data).getLong(tfdt.offset + 12))
+
+            val trun = child(data, videoTraf, "trun")
+            val buffer = ByteBuffer.wrap(data)
+            assertEquals(FRAMES_PER_GOP, buffer.getInt(trun.offset + 12))
+            val dataOffset = buffer.getInt(trun.offset + 16)
+            for (i in 0 until FRAMES_PER_GOP) {
+                val entry = trun.offset + 20 + i * 12
+                assertEquals(FRAME_DURATION_TICKS.toInt(), buffer.getInt(entry))
+                assertEquals(14, buffer.getInt(entry + 4))
+                val expectedFlags = if (i == 0) 0x02000000 else 0x01010000
+                assertEquals(expectedFlags, buffer.getInt(entry + 8))
+            }
+
+            // the first video sample of the fragment, as 4 byte length prefixed NAL units
+            val frame = gop * FRAMES_PER_GOP
+            val sampleStart = moof.offset + dataOffset
+            assertArrayEquals(
+                byteArrayOf(0, 0, 0, 3, 0x65, frame.toByte(), 0x7F, 0, 0, 0, 3, 0x06, frame.toByte(), 0x80.toByte()),
+                data.copyOfRange(sampleStart, sampleStart + 14)
+            )
+        }
+    }
+
+    @Test
+    fun `reports the end of each fragment as it gets written`() {
+        val reported = ArrayList<Pair<Int, Long>>()
+        val data = writeMovie(object : FragmentedMp4Writer.FragmentListener {
+            override fun onFragmentWritten(sequenceNumber: Int, bytesWritten: Long) {
+                reported.add(sequenceNumber to bytesWritten)
+            }
+        })
+
+        val mdats = readBoxes(data).filter { it.type == "mdat" }
+        assertEquals(mdats.mapIndexed { i, mdat -> i + 1 to (mdat.offset + mdat.size).toLong() }, reported)
+        assertEquals(data.size.toLong(), reported.last().second)
+    }
+
+    @Test
+    fun `audio samples are spread over the fragments`() {
+        val data = writeMovie()
+        val buffer = ByteBuffer.wrap(data)
+
+        var audioSamples = 0
+        for (moof in readBoxes(data).filter { it.type == "moof" }) {
+            val audioTraf = children(data, moof)[2]
+            val trun = child(data, audioTraf, "trun")
+            audioSamples += buffer.getInt(trun.offset + 12)
+        }
+        val lastVideoTimeUs = (GOPS * FRAMES_PER_GOP - 1) * FRAME_DURATION_US
+        assertEquals((lastVideoTimeUs / AUDIO_FRAME_DURATION_US + 1).toInt(), audioSamples)
+    }
+
+    @Test
+    fun `splits annex-b data into nal units`() {
+        val units = NalUnits.split(byteArrayOf(0, 0, 0, 1, 0x67, 1, 0, 0, 1, 0x68, 2, 0))
+
+        assertEquals(2, units.size)
+        assertArrayEquals(byteArrayOf(0x67, 1), units[0])
+        assertArrayEquals(byteArrayOf(0x68, 2), units[1])
+        assertTrue(NalUnits.isAnnexB(byteArrayOf(0, 0, 1, 0x65)))
+    }
+
+    companion object {
+        private const val GOPS = 3
+        private const val FRAMES_PER_GOP = 5
+        private const val FRAME_DURATION_US = 40_000L
+        private const val FRAME_DURATION_TICKS = 3600L
+        private const val AUDIO_FRAME_DURATION_US = 23_220L
+    }
+}
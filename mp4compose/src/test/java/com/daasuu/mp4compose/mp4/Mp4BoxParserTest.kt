@@ -0,0 +1,234 @@
+package com.daasuu.mp4compose.mp4
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.Channels
+
+class Mp4BoxParserTest {
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private fun ByteBuffer.toBytes(): ByteArray {
+        val bytes = ByteArray(remaining())
+        get(bytes)
+        return bytes
+    }
+
+    private fun ftyp() = Mp4BoxBuilder().box("ftyp") {
+        fourCc("isom")
+        u32(0)
+        fourCc("isom")
+    }.toByteBuffer().toBytes()
+
+    private fun mdat(size: Int) = Mp4BoxBuilder(size + 8).box("mdat") { zeros(size) }.toByteBuffer().toBytes()
+
+    // mdat with a 64 bit size header
+    private fun largeMdat(size: Int) = Mp4BoxBuilder(size + 16).apply {
+        u32(1)
+        fourCc("mdat")
+        u64(size + 16L)
+        zeros(size)
+    }.toByteBuffer().toBytes()
+
+    private fun Mp4BoxBuilder.tkhd(trackId: Int, version: Int, matrix: IntArray, width: Int, height: Int) {
+        fullBox("tkhd", version = version, flags = 3) {
+            if (version == 1) zeros(16) else zeros(8)
+            u32(trackId)
+            u32(0)
+            if (version == 1) u64(0) else u32(0)
+            zeros(16)
+            matrix.forEach { u32(it) }
+            u32(width shl 16)
+            u32(height shl 16)
+        }
+    }
+
+    private fun Mp4BoxBuilder.mdhd(timescale: Int, duration: Long) {
+        fullBox("mdhd", version = 1, flags = 0) {
+            zeros(16)
+            u32(timescale)
+            u64(duration)
+            zeros(4)
+        }
+    }
+
+    private fun Mp4BoxBuilder.hdlr(handlerType: String) {
+        fullBox("hdlr", version = 0, flags = 0) {
+            u32(0)
+            fourCc(handlerType)
+            zeros(13)
+        }
+    }
+
+    private fun Mp4BoxBuilder.stbl(codec: String, sampleCount: Int, stts: List<Pair<Int, Int>>, stss: IntArray?) {
+        box("stbl") {
+            fullBox("stsd", version = 0, flags = 0) {
+                u32(1)
+                box(codec) { zeros(78) }
+            }
+            fullBox("stts", version = 0, flags = 0) {
+                u32(stts.size)
+                stts.forEach { (count, delta) ->
+                    u32(count)
+                    u32(delta)
+                }
+            }
+            if (stss != null) {
+                fullBox("stss", version = 0, flags = 0) {
+                    u32(stss.size)
+                    stss.forEach { u32(it) }
+                }
+            }
+            fullBox("stsz", version = 0, flags = 0) {
+                u32(0)
+                u32(sampleCount)
+                repeat(sampleCount) { u32(100) }
+            }
+        }
+    }
+
+    private fun moov(videoMatrix: IntArray = IDENTITY) = Mp4BoxBuilder().box("moov") {
+        fullBox("mvhd", version = 0, flags = 0) {
+            zeros(8)
+            u32(1000)
+            u32(2000)
+            zeros(80)
+        }
+        box("trak") {
+            tkhd(trackId = 1, version = 0, matrix = videoMatrix, width = 1920, height = 1080)
+            box("mdia") {
+                mdhd(timescale = 90000, duration = 180000)
+                hdlr("vide")
+                box("minf") {
+                    // 30 fps for 10 frames, then 15 fps for 20 frames, a key frame every 10 frames
+                    stbl("avc1", 30, listOf(10 to 3000, 20 to 6000), intArrayOf(1, 11, 21))
+                }
+            }
+        }
+        box("trak") {
+            tkhd(trackId = 2, version = 1, matrix = IDENTITY, width = 0, height = 0)
+            box("mdia") {
+                mdhd(timescale = 44100, duration = 88200)
+                hdlr("soun")
+                box("minf") {
+                    stbl("mp4a", 4, listOf(4 to 1024), null)
+                }
+            }
+        }
+    }.toByteBuffer().toBytes()
+
+    private fun parseFile(vararg parts: ByteArray): Mp4MovieInfo {
+        val file = folder.newFile()
+        file.writeBytes(parts.reduce { acc, bytes -> acc + bytes })
+        return RandomAccessFile(file, "r").use { Mp4BoxParser.parse(it.channel) }
+    }
+
+    private fun parseStream(vararg parts: ByteArray): Mp4MovieInfo {
+        return Mp4BoxParser.parse(ByteArrayInputStream(parts.reduce { acc, bytes -> acc + bytes }))
+    }
+
+    @Test
+    fun `reads the movie and track headers`() {
+        val info = parseFile(ftyp(), moov(), mdat(1000))
+
+        assertEquals(2_000_000L, info.durationUs)
+        assertEquals(1000L, info.timescale)
+        assertEquals(2, info.tracks.size)
+
+        val video = info.videoTrack!!
+        assertEquals(1, video.trackId)
+        assertEquals("avc1", video.codec)
+        assertEquals(2_000_000L, video.durationUs)
+        assertEquals(1920, video.width)
+        assertEquals(1080, video.height)
+        assertEquals(0, video.rotation)
+        assertEquals(30, video.sampleCount)
+
+        val audio = info.audioTrack!!
+        assertEquals(2, audio.trackId)
+        assertEquals("mp4a", audio.codec)
+        assertEquals(44100L, audio.timescale)
+        assertEquals(2_000_000L, audio.durationUs)
+        assertEquals(4, audio.sampleCount)
+    }
+
+    @Test
+    fun `skips mdat in front of moov`() {
+        val fromFile = parseFile(ftyp(), largeMdat(100_000), moov())
+        val fromStream = parseStream(ftyp(), largeMdat(100_000), moov())
+
+        assertEquals(30, fromFile.videoTrack!!.sampleCount)
+        assertEquals(30, fromStream.videoTrack!!.sampleCount)
+    }
+
+    @Test
+    fun `reads the rotation from the track matrix`() {
+        val one = 0x10000
+        val w = 0x40000000
+        assertEquals(90, parseStream(moov(intArrayOf(0, one, 0, -one, 0, 0, 0, 0, w))).videoTrack!!.rotation)
+        assertEquals(180, parseStream(moov(intArrayOf(-one, 0, 0, 0, -one, 0, 0, 0, w))).videoTrack!!.rotation)
+        assertEquals(270, parseStream(moov(intArrayOf(0, -one, 0, one, 0, 0, 0, 0, w))).videoTrack!!.rotation)
+    }
+
+    @Test
+    fun `reads sync samples and their times`() {
+        val info = parseStream(ftyp(), moov())
+        val video = info.videoTrack!!
+
+        assertArrayEquals(intArrayOf(1, 11, 21), video.syncSamples)
+        assertTrue(video.isSyncSample(11))
+        assertFalse(video.isSyncSample(12))
+        assertEquals(0L, video.sampleTimeUs(1))
+        assertEquals(333_333L, video.sampleTimeUs(11))
+        assertEquals(1_000_000L, video.sampleTimeUs(21))
+        assertArrayEquals(longArrayOf(0L, 333_333L, 1_000_000L), video.syncSampleTimesUs())
+
+        // no stss, every sample is a sync sample
+        val audio = info.audioTrack!!
+        assertNull(audio.syncSamples)
+        assertTrue(audio.isSyncSample(3))
+        assertEquals(4, audio.syncSampleTimesUs().size)
+    }
+
+    @Test
+    fun `reads the tracks of a fragmented file`() {
+        val out = ByteArrayOutputStream()
+        val writer = FragmentedMp4Writer(Channels.newChannel(out))
+        writer.addTrack(Mp4TrackFormat.audio(Mp4TrackFormat.MIMETYPE_AUDIO_AAC, 44100, 2, byteArrayOf(0x12, 0x10)))
+        writer.start()
+        writer.writeSampleData(0, ByteBuffer.wrap(ByteArray(10)), 0, false)
+        writer.finish()
+
+        val info = parseStream(out.toByteArray())
+
+        assertEquals(1, info.tracks.size)
+        assertEquals("mp4a", info.audioTrack!!.codec)
+        assertEquals(0, info.audioTrack!!.sampleCount)
+    }
+
+    @Test(expected = IOException::class)
+    fun `fails without moov`() {
+        parseStream(ftyp(), mdat(100))
+    }
+
+    @Test(expected = IOException::class)
+    fun `fails on a truncated moov`() {
+        val moov = moov()
+        parseStream(ftyp(), moov.copyOf(moov.size - 20))
+    }
+
+    companion object {
+        private val IDENTITY = intArrayOf(0x10000, 0, 0, 0, 0x10000, 0, 0, 0, 0x40000000)
+    }
+}
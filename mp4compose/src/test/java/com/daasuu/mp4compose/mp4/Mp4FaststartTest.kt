@@ -0,0 +1,205 @@
+package com.daasuu.mp4compose.mp4
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.nio.ByteBuffer
+import kotlin.random.Random
+
+class Mp4FaststartTest {
+    private class Box(val type: String, val offset: Int, val size: Int)
+
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private val payload = Random(42).nextBytes(PAYLOAD_SIZE)
+
+    private fun ByteBuffer.toBytes(): ByteArray {
+        val bytes = ByteArray(remaining())
+        get(bytes)
+        return bytes
+    }
+
+    private fun ftyp() = Mp4BoxBuilder().box("ftyp") {
+        fourCc("isom")
+        u32(0)
+        fourCc("isom")
+        fourCc("mp42")
+    }.toByteBuffer().toBytes()
+
+    private fun free(size: Int) = Mp4BoxBuilder().box("free") { zeros(size - 8) }.toByteBuffer().toBytes()
+
+    private fun mdat() = Mp4BoxBuilder(PAYLOAD_SIZE + 8).box("mdat") { bytes(payload) }.toByteBuffer().toBytes()
+
+    // one track with 32 bit chunk offsets, one with 64 bit ones, both pointing into the mdat payload
+    private fun moov(payloadOffset: Int) = Mp4BoxBuilder().box("moov") {
+        fullBox("mvhd", version = 0, flags = 0) { zeros(96) }
+        for (type in listOf("stco", "co64")) {
+            box("trak") {
+                box("mdia") {
+                    box("minf") {
+                        box("stbl") {
+                            fullBox("stsz", version = 0, flags = 0) { zeros(8) }
+                            fullBox(type, version = 0, flags = 0) {
+                                u32(CHUNKS)
+                                for (chunk in 0 until CHUNKS) {
+                                    val offset = payloadOffset + chunkPayloadOffset(type, chunk)
+                                    if (type == "stco") u32(offset) else u64(offset.toLong())
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }.toByteBuffer().toBytes()
+
+    private fun chunkPayloadOffset(type: String, chunk: Int) =
+            chunk * (PAYLOAD_SIZE / CHUNKS) + if (type == "co64") 7 else 0
+
+    private fun writeFile(vararg parts: ByteArray): File {
+        val file = folder.newFile()
+        file.writeBytes(parts.reduce { acc, bytes -> acc + bytes })
+        return file
+    }
+
+    private fun readBoxes(data: ByteArray, offset: Int = 0, end: Int = data.size): List<Box> {
+        val buffer = ByteBuffer.wrap(data)
+        val boxes = ArrayList<Box>()
+        var position = offset
+        while (position + 8 <= end) {
+            val size = buffer.getInt(position)
+            boxes.add(Box(String(data, position + 4, 4, Charsets.US_ASCII), position, size))
+            position += size
+        }
+        assertEquals(end, position)
+        return boxes
+    }
+
+    private fun chunkOffsets(data: ByteArray, type: String): List<Long> {
+        val buffer = ByteBuffer.wrap(data)
+        var boxes = readBoxes(data)
+        for (path in listOf("moov", "trak", "mdia", "minf", "stbl")) {
+            val parent = boxes.first { it.type == path && (path != "trak" || hasChild(data, it, type)) }
+            boxes = readBoxes(data, parent.offset + 8, parent.offset + parent.size)
+        }
+        val table = boxes.first { it.type == type }
+        val count = buffer.getInt(table.offset + 12)
+        return (0 until count).map {
+            if (type == "stco") {
+                buffer.getInt(table.offset + 16 + it * 4).toLong()
+            } else {
+                buffer.getLong(table.offset + 16 + it * 8)
+            }
+        }
+    }
+
+    private fun hasChild(data: ByteArray, trak: Box, type: String): Boolean {
+        return String(data, trak.offset, trak.size, Charsets.ISO_8859_1).contains(type)
+    }
+
+    private fun assertChunksPointAtPayload(data: ByteArray) {
+        for (type in listOf("stco", "co64")) {
+            chunkOffsets(data, type).forEachIndexed { chunk, offset ->
+                val expected = chunkPayloadOffset(type, chunk)
+                assertArrayEquals(
+                    payload.copyOfRange(expected, expected + 16),
+                    data.copyOfRange(offset.toInt(), offset.toInt() + 16)
+                )
+            }
+        }
+    }
+
+    @Test
+    fun `moves moov in front of mdat and shifts the chunk offsets`() {
+        val ftyp = ftyp()
+        val file = writeFile(ftyp, mdat(), moov(ftyp.size + 8))
+        val sizeBefore = file.length()
+
+        assertTrue(Mp4Faststart.process(file, SMALL_WINDOW_SIZE))
+
+        val data = file.readBytes()
+        assertEquals(sizeBefore, data.size.toLong())
+        assertEquals(listOf("ftyp", "moov", "mdat"), readBoxes(data).map { it.type })
+        assertChunksPointAtPayload(data)
+    }
+
+    @Test
+    fun `leaves the boxes after moov in place`() {
+        val ftyp = ftyp()
+        val trailer = free(64)
+        val file = writeFile(ftyp, mdat(), moov(ftyp.size + 8), trailer)
+
+        assertTrue(Mp4Faststart.process(file, SMALL_WINDOW_SIZE))
+
+        val data = file.readBytes()
+        assertEquals(listOf("ftyp", "moov", "mdat", "free"), readBoxes(data).map { it.type })
+        assertArrayEquals(trailer, data.copyOfRange(data.size - trailer.size, data.size))
+        assertChunksPointAtPayload(data)
+    }
+
+    @Test
+    fun `writes moov into the space reserved in front of mdat`() {
+        val ftyp = ftyp()
+        val moovSize = moov(0).size
+        val reserved = free(moovSize + 100)
+        val file = writeFile(ftyp, reserved, mdat(), moov(ftyp.size + reserved.size + 8))
+
+        assertTrue(Mp4Faststart.process(file, SMALL_WINDOW_SIZE))
+
+        val data = file.readBytes()
+        assertEquals(listOf("ftyp", "moov", "free", "mdat"), readBoxes(data).map { it.type })
+        assertEquals(ftyp.size + reserved.size + 8 + PAYLOAD_SIZE, data.size)
+        assertChunksPointAtPayload(data)
+    }
+
+    @Test
+    fun `shifts mdat when the reserved space is too small`() {
+        val ftyp = ftyp()
+        val reserved = free(moov(0).size + 4)
+        val file = writeFile(ftyp, reserved, mdat(), moov(ftyp.size + reserved.size + 8))
+
+        assertTrue(Mp4Faststart.process(file, SMALL_WINDOW_SIZE))
+
+        val data = file.readBytes()
+        assertEquals(listOf("ftyp", "free", "moov", "mdat"), readBoxes(data).map { it.type })
+        assertChunksPointAtPayload(data)
+    }
+
+    @Test
+    fun `does nothing when moov is already in front`() {
+        val ftyp = ftyp()
+        val moovSize = moov(0).size
+        val original = ftyp + moov(ftyp.size + moovSize + 8) + mdat()
+        val file = writeFile(original)
+
+        assertFalse(Mp4Faststart.process(file, SMALL_WINDOW_SIZE))
+
+        assertArrayEquals(original, file.readBytes())
+    }
+
+    @Test
+    fun `leaves the file untouched when a 32 bit chunk offset would overflow`() {
+        val ftyp = ftyp()
+        // the last chunk ends up 10 bytes short of 4GB, shifting it by the size of moov overflows
+        val original = ftyp + mdat() + moov((MAX_STCO_OFFSET - PAYLOAD_SIZE / CHUNKS * (CHUNKS - 1) - 10).toInt())
+        val file = writeFile(original)
+
+        assertFalse(Mp4Faststart.process(file, SMALL_WINDOW_SIZE))
+
+        assertArrayEquals(original, file.readBytes())
+    }
+
+    companion object {
+        private const val PAYLOAD_SIZE = 100_000
+        private const val CHUNKS = 10
+        // small enough for the payload to be moved over several mapped windows
+        private const val SMALL_WINDOW_SIZE = 4096L
+        private const val MAX_STCO_OFFSET = 0xFFFFFFFFL
+    }
+}
@@ -0,0 +1,73 @@
+package com.daasuu.mp4compose.utils
+
+import android.media.MediaFormat
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class EncoderCapabilitiesTest {
+    private fun avcEncoder(verifiedSizes: List<VideoSize>) = EncoderProfile(
+        name = "OMX.vendor.avc.encoder",
+        mimeType = MediaFormat.MIMETYPE_VIDEO_AVC,
+        isHardware = true,
+        widthAlignment = 2,
+        heightAlignment = 2,
+        minWidth = 96,
+        maxWidth = 4096,
+        minHeight = 96,
+        maxHeight = 4096,
+        minBitrate = 1,
+        maxBitrate = 40_000_000,
+        profiles = listOf(1, 2, 8),
+        maxInstances = 4,
+        colorFormats = listOf(0x7F000789, 21),
+        verifiedSizes = verifiedSizes
+    )
+
+    @Test
+    fun `picks the largest supported standard size fitting the canvas`() {
+        val encoders = listOf(avcEncoder(listOf(VideoSize(1080, 1920), VideoSize(720, 1280), VideoSize(1920, 1080))))
+
+        // 1440x2560 fits but isn't supported
+        assertEquals(
+            VideoSize(1080, 1920),
+            EncoderCapabilities.bestOutputSize(encoders, MediaFormat.MIMETYPE_VIDEO_AVC, 1440, 3040)
+        )
+        // too short for 1080x1920
+        assertEquals(
+            VideoSize(720, 1280),
+            EncoderCapabilities.bestOutputSize(encoders, MediaFormat.MIMETYPE_VIDEO_AVC, 1080, 1800)
+        )
+        assertEquals(
+            VideoSize(1920, 1080),
+            EncoderCapabilities.bestOutputSize(encoders, MediaFormat.MIMETYPE_VIDEO_AVC, 2400, 1080)
+        )
+        assertNull(EncoderCapabilities.bestOutputSize(encoders, MediaFormat.MIMETYPE_VIDEO_HEVC, 1440, 3040))
+        assertNull(EncoderCapabilities.bestOutputSize(encoders, MediaFormat.MIMETYPE_VIDEO_AVC, 200, 300))
+    }
+
+    @Test
+    fun `checks other sizes against ranges, alignments and the largest verified size`() {
+        val encoder = avcEncoder(listOf(VideoSize(1080, 1920), VideoSize(1920, 1080)))
+
+        assertTrue(encoder.isSizeSupported(1080, 1920))
+        assertTrue(encoder.isSizeSupported(1000, 1000))
+        assertFalse(encoder.isSizeSupported(1001, 1000))
+        assertFalse(encoder.isSizeSupported(2160, 3840))
+        assertFalse(encoder.isSizeSupported(64, 64))
+    }
+
+    @Test
+    fun `parses the sizes it writes`() {
+        assertEquals(VideoSize(1080, 1920), VideoSize.parse(VideoSize(1080, 1920).toString()))
+    }
+
+    @Test
+    fun `round trips through json`() {
+        val encoder = avcEncoder(listOf(VideoSize(1080, 1920), VideoSize(720, 1280)))
+
+        assertEquals(encoder, EncoderProfile.fromJson(encoder.toJson()))
+    }
+}
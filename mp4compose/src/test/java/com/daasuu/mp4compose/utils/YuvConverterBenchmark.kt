@@ -0,0 +1,49 @@
+package com.daasuu.mp4compose.utils
+
+import com.daasuu.mp4compose.utils.YuvConverter.Layout
+import org.junit.Ignore
+import org.junit.Test
+import java.nio.ByteBuffer
+
+/**
+ * Rough JVM timings of a 1080x1920 frame conversion. Not part of the regular test run: remove the [Ignore] and
+ * run it on its own to compare implementations.
+ */
+@Ignore("Benchmark, run manually")
+class YuvConverterBenchmark {
+    private val width = 1080
+    private val height = 1920
+    private val argb = IntArray(width * height) { it * 31 or 0xFF000000.toInt() }
+
+    @Test
+    fun `benchmark frame conversion`() {
+        val legacyOut = ByteArray(width * height * 3 / 2)
+        val out = ByteBuffer.allocateDirect(YuvConverter.getBufferSize(width, height))
+
+        report("encodeYUV420SP (single thread)") {
+            BitmapEncodingUtils.encodeYUV420SP(legacyOut, argb, width, height)
+        }
+        report("YuvConverter NV12 (single thread)") {
+            YuvConverter.convert(argb, width, width, height, Layout.NV12, out, parallel = false)
+        }
+        report("YuvConverter NV12 (parallel)") {
+            YuvConverter.convert(argb, width, width, height, Layout.NV12, out)
+        }
+        report("YuvConverter I420 (parallel)") {
+            YuvConverter.convert(argb, width, width, height, Layout.I420, out)
+        }
+    }
+
+    private fun report(name: String, block: () -> Unit) {
+        repeat(WARM_UP_ITERATIONS) { block() }
+        val start = System.nanoTime()
+        repeat(ITERATIONS) { block() }
+        val perFrameMs = (System.nanoTime() - start) / 1_000_000.0 / ITERATIONS
+        println(String.format("%-36s %8.3f ms/frame", name, perFrameMs))
+    }
+
+    companion object {
+        private const val WARM_UP_ITERATIONS = 20
+        private const val ITERATIONS = 100
+    }
+}
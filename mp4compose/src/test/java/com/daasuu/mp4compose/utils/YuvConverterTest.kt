@@ -0,0 +1,84 @@
+package com.daasuu.mp4compose.utils
+
+import com.daasuu.mp4compose.utils.YuvConverter.Layout
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.util.Random
+
+class YuvConverterTest {
+    private fun randomPixels(width: Int, height: Int): IntArray {
+        val random = Random(42)
+        return IntArray(width * height) { random.nextInt() or 0xFF000000.toInt() }
+    }
+
+    private fun convert(argb: IntArray, width: Int, height: Int, layout: Layout, parallel: Boolean): ByteArray {
+        val out = ByteArray(YuvConverter.getBufferSize(width, height))
+        YuvConverter.convert(argb, width, width, height, layout, ByteBuffer.wrap(out), parallel)
+        return out
+    }
+
+    @Test
+    fun `NV12 output matches the single threaded encoder`() {
+        val width = 64
+        val height = 48
+        val argb = randomPixels(width, height)
+        val expected = ByteArray(width * height * 3 / 2)
+        BitmapEncodingUtils.encodeYUV420SP(expected, argb, width, height)
+
+        assertArrayEquals(expected, convert(argb, width, height, Layout.NV12, parallel = false))
+    }
+
+    @Test
+    fun `parallel conversion matches sequential conversion`() {
+        val width = 720
+        val height = 1280
+        val argb = randomPixels(width, height)
+
+        for (layout in Layout.values()) {
+            assertArrayEquals(
+                convert(argb, width, height, layout, parallel = false),
+                convert(argb, width, height, layout, parallel = true)
+            )
+        }
+    }
+
+    @Test
+    fun `I420 holds the NV12 chroma samples as separate planes`() {
+        val width = 32
+        val height = 16
+        val argb = randomPixels(width, height)
+        val nv12 = convert(argb, width, height, Layout.NV12, parallel = false)
+        val i420 = convert(argb, width, height, Layout.I420, parallel = false)
+
+        val lumaSize = width * height
+        val chromaPlaneSize = lumaSize / 4
+        for (i in 0 until lumaSize) {
+            assertEquals(nv12[i], i420[i])
+        }
+        for (i in 0 until chromaPlaneSize) {
+            assertEquals(nv12[lumaSize + 2 * i], i420[lumaSize + i])
+            assertEquals(nv12[lumaSize + 2 * i + 1], i420[lumaSize + chromaPlaneSize + i])
+        }
+    }
+
+    @Test
+    fun `conversion starts at the buffer position and leaves it untouched`() {
+        val width = 4
+        val height = 2
+        val out = ByteBuffer.allocate(YuvConverter.getBufferSize(width, height) + 3)
+        out.position(3)
+
+        YuvConverter.convert(IntArray(width * height) { 0xFFFFFFFF.toInt() }, width, width, height, Layout.NV12, out)
+
+        assertEquals(3, out.position())
+        assertEquals(0.toByte(), out.get(0))
+        assertEquals(255.toByte(), out.get(3))
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun `a too small output buffer is rejected`() {
+        YuvConverter.convert(IntArray(16), 4, 4, 4, Layout.I420, ByteBuffer.allocate(16))
+    }
+}
@@ -7,6 +7,7 @@ import android.graphics.Bitmap
 import android.graphics.Canvas
 import android.graphics.Rect
 import android.graphics.Typeface
+import android.media.MediaFormat
 import android.net.Uri
 import android.text.TextUtils
 import android.util.Log
@@ -45,15 +46,28 @@ import com.automattic.photoeditor.views.filter.CustomEffect
 import com.automattic.photoeditor.views.filter.PhotoFilter
 import com.bumptech.glide.Glide
 import com.daasuu.mp4compose.FillMode
+import com.daasuu.mp4compose.VideoFormatMimeType
+import com.daasuu.mp4compose.composer.ComposerInterface
 import com.daasuu.mp4compose.composer.ComposerProvider
+import com.daasuu.mp4compose.composer.ComposerUseCase.RemuxVideo
 import com.daasuu.mp4compose.composer.ComposerUseCase.SaveVideoAsFile
 import com.daasuu.mp4compose.composer.ComposerUseCase.SaveVideoFromBgAsFile
 import com.daasuu.mp4compose.composer.Listener
-import com.daasuu.mp4compose.filter.GlFilter
-import com.daasuu.mp4compose.filter.GlFilterGroup
-import com.daasuu.mp4compose.filter.GlGifWatermarkFilter
-import com.daasuu.mp4compose.filter.GlWatermarkFilter
+import com.daasuu.mp4compose.composer.Mp4Composer
+import com.daasuu.mp4compose.composer.progressFlow
+import com.daasuu.mp4compose.filter.CompositorLayer
+import com.daasuu.mp4compose.filter.GifCompositorLayer
+import com.daasuu.mp4compose.filter.GifFrameSource
+import com.daasuu.mp4compose.filter.GlLayerCompositorFilter
+import com.daasuu.mp4compose.filter.StillCompositorLayer
 import com.daasuu.mp4compose.filter.ViewPositionInfo
+import com.daasuu.mp4compose.utils.EncoderCapabilities
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.catch
+import kotlinx.coroutines.flow.collect
+import kotlinx.coroutines.flow.emitAll
+import kotlinx.coroutines.flow.flow
 import java.io.File
 import java.io.FileInputStream
 import java.lang.ref.WeakReference
@@ -88,6 +102,7 @@ class PhotoEditor private constructor(builder: Builder) :
     private val mDefaultTextTypeface: IdentifiableTypeface?
     private val mDefaultEmojiTypeface: Typeface?
     private val authenticationHeadersInterface: AuthenticationHeadersInterface?
+    private val videoFormatMimeType: VideoFormatMimeType
 
     /**
      * @return true is brush mode is enabled
@@ -152,6 +167,7 @@ class PhotoEditor private constructor(builder: Builder) :
         this.mDefaultTextTypeface = builder.textTypeface
         this.mDefaultEmojiTypeface = builder.emojiTypeface
         this.authenticationHeadersInterface = builder.authenticationHeadersInterface
+        this.videoFormatMimeType = builder.videoFormatMimeType
         layoutInflater = context.getSystemService(Context.LAYOUT_INFLATER_SERVICE) as LayoutInflater
         brushDrawingView.setBrushViewChangeListener(this)
         addedViews = AddedViewList()
@@ -746,26 +762,63 @@ class PhotoEditor private constructor(builder: Builder) :
         return localFile
     }
 
-    fun saveVideoAsLoopFrameFile(
+    /**
+     * Save the edited VIDEO to a new loop frame file, returned once the video is written. Canceling the calling
+     * coroutine cancels the save, see [saveVideoAsFileFlow].
+     *
+     * @param onProgress save progress, see [Listener.onProgress]
+     */
+    suspend fun saveVideoAsLoopFrameFile(
         sequenceId: Int,
         videoInputPath: Uri,
         muteAudio: Boolean,
         canvasWidth: Int,
         canvasHeight: Int,
         customAddedViews: AddedViewList,
-        onSaveListener: OnSaveWithCancelAndProgressListener
+        onProgress: (Double) -> Unit
     ): File {
         val localFile = FileUtils.getLoopFrameFile(context, true, sequenceId.toString())
         localFile.createNewFile()
-        saveVideoAsFile(
+        saveVideoAsFileFlow(
             videoInputPath = videoInputPath,
             videoOutputPath = localFile.absolutePath,
             muteAudio = muteAudio,
             originalCanvasWidth = canvasWidth,
             originalCanvasHeight = canvasHeight,
+            customAddedViews = customAddedViews
+        ).collect { onProgress(it) }
+        return localFile
+    }
+
+    /**
+     * Produce a video out of a still background and the added views drawn on top of it, for frames holding
+     * animated stickers. The video lasts as many whole loops of the longest sticker animation as needed to reach
+     * [minDurationMs].
+     *
+     * The file is returned once the video is written, canceling the calling coroutine cancels the save.
+     *
+     * @param backgroundView the background only, the [customAddedViews] are composited on top of it
+     * @param onProgress save progress, see [Listener.onProgress]
+     */
+    suspend fun saveVideoFromStaticBackgroundAsLoopFrameFile(
+        sequenceId: Int,
+        backgroundView: View,
+        canvasWidth: Int,
+        canvasHeight: Int,
+        customAddedViews: AddedViewList,
+        minDurationMs: Long,
+        onProgress: (Double) -> Unit
+    ): File {
+        val localFile = FileUtils.getLoopFrameFile(context, true, sequenceId.toString())
+        localFile.createNewFile()
+        createStaticBackgroundComposer(
+            background = BitmapUtil.createBitmapFromView(backgroundView),
+            videoOutputPath = localFile.absolutePath,
+            canvasWidth = canvasWidth,
+            canvasHeight = canvasHeight,
             customAddedViews = customAddedViews,
-            onSaveListener = onSaveListener
-        )
+            minDurationMs = minDurationMs
+        ).progressFlow().collect { onProgress(it) }
         return localFile
     }
 
@@ -780,43 +833,164 @@ class PhotoEditor private constructor(builder: Builder) :
     ) {
         Log.d(TAG, "Video Path: $videoInputPath")
 
-        // get the images currently on top of the screen, and add them as Filters to the mp4composer
-        val filterCollection = ArrayList<GlFilter>()
-        for (v in customAddedViews) {
-            val viewPositionInfo = ViewPositionInfo(
+        if (customAddedViews.isEmpty()) {
+            // nothing to draw on top of the video, so there's no need to decode and re-encode it: just copy its
+            // compressed samples over, and only go through mp4composer if the container can't take them as they are,
+            // or if the video isn't already the size the transcode would scale it to
+            remuxVideoAsFile(
+                videoInputPath,
+                videoOutputPath,
+                muteAudio,
+                normalizeTargetVideoSize(originalCanvasWidth, originalCanvasHeight),
+                object : OnSaveWithCancelAndProgressListener by onSaveListener {
+                    override fun onFailure(exception: Exception) {
+                        Log.w(TAG, "Remuxing failed, transcoding instead", exception)
+                        transcodeVideoAsFile(
+                            videoInputPath,
+                            videoOutputPath,
+                            muteAudio,
+                            originalCanvasWidth,
+                            originalCanvasHeight,
+                            customAddedViews,
+                            onSaveListener
+                        )
+                    }
+                }
+            )
+        } else {
+            transcodeVideoAsFile(
+                videoInputPath,
+                videoOutputPath,
+                muteAudio,
                 originalCanvasWidth,
                 originalCanvasHeight,
-                requireNotNull(v.view).width,
-                requireNotNull(v.view).height,
-                requireNotNull(v.view).matrix
+                customAddedViews,
+                onSaveListener
+            )
+        }
+    }
+
+    /**
+     * Same as [saveVideoAsFile], as a cold [Flow] of the save progress (see [Listener.onProgress]): the save starts
+     * when the flow is collected and completes with it, failures are thrown. Canceling the collecting coroutine
+     * cancels the save, partial output included.
+     */
+    fun saveVideoAsFileFlow(
+        videoInputPath: Uri,
+        videoOutputPath: String,
+        muteAudio: Boolean,
+        originalCanvasWidth: Int,
+        originalCanvasHeight: Int,
+        customAddedViews: AddedViewList
+    ): Flow<Double> {
+        // composers are only created on collection, the overlays open their sticker files
+        val transcode = flow {
+            emitAll(
+                createTranscodeComposer(
+                    videoInputPath,
+                    videoOutputPath,
+                    muteAudio,
+                    originalCanvasWidth,
+                    originalCanvasHeight,
+                    customAddedViews
+                ).progressFlow()
             )
-            when (v.viewType) {
-                ViewType.STICKER_ANIMATED -> {
-                    v.uri?.path?.let { path ->
-                        val file = File(path)
-                        val fileInputStream = FileInputStream(file)
-                        filterCollection.add(GlGifWatermarkFilter(context, fileInputStream, viewPositionInfo))
-                    }
-                }
-                else -> {
-                    clearHelperBox()
-                    v.view?.let {
-                        filterCollection.add(GlWatermarkFilter(BitmapUtil.createBitmapFromView(it), viewPositionInfo))
-                    }
-                }
-            }
         }
+        if (customAddedViews.isNotEmpty()) {
+            return transcode
+        }
+        // see saveVideoAsFile()
+        return flow {
+            val targetSize = normalizeTargetVideoSize(originalCanvasWidth, originalCanvasHeight)
+            emitAll(createRemuxComposer(videoInputPath, videoOutputPath, muteAudio, targetSize).progressFlow())
+        }
+            .catch { exception ->
+                if (exception is CancellationException) throw exception
+                Log.w(TAG, "Remuxing failed, transcoding instead", exception)
+                emitAll(transcode)
+            }
+    }
+
+    /**
+     * Copy the VIDEO on given path without decoding it, optionally dropping its audio track. Faster than
+     * [saveVideoAsFile] and lossless, but nothing can be drawn on top of the video.
+     *
+     * @param targetSize when set, the save fails unless the video already has that size, as it can't be resized.
+     */
+    fun remuxVideoAsFile(
+        videoInputPath: Uri,
+        videoOutputPath: String,
+        muteAudio: Boolean,
+        targetSize: Size?,
+        onSaveListener: OnSaveWithCancelAndProgressListener
+    ) {
+        createRemuxComposer(videoInputPath, videoOutputPath, muteAudio, targetSize)
+            .listener(createComposerListener(videoOutputPath, onSaveListener))
+            .start()
+    }
+
+    private fun createRemuxComposer(
+        videoInputPath: Uri,
+        videoOutputPath: String,
+        muteAudio: Boolean,
+        targetSize: Size?
+    ): ComposerInterface {
+        val composer = ComposerProvider.getComposerForUseCase(
+                RemuxVideo(
+                        videoInputPath,
+                        videoOutputPath,
+                        context,
+                        authenticationHeadersInterface?.getAuthHeaders(videoInputPath.toString()),
+                        faststart = true
+                )
+        ).mute(muteAudio)
+        targetSize?.let { composer.size(it) }
+        return composer
+    }
+
+    private fun transcodeVideoAsFile(
+        videoInputPath: Uri,
+        videoOutputPath: String,
+        muteAudio: Boolean,
+        originalCanvasWidth: Int,
+        originalCanvasHeight: Int,
+        customAddedViews: AddedViewList,
+        onSaveListener: OnSaveWithCancelAndProgressListener
+    ) {
+        createTranscodeComposer(
+            videoInputPath,
+            videoOutputPath,
+            muteAudio,
+            originalCanvasWidth,
+            originalCanvasHeight,
+            customAddedViews
+        ).listener(createComposerListener(videoOutputPath, onSaveListener))
+            .start()
+    }
+
+    private fun createTranscodeComposer(
+        videoInputPath: Uri,
+        videoOutputPath: String,
+        muteAudio: Boolean,
+        originalCanvasWidth: Int,
+        originalCanvasHeight: Int,
+        customAddedViews: AddedViewList
+    ): ComposerInterface {
+        // get the images currently on top of the screen, and add them as layers to the mp4composer
+        val overlayCompositor = createOverlayCompositor(customAddedViews, originalCanvasWidth, originalCanvasHeight)
 
         val composer = ComposerProvider.getComposerForUseCase(
                 SaveVideoAsFile(
                         videoInputPath,
                         videoOutputPath,
                         context,
-                        authenticationHeadersInterface?.getAuthHeaders(videoInputPath.toString())
+                        authenticationHeadersInterface?.getAuthHeaders(videoInputPath.toString()),
+                        faststart = true,
+                        videoFormatMimeType = videoFormatMimeType
                 )
         )
 
-        composer
+        return composer
 //            .size(width, height)
             // IMPORTANT: as we aim at a WYSIWYG UX, we need to produce a video of size equal to that of the phone
             // screen, given the user may be seeing a letterbox landscape video and placing emoji / text around
@@ -825,40 +999,106 @@ class PhotoEditor private constructor(builder: Builder) :
             // normalize output video size if actual screen size does not match a "normal" video size
             .size(normalizeTargetVideoSize(originalCanvasWidth, originalCanvasHeight))
             .fillMode(FillMode.PRESERVE_ASPECT_FIT)
-            .filter(if (customAddedViews.isNotEmpty()) GlFilterGroup(filterCollection) else null)
+            .filter(if (customAddedViews.isNotEmpty()) overlayCompositor else null)
             .mute(muteAudio)
-            .listener(object : Listener {
-                override fun onProgress(progress: Double) {
-                    Log.d(TAG, "onProgress = $progress")
-                    onSaveListener.onProgress(progress)
-                }
+    }
 
-                override fun onCompleted() {
-                    Log.d(TAG, "onCompleted()")
-                    onSaveListener.onSuccess(videoOutputPath)
+    /**
+     * Turns the given added views into the layers of a single [GlLayerCompositorFilter], keeping their z-order, so
+     * that all of them get drawn in one pass on top of each video frame.
+     *
+     * @param staticBackground whether the layers go on top of a still image rather than a video, in which case
+     * only the layers that change from one frame to the next get redrawn
+     */
+    private fun createOverlayCompositor(
+        customAddedViews: AddedViewList,
+        canvasWidth: Int,
+        canvasHeight: Int,
+        staticBackground: Boolean = false
+    ): GlLayerCompositorFilter {
+        val layers = ArrayList<CompositorLayer>()
+        for (v in customAddedViews) {
+            val viewPositionInfo = ViewPositionInfo(
+                canvasWidth,
+                canvasHeight,
+                requireNotNull(v.view).width,
+                requireNotNull(v.view).height,
+                requireNotNull(v.view).matrix
+            )
+            when (v.viewType) {
+                ViewType.STICKER_ANIMATED -> {
+                    v.uri?.path?.let { path ->
+                        val file = File(path)
+                        val fileInputStream = FileInputStream(file)
+                        // decode frames ahead, at the size the sticker is drawn at
+                        val gifFrameSource = GifFrameSource(
+                            context,
+                            fileInputStream,
+                            viewPositionInfo.width,
+                            viewPositionInfo.height
+                        )
+                        layers.add(GifCompositorLayer(gifFrameSource, viewPositionInfo))
+                    }
                 }
-
-                override fun onCanceled() {
-                    Log.d(TAG, "onCanceled")
-                    onSaveListener.onCancel()
+                else -> {
+                    clearHelperBox()
+                    v.view?.let {
+                        layers.add(StillCompositorLayer(BitmapUtil.createBitmapFromView(it), viewPositionInfo))
+                    }
                 }
+            }
+        }
+        return GlLayerCompositorFilter(layers, staticBase = staticBackground)
+    }
 
-                override fun onFailed(exception: Exception) {
-                    Log.e(TAG, "onFailed()", exception)
-                    onSaveListener.onFailure(exception)
-                }
+    private fun createComposerListener(
+        videoOutputPath: String,
+        onSaveListener: OnSaveWithCancelAndProgressListener
+    ): Listener {
+        return object : Listener {
+            override fun onProgress(progress: Double) {
+                Log.d(TAG, "onProgress = $progress")
+                onSaveListener.onProgress(progress)
+            }
 
-                override fun onStart() {
-                    Log.d(TAG, "onStart()")
-                }
-            })
-            .start()
+            override fun onCompleted() {
+                Log.d(TAG, "onCompleted()")
+                onSaveListener.onSuccess(videoOutputPath)
+            }
+
+            override fun onCanceled() {
+                Log.d(TAG, "onCanceled")
+                onSaveListener.onCancel()
+            }
+
+            override fun onFailed(exception: Exception) {
+                Log.e(TAG, "onFailed()", exception)
+                onSaveListener.onFailure(exception)
+            }
+
+            override fun onStart() {
+                Log.d(TAG, "onStart()")
+            }
+        }
     }
 
     private fun normalizeTargetVideoSize(
         requestedWidth: Int,
         requestedHeight: Int
     ): Size {
+        // the largest common size that fits the canvas and that an encoder for the configured codec is known to
+        // support, or an AVC one when there's none, as the composer then falls back to AVC
+        val mimeType = if (videoFormatMimeType == VideoFormatMimeType.AUTO) {
+            VideoFormatMimeType.HEVC.format
+        } else {
+            videoFormatMimeType.format
+        }
+        val avc = MediaFormat.MIMETYPE_VIDEO_AVC
+        (EncoderCapabilities.bestOutputSize(context, mimeType, requestedWidth, requestedHeight)
+            ?: EncoderCapabilities.bestOutputSize(context, avc, requestedWidth, requestedHeight))
+            ?.let { return it }
+
+        // otherwise guess from the canvas size
         var adjustedSize = Size(requestedWidth, requestedHeight)
         // As per CDD, all android devices running API level 21 (our minSdk) with H.264 codec must support 720 x 480 px.
         // see https://source.android.com/compatibility/5.0/android-5.0-cdd#5_2_video_encoding
@@ -940,72 +1180,88 @@ class PhotoEditor private constructor(builder: Builder) :
         videoOutputPath: String,
         onSaveListener: OnSaveWithCancelListener
     ) {
-        val widthParent = parentView.width
-        val heightParent = parentView.height
-
-        // get the images currently on top of the screen, and add them as Filters to the mp4composer
-        val filterCollection = ArrayList<GlFilter>()
-        for (oneView in addedViews) {
-            val viewPositionInfo = ViewPositionInfo(
-                widthParent,
-                heightParent,
-                requireNotNull(oneView.view).width,
-                requireNotNull(oneView.view).height,
-                requireNotNull(oneView.view).matrix
-            )
-            when (oneView.viewType) {
-                ViewType.STICKER_ANIMATED -> {
-                    oneView.uri?.path?.let { path ->
-                        val file = File(path)
-                        val fileInputStream = FileInputStream(file)
-                        filterCollection.add(GlGifWatermarkFilter(context, fileInputStream, viewPositionInfo))
-                    }
-                }
-                else -> {
-                    clearHelperBox()
-                    oneView.view?.let {
-                        filterCollection.add(
-                                GlWatermarkFilter(BitmapUtil.createBitmapFromView(it), viewPositionInfo)
-                        )
-                    }
+        saveVideoFromStaticBackgroundAsFile(
+            // take the static background image
+            background = createBitmapFromView(parentView.source),
+            videoOutputPath = videoOutputPath,
+            canvasWidth = parentView.width,
+            canvasHeight = parentView.height,
+            customAddedViews = addedViews,
+            minDurationMs = Mp4Composer.DEFAULT_STATIC_BKG_DURATION_MS,
+            onSaveListener = object : OnSaveWithCancelAndProgressListener, OnSaveWithCancelListener by onSaveListener {
+                override fun onProgress(progress: Double) {
+                    // not followed by this listener
                 }
             }
-        }
-
-        // take the static background image
-        val bmp = createBitmapFromView(parentView.source)
-
-        val composer = ComposerProvider.getComposerForUseCase(SaveVideoFromBgAsFile(bmp, videoOutputPath))
+        )
+    }
 
-        composer
-            .size(Size(bmp.width, bmp.height)) // FIXME check whether these are the right values or not
-            .fillMode(FillMode.PRESERVE_ASPECT_FIT)
-            .filter(GlFilterGroup(filterCollection))
-            .listener(object : Listener {
-                override fun onProgress(progress: Double) {
-                    Log.d(TAG, "onProgress = $progress")
-                    // TODO: show progress to user
-                }
+    private fun saveVideoFromStaticBackgroundAsFile(
+        background: Bitmap,
+        videoOutputPath: String,
+        canvasWidth: Int,
+        canvasHeight: Int,
+        customAddedViews: AddedViewList,
+        minDurationMs: Long,
+        onSaveListener: OnSaveWithCancelAndProgressListener
+    ) {
+        createStaticBackgroundComposer(
+            background,
+            videoOutputPath,
+            canvasWidth,
+            canvasHeight,
+            customAddedViews,
+            minDurationMs
+        ).listener(createComposerListener(videoOutputPath, onSaveListener))
+            .start()
+    }
 
-                override fun onCompleted() {
-                    Log.d(TAG, "onCompleted()")
-                    onSaveListener.onSuccess(videoOutputPath)
-                }
+    private fun createStaticBackgroundComposer(
+        background: Bitmap,
+        videoOutputPath: String,
+        canvasWidth: Int,
+        canvasHeight: Int,
+        customAddedViews: AddedViewList,
+        minDurationMs: Long
+    ): ComposerInterface {
+        // get the images currently on top of the screen, and add them as layers to the mp4composer
+        val overlayCompositor = createOverlayCompositor(
+            customAddedViews,
+            canvasWidth,
+            canvasHeight,
+            staticBackground = true
+        )
+        val durationMs = loopAlignedDurationMs(overlayCompositor.loopDurationUs, minDurationMs)
 
-                override fun onCanceled() {
-                    Log.d(TAG, "onCanceled")
-                    onSaveListener.onCancel()
-                }
+        val composer = ComposerProvider.getComposerForUseCase(
+                SaveVideoFromBgAsFile(
+                        background,
+                        videoOutputPath,
+                        durationMs,
+                        faststart = true,
+                        videoFormatMimeType = videoFormatMimeType
+                )
+        )
 
-                override fun onFailed(exception: Exception) {
-                    Log.e(TAG, "onFailed()", exception)
-                    onSaveListener.onFailure(exception)
-                }
+        return composer
+            // same as with video backgrounds, produce a video of a "normal" size matching the screen aspect
+            .size(normalizeTargetVideoSize(canvasWidth, canvasHeight))
+            .fillMode(FillMode.PRESERVE_ASPECT_FIT)
+            .filter(overlayCompositor)
+    }
 
-                override fun onStart() {
-                    Log.d(TAG, "onStart()")
-                }
-            }).start()
+    /**
+     * @return the length of the smallest number of whole [loopDurationUs] loops lasting at least [minDurationMs],
+     * so animations don't get cut in the middle when the video loops. A single very long loop gets cut at
+     * [MAX_STATIC_BACKGROUND_VIDEO_DURATION_MS] though.
+     */
+    private fun loopAlignedDurationMs(loopDurationUs: Long, minDurationMs: Long): Long {
+        if (loopDurationUs <= 0) {
+            return minDurationMs
+        }
+        val minDurationUs = minDurationMs * 1000
+        val loops = Math.max(1L, (minDurationUs + loopDurationUs - 1) / loopDurationUs)
+        return Math.min(loops * loopDurationUs / 1000, Math.max(minDurationMs, MAX_STATIC_BACKGROUND_VIDEO_DURATION_MS))
     }
 
     // TODO to be used in conjunction with mp4composer
@@ -1125,6 +1381,7 @@ class PhotoEditor private constructor(builder: Builder) :
         // By Default pinch zoom on text is enabled
         var isTextPinchZoomable = true
         var authenticationHeadersInterface: AuthenticationHeadersInterface? = null
+        var videoFormatMimeType = VideoFormatMimeType.AVC
 
         fun setDeleteView(deleteView: View): Builder {
             this.deleteView = deleteView
@@ -1174,6 +1431,18 @@ class PhotoEditor private constructor(builder: Builder) :
             return this
         }
 
+        /**
+         * set the codec of saved videos, AVC by default. HEVC (or AUTO) makes smaller files when the device has
+         * a hardware HEVC encoder, and falls back to AVC otherwise.
+         *
+         * @param videoFormatMimeType codec of the saved videos
+         * @return [Builder] instant to build [PhotoEditor]
+         */
+        fun setVideoFormatMimeType(videoFormatMimeType: VideoFormatMimeType): Builder {
+            this.videoFormatMimeType = videoFormatMimeType
+            return this
+        }
+
         /**
          * @return build PhotoEditor instance
          */
@@ -1184,6 +1453,7 @@ class PhotoEditor private constructor(builder: Builder) :
 
     companion object {
         private const val TAG = "PhotoEditor"
+        private const val MAX_STATIC_BACKGROUND_VIDEO_DURATION_MS = 15000L
 
         private fun convertEmoji(emoji: String): String {
             return try {
@@ -19,7 +19,6 @@ package com.automattic.photoeditor.camera
 import android.graphics.Matrix
 import android.graphics.SurfaceTexture
 import android.media.AudioManager
-import android.media.MediaMetadataRetriever
 import android.media.MediaPlayer
 import android.net.Uri
 import android.os.Bundle
@@ -31,7 +30,7 @@ import com.automattic.photoeditor.camera.interfaces.SurfaceFragmentHandler
 import com.automattic.photoeditor.camera.interfaces.VideoPlayerSoundOnOffHandler
 import com.automattic.photoeditor.state.AuthenticationHeadersInterface
 import com.automattic.photoeditor.views.background.video.AutoFitTextureView
-import com.daasuu.mp4compose.utils.DataSourceUtil
+import com.daasuu.mp4compose.utils.MediaProbe
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
@@ -249,41 +248,29 @@ class VideoPlayingBasicHandling : Fragment(), SurfaceFragmentHandler, VideoPlaye
     }
 
     private fun calculateVideoSizeAndOrientation(videoUri: Uri) {
-        val metadataRetriever = MediaMetadataRetriever()
         try {
             context?.let {
-                DataSourceUtil.setDataSource(
+                val mediaInfo = MediaProbe.probe(
                     it,
                     videoUri,
-                    mediaExtractor = null,
-                    mediaMetadataRetriever = metadataRetriever,
-                    addedRequestHeaders = mAuthenticationHeadersInterface?.getAuthHeaders(videoUri.toString())
+                    mAuthenticationHeadersInterface?.getAuthHeaders(videoUri.toString())
                 )
+                videoHeight = mediaInfo.height.toFloat()
+                videoWidth = mediaInfo.width.toFloat()
+                videoOrientation = mediaInfo.rotation
             }
-
-            val height = metadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT)
-            val width = metadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH)
-            val orientation = metadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION)
-            videoHeight = height?.let { java.lang.Float.parseFloat(it) } ?: 0f
-            videoWidth = width?.let { java.lang.Float.parseFloat(it) } ?: 0f
-            videoOrientation = orientation?.let { Integer.valueOf(it) } ?: 0
         } catch (e: IOException) {
             playerPreparedListener?.onPlayerError()
             Log.d(TAG, e.message.toString())
-        } catch (e: NumberFormatException) {
-            playerPreparedListener?.onPlayerError()
-            Log.d(TAG, e.message.toString())
         } catch (e: IllegalArgumentException) {
             playerPreparedListener?.onPlayerError()
-            Log.e(TAG, "Can't read duration of the video.", e)
+            Log.e(TAG, "Can't read the size of the video.", e)
         } catch (e: RuntimeException) {
             playerPreparedListener?.onPlayerError()
             // Ref: https://github.com/wordpress-mobile/WordPress-Android/issues/5431
             Log.e(TAG,
                     "Can't calculateVideoSizeAndOrientation due to a" +
                             "Runtime Exception happened setting the datasource", e)
-        } finally {
-            metadataRetriever.release()
         }
     }
 
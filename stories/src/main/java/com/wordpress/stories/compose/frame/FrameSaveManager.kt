@@ -12,7 +12,6 @@ import android.widget.ImageView.ScaleType.FIT_CENTER
 import android.widget.ImageView.ScaleType.FIT_START
 import android.widget.RelativeLayout
 import com.automattic.photoeditor.PhotoEditor
-import com.automattic.photoeditor.PhotoEditor.OnSaveWithCancelAndProgressListener
 import com.automattic.photoeditor.views.PhotoEditorView
 import com.automattic.photoeditor.views.ViewType.STICKER_ANIMATED
 import com.automattic.photoeditor.views.background.fixed.BackgroundImageView
@@ -29,12 +28,13 @@ import com.bumptech.glide.request.FutureTarget
 import com.bumptech.glide.request.RequestOptions
 import com.wordpress.stories.util.isSizeRatio916
 import com.wordpress.stories.util.normalizeSizeExportTo916
+import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.SupervisorJob
 import kotlinx.coroutines.async
 import kotlinx.coroutines.awaitAll
-import kotlinx.coroutines.delay
+import kotlinx.coroutines.ensureActive
 import kotlinx.coroutines.sync.Semaphore
 import kotlinx.coroutines.sync.withPermit
 import kotlinx.coroutines.withContext
@@ -47,7 +47,9 @@ typealias FrameIndex = Int
 
 class FrameSaveManager(
     private val photoEditor: PhotoEditor,
-    private val normalizeTo916: Boolean = true
+    private val normalizeTo916: Boolean = true,
+    // image frames with animated stickers are saved as videos of at least this length, see saveAnimatedImageFrame()
+    private val animatedImageFrameMinDurationMs: Long = DEFAULT_ANIMATED_IMAGE_FRAME_MIN_DURATION_MS
 ) : CoroutineScope {
     // we're using SupervisorJob as the topmost job, so some children async{}
     // calls can fail without affecting the parent (and thus, all of its children) while we wait for each frame to get
@@ -81,7 +83,7 @@ class FrameSaveManager(
         yield()
 
         // now, save all videos async and wait - this process is intense so only allow for 3 videos to be processed
-        // concurrently
+        // concurrently. This includes image frames with animated stickers, which get saved as videos too
         val savedVideos = saveLoopFramesAsyncAwait(
             context, frames, VIDEO(), VIDEO_CONCURRENCY_LIMIT, isRetry
         )
@@ -110,7 +112,7 @@ class FrameSaveManager(
             async {
                 concurrencyLimitSemaphore.withPermit {
                     // see above - we only want to save frames of frameItemType
-                    if (frame.frameItemType.isSameType(frameItemType)) {
+                    if (frame.getSavedFrameItemType().isSameType(frameItemType)) {
                         yield()
                         return@withPermit saveStoryFrame(context, frame, index, reattachAddedViewsAfterSaving)
                     } else {
@@ -122,6 +124,17 @@ class FrameSaveManager(
         return listFiles
     }
 
+    /**
+     * @return the type of media the frame gets saved as, which is a video for image frames with animated stickers.
+     */
+    private fun StoryFrameItem.getSavedFrameItemType(): StoryFrameItemType {
+        return if (frameItemType is IMAGE && addedViews.containsAnyAddedViewsOfType(STICKER_ANIMATED)) {
+            VIDEO()
+        } else {
+            frameItemType
+        }
+    }
+
     private suspend fun inflateAddedViews(frame: StoryFrameItem) {
         // when editing a Story, if a frame has not been selected to be shown in PhotoEditor,
         // the views are never inflated. Let's make sure we do that before saving, otherwise
@@ -151,10 +164,14 @@ class FrameSaveManager(
         when (frame.frameItemType) {
             is VIDEO -> {
                 // - if we have addedViews then we need to process the vido with mp4composer
-                // - if the source video is a Uri, let's process it through mp4composer anyway to obtain
-                // a local file we can upload
-                if (frame.addedViews.isNotEmpty() || frame.source is UriBackgroundSource) {
-                    frameFile = saveVideoFrame(frame, frameIndex)
+                // - if the source video is a Uri, or its audio needs to be dropped, let's process it anyway to
+                // obtain a local file we can upload. Without addedViews this is a plain remux (no decoding /
+                // encoding involved), see PhotoEditor.saveVideoAsFile()
+                if (frame.addedViews.isNotEmpty() || frame.source is UriBackgroundSource ||
+                        (frame.frameItemType as VIDEO).muteAudio) {
+                    frameFile = saveVideoFrame(frame, frameIndex) { onProgress ->
+                        saveVideoAsLoopFrameFile(frame, frameIndex, onProgress)
+                    }
                     releaseAddedViewsAfterSnapshot(frame)
                     if (reattachAddedViewsAfterSaving) {
                         reattachAddedViewsToOriginalParent(frame)
@@ -169,8 +186,20 @@ class FrameSaveManager(
             is IMAGE -> {
                 // check whether there are any GIF stickers - if there are, we need to produce a video instead
                 if (frame.addedViews.containsAnyAddedViewsOfType(STICKER_ANIMATED)) {
-                    // TODO make saveVideoWithStaticBackground return File
-                    // saveVideoWithStaticBackground()
+                    try {
+                        frameFile = saveAnimatedImageFrame(context, frame, frameIndex)
+                    } catch (ex: CancellationException) {
+                        // the story save was canceled, not this frame only
+                        throw ex
+                    } catch (ex: Exception) {
+                        saveProgressListener?.onFrameSaveFailed(frameIndex, frame, ex.message)
+                    } finally {
+                        // same as for still images below: the added views need to be re-addable afterwards
+                        releaseAddedViewsAfterSnapshot(frame)
+                        if (reattachAddedViewsAfterSaving) {
+                            reattachAddedViewsToOriginalParent(frame)
+                        }
+                    }
                 } else {
                     try {
                         // create ghost PhotoEditorView to be used for saving off-screen
@@ -183,6 +212,8 @@ class FrameSaveManager(
                         frameFile = saveImageFrame(context, frame, ghostPhotoEditorView, originalMatrix, frameIndex)
                         frame.composedFrameFile = frameFile
                         saveProgressListener?.onFrameSaveCompleted(frameIndex, frame)
+                    } catch (ex: CancellationException) {
+                        throw ex
                     } catch (ex: Exception) {
                         saveProgressListener?.onFrameSaveFailed(frameIndex, frame, ex.message)
                     } finally {
@@ -234,6 +265,49 @@ class FrameSaveManager(
         return file
     }
 
+    /**
+     * Saves an image frame with animated stickers as a video, so they keep moving: the background is rendered
+     * once, and mp4composer draws the added views on top of it on each frame, only redrawing the stickers that
+     * changed. The video spans whole loops of the stickers, lasting at least [animatedImageFrameMinDurationMs].
+     */
+    private suspend fun saveAnimatedImageFrame(
+        context: Context,
+        frame: StoryFrameItem,
+        frameIndex: FrameIndex
+    ): File? {
+        val originalMatrix = Matrix()
+        frame.source.backgroundViewInfo?.let {
+            originalMatrix.setValues(it.imageMatrixValues)
+        }
+
+        // prepare a ghost view with the background only, the added views are composited in the video instead
+        val ghostPhotoEditorView = createGhostPhotoEditor(context, photoEditor.composedCanvas)
+        val futureTargetPair = preparePhotoEditorViewForSnapshot(
+            context,
+            frame,
+            originalMatrix,
+            ghostPhotoEditorView,
+            includeAddedViews = false
+        )
+
+        val file = saveVideoFrame(frame, frameIndex) { onProgress ->
+            photoEditor.saveVideoFromStaticBackgroundAsLoopFrameFile(
+                sequenceId = frameIndex,
+                backgroundView = ghostPhotoEditorView,
+                canvasWidth = photoEditor.composedCanvas.width,
+                canvasHeight = photoEditor.composedCanvas.height,
+                customAddedViews = frame.addedViews,
+                minDurationMs = animatedImageFrameMinDurationMs,
+                onProgress = onProgress
+            )
+        }
+
+        Glide.with(context).clear(futureTargetPair.first)
+        Glide.with(context).clear(futureTargetPair.second)
+
+        return file
+    }
+
     private suspend fun releaseAddedViewsAfterSnapshot(frame: StoryFrameItem) {
         withContext(Dispatchers.Main) {
             // don't forget to remove these views from ghost offscreen view before exiting
@@ -250,65 +324,47 @@ class FrameSaveManager(
         }
     }
 
+    /**
+     * Runs [save], reporting its progress and outcome to [saveProgressListener]. Canceling the calling coroutine
+     * cancels the save too, so the composer stops and frees its codecs instead of running to the end.
+     *
+     * @param save saves the video and returns its file, or null if the save couldn't be started
+     */
     private suspend fun saveVideoFrame(
         frame: StoryFrameItem,
-        frameIndex: FrameIndex
+        frameIndex: FrameIndex,
+        save: suspend (onProgress: (Double) -> Unit) -> File?
     ): File? {
-        var file: File? = null
-
-        withContext(Dispatchers.IO) {
-            var listenerDone = false
-            val saveListener = object : OnSaveWithCancelAndProgressListener {
-                override fun onCancel(noAddedViews: Boolean) {
-                    saveProgressListener?.onFrameSaveCanceled(frameIndex, frame)
-                    listenerDone = true
-                }
-
-                override fun onSuccess(filePath: String) {
-                    // all good here, continue success path
-                    file = File(filePath)
-                    frame.composedFrameFile = file
-                    saveProgressListener?.onFrameSaveCompleted(frameIndex, frame)
-                    listenerDone = true
-                }
-
-                override fun onFailure(exception: Exception) {
-                    saveProgressListener?.onFrameSaveFailed(frameIndex, frame, exception.message)
-                    listenerDone = true
-                }
-                override fun onProgress(progress: Double) {
-                    saveProgressListener?.onFrameSaveProgress(frameIndex, frame, progress)
-                }
-            }
-
+        return withContext(Dispatchers.IO) {
             try {
-                if (saveVideoAsLoopFrameFile(frame, frameIndex, saveListener)) {
-                    // don't return until we get a signal in the listener
-                    while (!listenerDone) {
-                        delay(VIDEO_PROCESSING_READY_WAIT_TIME_MILLIS)
-                    }
-                } else {
-                    throw Exception("Save not called")
-                }
+                val file = save { progress ->
+                    saveProgressListener?.onFrameSaveProgress(frameIndex, frame, progress)
+                } ?: throw Exception("Save not called")
+                frame.composedFrameFile = file
+                saveProgressListener?.onFrameSaveCompleted(frameIndex, frame)
+                file
+            } catch (ex: CancellationException) {
+                saveProgressListener?.onFrameSaveCanceled(frameIndex, frame)
+                // only go on if the composer was canceled by someone else, not this job
+                ensureActive()
+                null
             } catch (ex: Exception) {
                 saveProgressListener?.onFrameSaveFailed(frameIndex, frame, ex.message)
+                null
             }
         }
-
-        return file
     }
 
-    private fun saveVideoAsLoopFrameFile(
+    private suspend fun saveVideoAsLoopFrameFile(
         frame: StoryFrameItem,
         frameIndex: FrameIndex,
-        onSaveListener: OnSaveWithCancelAndProgressListener
-    ): Boolean {
-        var callMade = false
+        onProgress: (Double) -> Unit
+    ): File? {
         val uri: Uri? = (frame.source as? UriBackgroundSource)?.contentUri
                 ?: Uri.fromFile(requireNotNull((frame.source as FileBackgroundSource).file))
         // we only need the width and height of a model canvas, not creating a canvas clone in the case of videos
         // as these are all processed in the background
-        uri?.let {
+        return uri?.let {
             photoEditor.saveVideoAsLoopFrameFile(
                 sequenceId = frameIndex,
                 videoInputPath = it,
@@ -316,18 +372,17 @@ class FrameSaveManager(
                 canvasWidth = photoEditor.composedCanvas.width,
                 canvasHeight = photoEditor.composedCanvas.height,
                 customAddedViews = frame.addedViews,
-                onSaveListener = onSaveListener
+                onProgress = onProgress
             )
-            callMade = true
         }
-        return callMade
     }
 
     private suspend fun preparePhotoEditorViewForSnapshot(
         context: Context,
         frame: StoryFrameItem,
         originalMatrix: Matrix,
-        ghostPhotoEditorView: PhotoEditorView
+        ghostPhotoEditorView: PhotoEditorView,
+        includeAddedViews: Boolean = true
     ): Pair<FutureTarget<Bitmap>, FutureTarget<Bitmap>> {
         // prepare background
         val uri = (frame.source as? UriBackgroundSource)?.contentUri
@@ -392,6 +447,10 @@ class FrameSaveManager(
             setSuppMatrix(originalMatrix)
         }
 
+        if (!includeAddedViews) {
+            return Pair<FutureTarget<Bitmap>, FutureTarget<Bitmap>>(futureTarget, futureBlurredTarget)
+        }
+
         // removeViewFromParent for views that were added in the UI thread need to also run on the main thread
         // otherwise we'd get a android.view.ViewRootImpl$CalledFromWrongThreadException:
         // Only the original thread that created a view hierarchy can touch its views.
@@ -441,7 +500,7 @@ class FrameSaveManager(
     companion object {
         private const val VIDEO_CONCURRENCY_LIMIT = 3
         private const val IMAGE_CONCURRENCY_LIMIT = 10
-        private const val VIDEO_PROCESSING_READY_WAIT_TIME_MILLIS: Long = 500
+        private const val DEFAULT_ANIMATED_IMAGE_FRAME_MIN_DURATION_MS: Long = 3000
 
         fun releaseAddedViews(frame: StoryFrameItem) {
             // don't forget to remove these views from ghost offscreen view before exiting